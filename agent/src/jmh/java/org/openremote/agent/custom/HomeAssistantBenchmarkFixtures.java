@@ -0,0 +1,142 @@
+package org.openremote.agent.custom;
+
+import org.openremote.agent.custom.entities.HomeAssistantBaseEntity;
+import org.openremote.agent.custom.entities.HomeAssistantEntityStateEvent;
+import org.openremote.agent.custom.entities.HomeAssistantEntityStateEventData;
+import org.openremote.model.attribute.AttributeEvent;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.Consumer;
+
+/**
+ * Synthetic Home Assistant data for the benchmarks; the entities are spread over the light, switch, sensor and
+ * binary_sensor domains with attributes similar to those of a real hub (see hass.json). Generation is seeded so every
+ * run benchmarks the same data.
+ */
+public final class HomeAssistantBenchmarkFixtures {
+
+    public static final String IMPORTED_ENTITY_TYPES = "light,switch,sensor,binary_sensor";
+    private static final String[] DOMAINS = {"light", "switch", "sensor", "binary_sensor"};
+
+    private HomeAssistantBenchmarkFixtures() {
+    }
+
+    public static String entityId(int index) {
+        return DOMAINS[index % DOMAINS.length] + ".benchmark_" + index;
+    }
+
+    // The /api/states response body of a hub with the given number of entities
+    public static byte[] statesJson(int entityCount) {
+        Random random = new Random(entityCount);
+        StringBuilder json = new StringBuilder(entityCount * 400);
+        json.append('[');
+        for (int i = 0; i < entityCount; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            appendEntity(json, i, random);
+        }
+        json.append(']');
+        return json.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    // The state_changed event frames (as received over the websocket) of the given number of entities
+    public static String[] stateChangedFrames(int entityCount) {
+        Random random = new Random(entityCount);
+        String[] frames = new String[entityCount];
+        for (int i = 0; i < entityCount; i++) {
+            StringBuilder json = new StringBuilder(512);
+            json.append("{\"id\":1,\"type\":\"event\",\"event\":{\"event_type\":\"state_changed\",\"data\":{\"entity_id\":\"")
+                .append(entityId(i)).append("\",\"new_state\":");
+            appendEntity(json, i, random);
+            json.append("}}}");
+            frames[i] = json.toString();
+        }
+        return frames;
+    }
+
+    // State changed events that turn all entities on or off; alternating between both sets makes every event a change
+    public static HomeAssistantEntityStateEvent[] stateChangedEvents(int entityCount, boolean on) {
+        HomeAssistantEntityStateEvent[] events = new HomeAssistantEntityStateEvent[entityCount];
+        for (int i = 0; i < entityCount; i++) {
+            var entity = new HomeAssistantBaseEntity();
+            entity.setEntityId(entityId(i));
+            entity.setState(on ? "on" : "off");
+            Map<String, Object> attributes = new LinkedHashMap<>();
+            attributes.put("friendly_name", "Benchmark " + i);
+            attributes.put("brightness", on ? 255 : 0);
+            entity.setAttributes(attributes);
+
+            var data = new HomeAssistantEntityStateEventData();
+            data.setEntityId(entity.getEntityId());
+            data.setNewBaseEntity(entity);
+            var event = new HomeAssistantEntityStateEvent();
+            event.setEventType("state_changed");
+            event.setData(data);
+            events[i] = event;
+        }
+        return events;
+    }
+
+    public static List<HomeAssistantBaseEntity> entities(int entityCount) throws Exception {
+        List<HomeAssistantBaseEntity> entities = new ArrayList<>(entityCount);
+        HomeAssistantHttpClient.readEntities(new ByteArrayInputStream(statesJson(entityCount)), entityId -> true, entities::add);
+        return entities;
+    }
+
+    public static HomeAssistantAgent agent() {
+        HomeAssistantAgent agent = new HomeAssistantAgent("Benchmark");
+        agent.setId("benchmarkAgentId0000001");
+        agent.getAttributes().getOrCreate(HomeAssistantAgent.IMPORTED_ENTITY_TYPES).setValue(IMPORTED_ENTITY_TYPES);
+        return agent;
+    }
+
+    /**
+     * Protocol that hands the attribute events produced by the entity processor to a consumer instead of the (not
+     * running) container.
+     */
+    public static class BenchmarkProtocol extends HomeAssistantProtocol {
+
+        protected final Consumer<AttributeEvent> eventConsumer;
+
+        public BenchmarkProtocol(HomeAssistantAgent agent, Consumer<AttributeEvent> eventConsumer) {
+            super(agent);
+            this.eventConsumer = eventConsumer;
+        }
+
+        @Override
+        public void handleExternalAttributeChange(AttributeEvent event) {
+            eventConsumer.accept(event);
+        }
+    }
+
+    private static void appendEntity(StringBuilder json, int index, Random random) {
+        String entityId = entityId(index);
+        String domain = DOMAINS[index % DOMAINS.length];
+        json.append("{\"entity_id\":\"").append(entityId).append("\",\"state\":\"");
+        switch (domain) {
+            case "sensor" -> json.append(String.format(Locale.ROOT, "%.2f", random.nextDouble() * 40));
+            default -> json.append(random.nextBoolean() ? "on" : "off");
+        }
+        json.append("\",\"attributes\":{\"friendly_name\":\"Benchmark ").append(index).append('"');
+        switch (domain) {
+            case "light" -> json.append(",\"brightness\":").append(random.nextInt(256))
+                .append(",\"color_temp\":").append(153 + random.nextInt(347))
+                .append(",\"min_mireds\":153,\"max_mireds\":500")
+                .append(",\"hs_color\":[").append(random.nextInt(360)).append(".0,").append(random.nextInt(100)).append(".0]")
+                .append(",\"supported_color_modes\":[\"color_temp\",\"hs\"],\"supported_features\":40");
+            case "sensor" -> json.append(",\"unit_of_measurement\":\"°C\",\"device_class\":\"temperature\",\"state_class\":\"measurement\"");
+            case "binary_sensor" -> json.append(",\"device_class\":\"motion\"");
+            default -> json.append(",\"assumed_state\":false");
+        }
+        json.append("},\"last_changed\":\"2024-01-01T00:00:00.000000+00:00\",\"last_updated\":\"2024-01-01T00:00:00.000000+00:00\"")
+            .append(",\"context\":{\"id\":\"01HK").append(index).append("\",\"parent_id\":null,\"user_id\":null}}");
+    }
+}
@@ -0,0 +1,80 @@
+package org.openremote.agent.custom;
+
+import org.openremote.agent.custom.assets.HomeAssistantBaseAsset;
+import org.openremote.agent.custom.entities.HomeAssistantBaseEntity;
+import org.openremote.agent.custom.entities.HomeAssistantEntityStateEvent;
+import org.openremote.model.attribute.Attribute;
+import org.openremote.model.attribute.AttributeRef;
+import org.openremote.model.value.ValueType;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Conversion of entities to assets (as done by the import) and dispatch of state_changed events to linked attributes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class HomeAssistantEntityProcessorBenchmark {
+
+    @Param({"100", "10000", "100000"})
+    public int entityCount;
+
+    protected List<HomeAssistantBaseEntity> entities;
+    protected HomeAssistantEntityProcessor entityProcessor;
+    protected HomeAssistantEntityStateEvent[] onEvents;
+    protected HomeAssistantEntityStateEvent[] offEvents;
+    protected int eventIndex;
+    protected long publishedCount;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        HomeAssistantAgent agent = HomeAssistantBenchmarkFixtures.agent();
+        var protocol = new HomeAssistantBenchmarkFixtures.BenchmarkProtocol(agent, event -> publishedCount++);
+        entityProcessor = new HomeAssistantEntityProcessor(protocol, null);
+        entities = HomeAssistantBenchmarkFixtures.entities(entityCount);
+
+        // Link the state and brightness of every entity
+        for (int i = 0; i < entityCount; i++) {
+            String entityId = HomeAssistantBenchmarkFixtures.entityId(i);
+            String assetId = "benchmarkAsset" + i;
+            var agentLink = new HomeAssistantAgentLink(agent.getId(), HomeAssistantEntityProcessor.getEntityTypeFromEntityId(entityId), entityId);
+            protocol.getRoutingTable().link(entityId, new HomeAssistantLinkedAttribute(new AttributeRef(assetId, "state"),
+                new Attribute<>("state", ValueType.BOOLEAN, false), agentLink));
+            protocol.getRoutingTable().link(entityId, new HomeAssistantLinkedAttribute(new AttributeRef(assetId, "brightness"),
+                new Attribute<>("brightness", ValueType.POSITIVE_INTEGER, 0), agentLink));
+        }
+
+        onEvents = HomeAssistantBenchmarkFixtures.stateChangedEvents(entityCount, true);
+        offEvents = HomeAssistantBenchmarkFixtures.stateChangedEvents(entityCount, false);
+    }
+
+    @Benchmark
+    public Optional<List<HomeAssistantBaseAsset>> convertEntitiesToAssets() {
+        return entityProcessor.convertEntitiesToAssets(entities, Set.of());
+    }
+
+    // Every event changes the state of its entity so it is published
+    @Benchmark
+    public long dispatchChangedEvent() {
+        int index = eventIndex;
+        eventIndex = (index + 1) % (2 * entityCount);
+        int entity = index % entityCount;
+        boolean on = index < entityCount;
+        entityProcessor.handleEntityStateEvent(on ? onEvents[entity] : offEvents[entity]);
+        return publishedCount;
+    }
+
+    // Every event repeats the last state of its entity so it is suppressed
+    @Benchmark
+    public long dispatchUnchangedEvent() {
+        int entity = eventIndex;
+        eventIndex = (entity + 1) % entityCount;
+        entityProcessor.handleEntityStateEvent(offEvents[entity]);
+        return publishedCount;
+    }
+}
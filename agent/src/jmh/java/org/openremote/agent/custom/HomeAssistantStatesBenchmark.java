@@ -0,0 +1,86 @@
+package org.openremote.agent.custom;
+
+import com.fasterxml.jackson.databind.ObjectReader;
+import org.openremote.agent.custom.entities.HomeAssistantBaseEntity;
+import org.openremote.agent.custom.entities.HomeAssistantEntityState;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deserialization of the /api/states response (bound as a whole and streamed) and of state_changed websocket frames.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class HomeAssistantStatesBenchmark {
+
+    // The readers the protocol uses, so the benchmark measures the same configuration
+    private static final ObjectReader ENTITIES_READER = HomeAssistantJson.ENTITIES_READER;
+    private static final ObjectReader FRAME_READER = HomeAssistantJson.ENTITY_STATE_READER;
+
+    @Param({"100", "10000", "100000"})
+    public int entityCount;
+
+    protected byte[] statesJson;
+    protected String[] frames;
+    protected byte[][] frameBytes;
+    protected final HomeAssistantFrameClassifier classifier = new HomeAssistantFrameClassifier();
+    protected int frameIndex;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        statesJson = HomeAssistantBenchmarkFixtures.statesJson(entityCount);
+        frames = HomeAssistantBenchmarkFixtures.stateChangedFrames(Math.min(entityCount, 10000));
+        frameBytes = new byte[frames.length][];
+        for (int i = 0; i < frames.length; i++) {
+            frameBytes[i] = frames[i].getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    @Benchmark
+    public List<HomeAssistantBaseEntity> bindStates() throws Exception {
+        return ENTITIES_READER.readValue(statesJson);
+    }
+
+    @Benchmark
+    public boolean streamStates(Blackhole blackhole) throws Exception {
+        return HomeAssistantHttpClient.readEntities(new ByteArrayInputStream(statesJson), entityId -> true, blackhole::consume);
+    }
+
+    // Streaming when only a quarter of the entities (one domain) is imported
+    @Benchmark
+    public boolean streamStatesFiltered(Blackhole blackhole) throws Exception {
+        return HomeAssistantHttpClient.readEntities(new ByteArrayInputStream(statesJson), entityId -> entityId.startsWith("light."), blackhole::consume);
+    }
+
+    @Benchmark
+    public HomeAssistantEntityState parseStateChangedFrame() throws Exception {
+        String frame = frames[frameIndex];
+        frameIndex = (frameIndex + 1) % frames.length;
+        return FRAME_READER.readValue(frame);
+    }
+
+    // Frames as they arrive from the websocket are UTF-8 bytes; decoding them to a string first (as the fallback path
+    // does) is included in the string variant
+    @Benchmark
+    public HomeAssistantEntityState decodeFrameFromString() throws Exception {
+        byte[] frame = frameBytes[frameIndex];
+        frameIndex = (frameIndex + 1) % frameBytes.length;
+        String message = new String(frame, StandardCharsets.UTF_8);
+        classifier.classify(message);
+        return HomeAssistantJson.ENTITY_STATE_READER.readValue(message);
+    }
+
+    @Benchmark
+    public HomeAssistantEntityState decodeFrameFromBytes() throws Exception {
+        byte[] frame = frameBytes[frameIndex];
+        frameIndex = (frameIndex + 1) % frameBytes.length;
+        classifier.classify(frame, 0, frame.length);
+        return HomeAssistantJson.ENTITY_STATE_READER.readValue(frame);
+    }
+}
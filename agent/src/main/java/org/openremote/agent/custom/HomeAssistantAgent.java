@@ -26,6 +26,7 @@ import org.openremote.model.asset.agent.AgentDescriptor;
 import org.openremote.model.attribute.MetaItem;
 import org.openremote.model.value.AttributeDescriptor;
 import org.openremote.model.value.MetaItemType;
+import org.openremote.model.value.ValueDescriptor;
 import org.openremote.model.value.ValueType;
 
 import java.util.Optional;
@@ -46,12 +47,51 @@ import java.util.Optional;
 @Entity
 public class HomeAssistantAgent extends Agent<HomeAssistantAgent, HomeAssistantProtocol, HomeAssistantAgentLink> {
 
+    /**
+     * How state changes are subscribed to over the websocket; {@link #STATE_CHANGED_EVENTS} receives every state_changed
+     * event of the hub whereas {@link #LINKED_ENTITIES} uses subscribe_entities so Home Assistant only sends (compact)
+     * changes of the linked entities of imported entity types.
+     */
+    public enum SubscriptionMode {
+        STATE_CHANGED_EVENTS,
+        LINKED_ENTITIES
+    }
+
+    public static final ValueDescriptor<SubscriptionMode> SUBSCRIPTION_MODE_VALUE_DESCRIPTOR = new ValueDescriptor<>("homeAssistantSubscriptionMode", SubscriptionMode.class);
+
     public static final AttributeDescriptor<String> ACCESS_TOKEN = new AttributeDescriptor<>("AccessToken", ValueType.TEXT, new MetaItem<>(MetaItemType.SECRET));
 
     public static final AttributeDescriptor<String> HOME_ASSISTANT_URL = new AttributeDescriptor<>("HomeAssistantURL", ValueType.HTTP_URL);
 
     public static final AttributeDescriptor<String> IMPORTED_ENTITY_TYPES = new AttributeDescriptor<>("ImportedEntityTypes", ValueType.TEXT);
 
+    public static final AttributeDescriptor<Integer> REQUEST_TIMEOUT_MILLIS = new AttributeDescriptor<>("RequestTimeoutMillis", ValueType.POSITIVE_INTEGER);
+
+    public static final AttributeDescriptor<Integer> MAX_CONCURRENT_REQUESTS = new AttributeDescriptor<>("MaxConcurrentRequests", ValueType.POSITIVE_INTEGER);
+
+    public static final AttributeDescriptor<Integer> DISCOVERY_BATCH_SIZE = new AttributeDescriptor<>("DiscoveryBatchSize", ValueType.POSITIVE_INTEGER);
+
+    public static final ValueDescriptor<HomeAssistantIngestQueue.OverflowPolicy> INBOUND_OVERFLOW_POLICY_VALUE_DESCRIPTOR = new ValueDescriptor<>("homeAssistantInboundOverflowPolicy", HomeAssistantIngestQueue.OverflowPolicy.class);
+
+    public static final AttributeDescriptor<HomeAssistantIngestQueue.OverflowPolicy> INBOUND_OVERFLOW_POLICY = new AttributeDescriptor<>("InboundOverflowPolicy", INBOUND_OVERFLOW_POLICY_VALUE_DESCRIPTOR);
+
+    public static final AttributeDescriptor<Integer> INBOUND_QUEUE_CAPACITY = new AttributeDescriptor<>("InboundQueueCapacity", ValueType.POSITIVE_INTEGER);
+
+    public static final AttributeDescriptor<Boolean> USE_VIRTUAL_THREADS = new AttributeDescriptor<>("UseVirtualThreads", ValueType.BOOLEAN);
+
+    /**
+     * How long a command waits for compatible commands (same service and service data) to merge into one service call
+     * (10ms when not set); every command waits the full window, including commands that nothing can be merged with, so
+     * this is added to the latency of each write. 0 sends every command on its own without waiting.
+     */
+    public static final AttributeDescriptor<Integer> COMMAND_AGGREGATION_MILLIS = new AttributeDescriptor<>("CommandAggregationMillis", ValueType.POSITIVE_INTEGER);
+
+    public static final AttributeDescriptor<Integer> DIAGNOSTICS_INTERVAL_MILLIS = new AttributeDescriptor<>("DiagnosticsIntervalMillis", ValueType.POSITIVE_INTEGER);
+
+    public static final AttributeDescriptor<Object> DIAGNOSTICS = new AttributeDescriptor<>("Diagnostics", ValueType.JSON, new MetaItem<>(MetaItemType.READ_ONLY));
+
+    public static final AttributeDescriptor<SubscriptionMode> SUBSCRIPTION_MODE = new AttributeDescriptor<>("SubscriptionMode", SUBSCRIPTION_MODE_VALUE_DESCRIPTOR);
+
     public static final AgentDescriptor<HomeAssistantAgent, HomeAssistantProtocol, HomeAssistantAgentLink> DESCRIPTOR = new AgentDescriptor<>(
             HomeAssistantAgent.class, HomeAssistantProtocol.class, HomeAssistantAgentLink.class
     );
@@ -80,6 +120,42 @@ public class HomeAssistantAgent extends Agent<HomeAssistantAgent, HomeAssistantP
         return getAttributes().getValue(IMPORTED_ENTITY_TYPES);
     }
 
+    public Optional<Integer> getRequestTimeoutMillis() {
+        return getAttributes().getValue(REQUEST_TIMEOUT_MILLIS);
+    }
+
+    public Optional<Integer> getMaxConcurrentRequests() {
+        return getAttributes().getValue(MAX_CONCURRENT_REQUESTS);
+    }
+
+    public Optional<Integer> getDiscoveryBatchSize() {
+        return getAttributes().getValue(DISCOVERY_BATCH_SIZE);
+    }
+
+    public Optional<Integer> getInboundQueueCapacity() {
+        return getAttributes().getValue(INBOUND_QUEUE_CAPACITY);
+    }
+
+    public Optional<HomeAssistantIngestQueue.OverflowPolicy> getInboundOverflowPolicy() {
+        return getAttributes().getValue(INBOUND_OVERFLOW_POLICY);
+    }
+
+    public Optional<Boolean> getUseVirtualThreads() {
+        return getAttributes().getValue(USE_VIRTUAL_THREADS);
+    }
+
+    public Optional<Integer> getCommandAggregationMillis() {
+        return getAttributes().getValue(COMMAND_AGGREGATION_MILLIS);
+    }
+
+    public Optional<Integer> getDiagnosticsIntervalMillis() {
+        return getAttributes().getValue(DIAGNOSTICS_INTERVAL_MILLIS);
+    }
+
+    public Optional<SubscriptionMode> getSubscriptionMode() {
+        return getAttributes().getValue(SUBSCRIPTION_MODE);
+    }
+
 
 
 }
@@ -27,6 +27,14 @@ public class HomeAssistantAgentLink extends AgentLink<HomeAssistantAgentLink> {
 
     protected String domainId;
     protected String entityId;
+    // Numeric changes smaller than this absolute amount are not published
+    protected Double deadband;
+    // Numeric changes smaller than this percentage of the last published value are not published
+    protected Double deadbandPercent;
+    // Updates are published at most once per this interval, the latest value is published at the end of the interval
+    protected Integer minIntervalMillis;
+    // Updates within the deadband are still published when nothing was published for this long
+    protected Integer maxSilenceMillis;
 
     protected HomeAssistantAgentLink() {
     }
@@ -44,4 +52,40 @@ public class HomeAssistantAgentLink extends AgentLink<HomeAssistantAgentLink> {
     public Optional<String> getEntityId() {
         return Optional.ofNullable(entityId);
     }
+
+    public Optional<Double> getDeadband() {
+        return Optional.ofNullable(deadband);
+    }
+
+    public HomeAssistantAgentLink setDeadband(Double deadband) {
+        this.deadband = deadband;
+        return this;
+    }
+
+    public Optional<Double> getDeadbandPercent() {
+        return Optional.ofNullable(deadbandPercent);
+    }
+
+    public HomeAssistantAgentLink setDeadbandPercent(Double deadbandPercent) {
+        this.deadbandPercent = deadbandPercent;
+        return this;
+    }
+
+    public Optional<Integer> getMinIntervalMillis() {
+        return Optional.ofNullable(minIntervalMillis);
+    }
+
+    public HomeAssistantAgentLink setMinIntervalMillis(Integer minIntervalMillis) {
+        this.minIntervalMillis = minIntervalMillis;
+        return this;
+    }
+
+    public Optional<Integer> getMaxSilenceMillis() {
+        return Optional.ofNullable(maxSilenceMillis);
+    }
+
+    public HomeAssistantAgentLink setMaxSilenceMillis(Integer maxSilenceMillis) {
+        this.maxSilenceMillis = maxSilenceMillis;
+        return this;
+    }
 }
@@ -0,0 +1,227 @@
+package org.openremote.agent.custom;
+
+import org.openremote.agent.custom.assets.HomeAssistantBaseAsset;
+import org.openremote.agent.custom.entities.HomeAssistantBaseEntity;
+import org.openremote.agent.protocol.ProtocolAssetService;
+import org.openremote.container.util.UniqueIdentifierGenerator;
+import org.openremote.model.asset.Asset;
+import org.openremote.model.attribute.Attribute;
+import org.openremote.model.attribute.AttributeEvent;
+import org.openremote.model.query.AssetQuery;
+import org.openremote.model.syslog.SyslogCategory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import static org.openremote.model.syslog.SyslogCategory.PROTOCOL;
+import static org.openremote.model.value.MetaItemType.AGENT_LINK;
+
+/**
+ * Reconciles the entities of Home Assistant with the existing assets of the agent; the existing assets are loaded once
+ * and each discovered entity is classified as added, changed or unchanged by comparing its converted attribute values
+ * with the same attributes of the existing asset. Only the delta is applied: added entities are passed to the
+ * {@link HomeAssistantDiscoveryBatcher}, changed attributes are published as attribute events (the asset is only merged
+ * when attributes were added), attributes linked to an entity attribute that Home Assistant no longer reports are
+ * cleared, and assets of entities that no longer exist, and group assets left without entities, are removed by
+ * {@link #removeMissing}.
+ */
+public class HomeAssistantAssetReconciler {
+
+    private static final Logger LOG = SyslogCategory.getLogger(PROTOCOL, HomeAssistantAssetReconciler.class);
+
+    protected final HomeAssistantProtocol protocol;
+    protected final HomeAssistantEntityProcessor entityProcessor;
+    protected final ProtocolAssetService assetService;
+    // Key: Home Assistant entity id, Value: existing asset
+    protected final Map<String, Asset<?>> existingAssets = new HashMap<>();
+    // Key: Entity type, Value: existing group asset id
+    protected final Map<String, String> existingGroupIds = new HashMap<>();
+    protected final Set<String> seenEntityIds = new HashSet<>();
+    // Ids of the group assets that added entities were placed in
+    protected final Set<String> addedParentIds = new HashSet<>();
+    protected int addedCount;
+    protected int changedCount;
+    protected int unchangedCount;
+    protected int removedCount;
+
+    public HomeAssistantAssetReconciler(HomeAssistantProtocol protocol, HomeAssistantEntityProcessor entityProcessor, ProtocolAssetService assetService) {
+        this.protocol = protocol;
+        this.entityProcessor = entityProcessor;
+        this.assetService = assetService;
+    }
+
+    // Loads the existing assets of the agent
+    public void load() {
+        String agentId = protocol.getAgent().getId();
+        for (Asset<?> asset : assetService.findAssets(agentId, new AssetQuery().attributeName(HomeAssistantBaseAsset.ENTITY_ID.getName()))) {
+            if (isGroup(agentId, asset)) {
+                existingGroupIds.putIfAbsent(asset.getName(), asset.getId());
+            } else {
+                asset.getAttributes().getValue(HomeAssistantBaseAsset.ENTITY_ID)
+                    .ifPresent(entityId -> existingAssets.put(entityId, asset));
+            }
+        }
+    }
+
+    public Map<String, String> getExistingGroupIds() {
+        return existingGroupIds;
+    }
+
+    // Group assets are created by the discovery as direct children of the agent named after their entity type, with the
+    // asset type of that entity type and a generated entity id (entity ids of Home Assistant always contain a dot)
+    protected boolean isGroup(String agentId, Asset<?> asset) {
+        if (!agentId.equals(asset.getParentId()) || asset.getName() == null) {
+            return false;
+        }
+        String entityId = asset.getAttributes().getValue(HomeAssistantBaseAsset.ENTITY_ID).orElse(null);
+        if (entityId == null || entityId.contains(".")) {
+            return false;
+        }
+        return entityProcessor.initiateAssetClass(Map.of("friendly_name", asset.getName()), asset.getName(), entityId).getClass() == asset.getClass();
+    }
+
+    public void reconcile(HomeAssistantBaseEntity entity, HomeAssistantDiscoveryBatcher batcher) {
+        seenEntityIds.add(entity.getEntityId());
+        HomeAssistantBaseAsset converted = entityProcessor.convertEntityToAsset(entity);
+        Asset<?> existing = existingAssets.get(entity.getEntityId());
+
+        if (existing == null) {
+            converted.setId(UniqueIdentifierGenerator.generateId());
+            batcher.add(converted);
+            addedParentIds.add(converted.getParentId());
+            addedCount++;
+            return;
+        }
+
+        if (attributesEqual(converted, existing) && getRemovedAttributes(converted, existing).isEmpty()) {
+            unchangedCount++;
+            return;
+        }
+
+        changedCount++;
+        applyChanges(converted, existing);
+    }
+
+    /**
+     * Removes the assets of entities (of imported entity types) that were not seen during this reconciliation; must only
+     * be called when all entities of Home Assistant were reconciled.
+     */
+    public void removeMissing() {
+        List<String> removedAssetIds = new ArrayList<>();
+        Set<String> usedGroupIds = new HashSet<>(addedParentIds);
+        existingAssets.forEach((entityId, asset) -> {
+            if (!seenEntityIds.contains(entityId) && entityProcessor.isEntityImported(entityId)) {
+                removedAssetIds.add(asset.getId());
+            } else {
+                usedGroupIds.add(asset.getParentId());
+            }
+        });
+
+        if (!removedAssetIds.isEmpty()) {
+            LOG.info("Removing " + removedAssetIds.size() + " assets of entities no longer present in Home Assistant: " + protocol.getAgent().getId());
+            assetService.deleteAssets(removedAssetIds.toArray(new String[0]));
+            removedCount = removedAssetIds.size();
+        }
+
+        // Only groups of imported entity types are removed, their entities are the only ones that can have gone missing
+        List<String> emptyGroupIds = new ArrayList<>();
+        existingGroupIds.forEach((entityType, groupId) -> {
+            if (!usedGroupIds.contains(groupId) && entityProcessor.isEntityTypeImported(entityType)) {
+                emptyGroupIds.add(groupId);
+            }
+        });
+        if (!emptyGroupIds.isEmpty()) {
+            LOG.info("Removing " + emptyGroupIds.size() + " group assets without entities: " + protocol.getAgent().getId());
+            assetService.deleteAssets(emptyGroupIds.toArray(new String[0]));
+            removedCount += emptyGroupIds.size();
+        }
+    }
+
+    public String getSummary() {
+        return "added=" + addedCount + ", changed=" + changedCount + ", unchanged=" + unchangedCount + ", removed=" + removedCount;
+    }
+
+    @SuppressWarnings("unchecked")
+    protected void applyChanges(HomeAssistantBaseAsset converted, Asset<?> existing) {
+        List<AttributeEvent> events = new ArrayList<>();
+        boolean attributesAdded = false;
+
+        for (Attribute<?> attribute : getAttributes(converted)) {
+            Object value = attribute.getValue().orElse(null);
+            var existingAttribute = existing.getAttributes().get(attribute.getName());
+            if (existingAttribute.isEmpty()) {
+                existing.getAttributes().addOrReplace(attribute);
+                attributesAdded = true;
+            } else if (!HomeAssistantValueConverter.valueEquals(existingAttribute.get().getValue().orElse(null), value)) {
+                ((Attribute<Object>) existingAttribute.get()).setValue(value);
+                events.add(new AttributeEvent(existing.getId(), attribute.getName(), value));
+            }
+        }
+
+        // Attributes are kept (with their configuration) when Home Assistant stops reporting them, e.g. the brightness
+        // of a light that is off, but their value is cleared
+        for (Attribute<?> attribute : getRemovedAttributes(converted, existing)) {
+            attribute.setValue(null);
+            events.add(new AttributeEvent(existing.getId(), attribute.getName(), null));
+        }
+
+        if (attributesAdded) {
+            assetService.mergeAsset(existing);
+            return;
+        }
+
+        for (AttributeEvent event : events) {
+            var linkedAttribute = protocol.getRoutingTable().get(converted.getEntityId(), event.getRef());
+            if (linkedAttribute != null) {
+                linkedAttribute.onValueSet(event.getValue().orElse(null));
+                protocol.handleExternalAttributeChange(event);
+            } else {
+                assetService.sendAttributeEvent(event);
+            }
+        }
+    }
+
+    // Returns true if every attribute of the converted asset has an equal value on the existing asset; boxed numbers of
+    // different types (e.g. after persistence) and arrays are compared by value
+    protected static boolean attributesEqual(Asset<?> converted, Asset<?> existing) {
+        for (Attribute<?> attribute : getAttributes(converted)) {
+            Object value = attribute.getValue().orElse(null);
+            Object existingValue = existing.getAttributes().get(attribute.getName()).flatMap(Attribute::getValue).orElse(null);
+            if (!HomeAssistantValueConverter.valueEquals(existingValue, value)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Returns the attributes of the existing asset that have a value and are linked to an attribute of the entity that is
+    // missing from the converted asset
+    protected List<Attribute<?>> getRemovedAttributes(HomeAssistantBaseAsset converted, Asset<?> existing) {
+        List<Attribute<?>> removed = new ArrayList<>();
+        for (Attribute<?> attribute : getAttributes(existing)) {
+            if (attribute.getValue().isEmpty() || converted.getAttributes().get(attribute.getName()).isPresent()) {
+                continue;
+            }
+            boolean linkedToEntity = attribute.getMetaValue(AGENT_LINK)
+                .filter(agentLink -> agentLink instanceof HomeAssistantAgentLink
+                    && protocol.getAgent().getId().equals(agentLink.getId())
+                    && ((HomeAssistantAgentLink) agentLink).getEntityId().filter(converted.getEntityId()::equals).isPresent())
+                .isPresent();
+            if (linkedToEntity) {
+                removed.add(attribute);
+            }
+        }
+        return removed;
+    }
+
+    protected static List<Attribute<?>> getAttributes(Asset<?> asset) {
+        List<Attribute<?>> attributes = new ArrayList<>();
+        asset.getAttributes().forEach(attributes::add);
+        return attributes;
+    }
+}
@@ -0,0 +1,172 @@
+package org.openremote.agent.custom;
+
+import org.openremote.model.asset.Asset;
+import org.openremote.model.attribute.Attribute;
+import org.openremote.model.value.AttributeDescriptor;
+import org.openremote.model.value.ValueDescriptor;
+import org.openremote.model.value.ValueType;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registry of the converters from Home Assistant entity attributes to OpenRemote attributes, keyed by domain (entity type)
+ * and attribute key. A converter is compiled the first time a key is seen with a given kind of value (integer, decimal,
+ * boolean string, text, list etc.) and then reused for all entities and events of that domain, so the attribute descriptors
+ * are only created once per schema rather than once per attribute of every entity.
+ */
+public class HomeAssistantAttributeConverters {
+
+    public static final AttributeDescriptor<Boolean> STATE_BOOLEAN = new AttributeDescriptor<>("state", ValueType.BOOLEAN);
+    public static final AttributeDescriptor<String> STATE_TEXT = new AttributeDescriptor<>("state", ValueType.TEXT);
+
+    // The kind of a Home Assistant attribute value, determines the value type of the OpenRemote attribute
+    protected enum ValueKind {
+        INTEGER,
+        NUMBER,
+        BOOLEAN,
+        TEXT,
+        NUMBER_ARRAY,
+        TEXT_ARRAY,
+        JSON,
+        UNSUPPORTED
+    }
+
+    /**
+     * Converts a Home Assistant attribute value to the value of one (or more) OpenRemote attributes.
+     */
+    public static class AttributeConverter {
+
+        protected final AttributeDescriptor<?>[] descriptors;
+
+        protected AttributeConverter(AttributeDescriptor<?>... descriptors) {
+            this.descriptors = descriptors;
+        }
+
+        public AttributeDescriptor<?>[] getDescriptors() {
+            return descriptors;
+        }
+
+        @SuppressWarnings("unchecked")
+        public void apply(Asset<?> asset, Object value) {
+            for (AttributeDescriptor<?> descriptor : descriptors) {
+                Object converted = HomeAssistantValueConverter.convert(value, descriptor.getType().getType());
+                if (converted != null) {
+                    Attribute<Object> attribute = asset.getAttributes().getOrCreate((AttributeDescriptor<Object>) descriptor);
+                    attribute.setValue(converted);
+                }
+            }
+        }
+    }
+
+    // Compiled converters of a single attribute key, indexed by value kind; a null array marks a key that is not imported
+    protected static class KeyConverters {
+        protected final AttributeConverter[] byKind;
+
+        protected KeyConverters(boolean imported) {
+            this.byKind = imported ? new AttributeConverter[ValueKind.values().length] : null;
+        }
+    }
+
+    // Key: Domain (entity type), Value: (Key: Attribute key, Value: Converters)
+    protected final Map<String, Map<String, KeyConverters>> converters = new ConcurrentHashMap<>();
+
+    // Converts the attribute value and adds it to the asset, values of keys or kinds that are not imported are ignored
+    public void apply(String domain, String key, Object value, Asset<?> asset) {
+        AttributeConverter converter = getConverter(domain, key, value);
+        if (converter != null) {
+            converter.apply(asset, value);
+        }
+    }
+
+    // Returns the converter for the attribute key and value or null if the attribute is not imported
+    public AttributeConverter getConverter(String domain, String key, Object value) {
+        if (key == null || key.isEmpty() || value == null) {
+            return null;
+        }
+
+        KeyConverters keyConverters = converters
+            .computeIfAbsent(domain, d -> new ConcurrentHashMap<>())
+            .computeIfAbsent(key, k -> new KeyConverters(isImported(k)));
+
+        if (keyConverters.byKind == null) {
+            return null;
+        }
+
+        ValueKind kind = getValueKind(value);
+        if (kind == ValueKind.UNSUPPORTED) {
+            return null;
+        }
+
+        AttributeConverter converter = keyConverters.byKind[kind.ordinal()];
+        if (converter == null) {
+            // Benign race, compiling twice yields equal converters
+            converter = compile(domain, key, kind);
+            keyConverters.byKind[kind.ordinal()] = converter;
+        }
+        return converter;
+    }
+
+    public int getCompiledKeyCount() {
+        return converters.values().stream().mapToInt(Map::size).sum();
+    }
+
+    // Attributes describing capabilities or limits (min_/max_ values, supported features) are not useful for the user
+    protected static boolean isImported(String key) {
+        return !key.startsWith("min_") && !key.startsWith("max_") && !key.startsWith("supported_");
+    }
+
+    // The kind only depends on the type of the value so an attribute keeps its value type whatever value is seen first;
+    // longs are numbers as they usually are integers that did not fit (e.g. timestamps) and may be decimal next time
+    protected static ValueKind getValueKind(Object value) {
+        if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            return ValueKind.INTEGER;
+        }
+        if (value instanceof Number) {
+            return ValueKind.NUMBER;
+        }
+        if (value instanceof Boolean) {
+            return ValueKind.BOOLEAN;
+        }
+        if (value instanceof String string) {
+            return switch (string) {
+                case "on", "off", "true", "false" -> ValueKind.BOOLEAN;
+                default -> ValueKind.TEXT; // e.g. unit_of_measurement, device_class or friendly_name
+            };
+        }
+        if (value instanceof List<?> list) {
+            if (!list.isEmpty() && list.stream().allMatch(Number.class::isInstance)) {
+                return ValueKind.NUMBER_ARRAY;
+            }
+            if (!list.isEmpty() && list.stream().allMatch(String.class::isInstance)) {
+                return ValueKind.TEXT_ARRAY;
+            }
+            return ValueKind.JSON;
+        }
+        if (value instanceof Map) {
+            return ValueKind.JSON;
+        }
+        return ValueKind.UNSUPPORTED;
+    }
+
+    protected static AttributeConverter compile(String domain, String key, ValueKind kind) {
+        ValueDescriptor<?> valueType = switch (kind) {
+            case INTEGER -> ValueType.INTEGER;
+            case NUMBER -> ValueType.NUMBER;
+            case BOOLEAN -> ValueType.BOOLEAN;
+            case TEXT -> ValueType.TEXT;
+            case NUMBER_ARRAY -> ValueType.NUMBER.asArray();
+            case TEXT_ARRAY -> ValueType.TEXT.asArray();
+            default -> ValueType.JSON;
+        };
+
+        AttributeDescriptor<?> descriptor = new AttributeDescriptor<>(key, valueType);
+
+        // The brightness of a light that is off is only reported as off_brightness
+        if (key.equals("off_brightness") && kind == ValueKind.INTEGER) {
+            return new AttributeConverter(descriptor, new AttributeDescriptor<>("brightness", ValueType.INTEGER));
+        }
+        return new AttributeConverter(descriptor);
+    }
+}
@@ -0,0 +1,107 @@
+package org.openremote.agent.custom;
+
+import org.openremote.agent.custom.assets.HomeAssistantBaseAsset;
+import org.openremote.container.util.UniqueIdentifierGenerator;
+import org.openremote.model.asset.AssetTreeNode;
+import org.openremote.model.syslog.SyslogCategory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+import static org.openremote.model.syslog.SyslogCategory.PROTOCOL;
+
+/**
+ * Builds the group (entity type) to entity {@link AssetTreeNode} tree of a discovery and hands it to the asset consumer
+ * in batches of {@link #batchSize} assets. A group node is included (with its children) in the batch in which its first
+ * entity is discovered; children discovered in later batches are top level nodes with their parent id set to the group.
+ */
+public class HomeAssistantDiscoveryBatcher {
+
+    private static final Logger LOG = SyslogCategory.getLogger(PROTOCOL, HomeAssistantDiscoveryBatcher.class);
+
+    protected final HomeAssistantAgent agent;
+    protected final HomeAssistantEntityProcessor entityProcessor;
+    protected final Consumer<AssetTreeNode[]> assetConsumer;
+    protected final int batchSize;
+    // Key: Asset type name, Value: Parent (group asset) id
+    protected final Map<String, String> assetTypeGroupIds = new HashMap<>();
+    protected final List<AssetTreeNode> batchNodes = new ArrayList<>();
+    protected final Map<String, AssetTreeNode> batchGroupNodes = new HashMap<>();
+    protected int batchAssetCount;
+    protected int submittedAssetCount;
+    protected int batchCount;
+
+    public HomeAssistantDiscoveryBatcher(HomeAssistantAgent agent, HomeAssistantEntityProcessor entityProcessor, Consumer<AssetTreeNode[]> assetConsumer, int batchSize) {
+        this.agent = agent;
+        this.entityProcessor = entityProcessor;
+        this.assetConsumer = assetConsumer;
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    // Uses the given group asset id for the entity type rather than creating a new group asset
+    public void addExistingGroup(String entityType, String groupAssetId) {
+        assetTypeGroupIds.put(entityType, groupAssetId);
+    }
+
+    public void add(HomeAssistantBaseAsset asset) {
+        String entityType = HomeAssistantEntityProcessor.getEntityTypeFromEntityId(asset.getEntityId());
+        asset.setParentId(getOrCreateGroup(entityType));
+        asset.setRealm(agent.getRealm());
+
+        AssetTreeNode node = new AssetTreeNode(asset);
+        AssetTreeNode groupNode = batchGroupNodes.get(entityType);
+        if (groupNode != null) {
+            groupNode.addChild(node);
+        } else {
+            batchNodes.add(node);
+        }
+
+        if (++batchAssetCount >= batchSize) {
+            flush();
+        }
+    }
+
+    // Submits the current batch (if any) to the asset consumer
+    public void flush() {
+        if (batchNodes.isEmpty()) {
+            return;
+        }
+        assetConsumer.accept(batchNodes.toArray(new AssetTreeNode[0]));
+        submittedAssetCount += batchAssetCount;
+        batchCount++;
+        LOG.info("Asset discovery progress: " + submittedAssetCount + " assets submitted in " + batchCount + " batch(es): " + agent.getId());
+
+        batchNodes.clear();
+        batchGroupNodes.clear();
+        batchAssetCount = 0;
+    }
+
+    public int getSubmittedAssetCount() {
+        return submittedAssetCount;
+    }
+
+    protected String getOrCreateGroup(String entityType) {
+        String groupId = assetTypeGroupIds.get(entityType);
+        if (groupId != null) {
+            return groupId;
+        }
+
+        Map<String, Object> nameMap = new HashMap<>();
+        nameMap.put("friendly_name", entityType);
+        HomeAssistantBaseAsset groupAsset = entityProcessor.initiateAssetClass(nameMap, entityType, UniqueIdentifierGenerator.generateId());
+        groupAsset.setId(UniqueIdentifierGenerator.generateId());
+        groupAsset.setParentId(agent.getId());
+        groupAsset.setRealm(agent.getRealm());
+
+        AssetTreeNode groupNode = new AssetTreeNode(groupAsset);
+        assetTypeGroupIds.put(entityType, groupAsset.getId());
+        batchGroupNodes.put(entityType, groupNode);
+        batchNodes.add(groupNode);
+        batchAssetCount++;
+        return groupAsset.getId();
+    }
+}
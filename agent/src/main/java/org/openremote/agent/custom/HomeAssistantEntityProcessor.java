@@ -11,14 +11,14 @@ import org.openremote.model.attribute.AttributeEvent;
 import org.openremote.model.attribute.MetaItem;
 import org.openremote.model.query.AssetQuery;
 import org.openremote.model.syslog.SyslogCategory;
-import org.openremote.model.value.AttributeDescriptor;
-import org.openremote.model.value.ValueType;
 
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.logging.Logger;
+import java.util.stream.Collectors;
 
 import static org.openremote.agent.custom.entities.HomeAssistantEntityType.*;
 import static org.openremote.model.syslog.SyslogCategory.PROTOCOL;
@@ -32,6 +32,7 @@ public class HomeAssistantEntityProcessor {
     private final HomeAssistantProtocol protocol;
     private final ProtocolAssetService protocolAssetService;
     private final String agentId;
+    private final HomeAssistantAttributeConverters attributeConverters = new HomeAssistantAttributeConverters();
 
     public HomeAssistantEntityProcessor(HomeAssistantProtocol protocol, ProtocolAssetService assetService) {
         this.protocol = protocol;
@@ -39,7 +40,7 @@ public class HomeAssistantEntityProcessor {
         this.agentId = protocol.getAgent().getId();
     }
 
-    // Processes a Home Assistant entity state event and updates the appropriate asset
+    // Processes a Home Assistant entity state event and updates the linked attributes of the appropriate asset
     public void handleEntityStateEvent(HomeAssistantEntityStateEvent event) {
         var entityId = event.getData().getEntityId();
         var entityTypeId = getEntityTypeFromEntityId(entityId);
@@ -48,46 +49,74 @@ public class HomeAssistantEntityProcessor {
             return;
         }
 
-        var asset = findAssetByEntityId(entityId);
-        if (asset == null)
+        long lookupStartNanos = System.nanoTime();
+        var linkedAttributes = protocol.getRoutingTable().get(entityId);
+        protocol.getMetrics().onAssetLookup(System.nanoTime() - lookupStartNanos);
+        if (linkedAttributes == null)
             return;
 
-        processEntityStateEvent(asset, event);
+        processEntityStateEvent(linkedAttributes, event.getData().getNewBaseEntity());
+    }
+
+    // Compares the given current entity state with the last known values of its linked attributes and only updates the
+    // attributes that differ; used to catch up on changes that were missed while the websocket was disconnected
+    public void resynchroniseEntity(HomeAssistantBaseEntity entity) {
+        var linkedAttributes = protocol.getRoutingTable().get(entity.getEntityId());
+        if (linkedAttributes == null)
+            return;
+
+        processEntityStateEvent(linkedAttributes, entity);
     }
 
     // Converts a list of Home Assistant entities to a list of OpenRemote assets
     public Optional<List<HomeAssistantBaseAsset>> convertEntitiesToAssets(List<HomeAssistantBaseEntity> entities) {
-        List<String> currentAssets = protocolAssetService.findAssets(agentId, new AssetQuery().attributeName("HomeAssistantEntityId")).stream()
+        return convertEntitiesToAssets(entities, findCurrentEntityIds());
+    }
+
+    // Retrieves the entity ids of the assets that already exist for this agent
+    public Set<String> findCurrentEntityIds() {
+        return protocolAssetService.findAssets(agentId, new AssetQuery().attributeName("HomeAssistantEntityId")).stream()
                 .map(asset -> asset.getAttributes().getValue("HomeAssistantEntityId").orElseThrow().toString())
-                .toList();
+                .collect(Collectors.toSet());
+    }
+
+    // Converts a list of Home Assistant entities to a list of OpenRemote assets, skipping the given existing entity ids
+    public Optional<List<HomeAssistantBaseAsset>> convertEntitiesToAssets(List<HomeAssistantBaseEntity> entities, Set<String> currentAssets) {
         List<HomeAssistantBaseAsset> assets = new ArrayList<>();
 
         for (HomeAssistantBaseEntity entity : entities) {
-            Map<String, Object> homeAssistantAttributes = entity.getAttributes();
             String entityId = entity.getEntityId();
-            String entityType = getEntityTypeFromEntityId(entityId);
 
-            if (currentAssets.contains(entityId) || entityCanBeSkipped(entityType)) {
+            if (currentAssets.contains(entityId) || entityCanBeSkipped(getEntityTypeFromEntityId(entityId))) {
                 continue;
             }
 
-            HomeAssistantBaseAsset asset = initiateAssetClass(homeAssistantAttributes, entityType, entityId);
+            HomeAssistantBaseAsset asset = convertEntityToAsset(entity);
+            asset.setId(UniqueIdentifierGenerator.generateId());
+            assets.add(asset);
+        }
+        return Optional.of(assets);
+    }
 
-            handleStateConversion(entity, asset);
+    // Converts a Home Assistant entity to an OpenRemote asset (without id) with all attributes linked to this agent
+    public HomeAssistantBaseAsset convertEntityToAsset(HomeAssistantBaseEntity entity) {
+        Map<String, Object> homeAssistantAttributes = entity.getAttributes() != null ? entity.getAttributes() : Map.of();
+        String entityId = entity.getEntityId();
+        String entityType = getEntityTypeFromEntityId(entityId);
 
-            for (Map.Entry<String, Object> entry : homeAssistantAttributes.entrySet()) {
-                handleAttributeConversion(entry, asset);
-            }
+        HomeAssistantBaseAsset asset = initiateAssetClass(homeAssistantAttributes, entityType, entityId);
 
-            asset.getAttributes().forEach(attribute -> {
-                var agentLink = new HomeAssistantAgentLink(agentId, entityType, entity.getEntityId());
-                attribute.addOrReplaceMeta(new MetaItem<>(AGENT_LINK, agentLink));
-            });
+        handleStateConversion(entity, asset);
 
-            asset.setId(UniqueIdentifierGenerator.generateId());
-            assets.add(asset);
+        for (Map.Entry<String, Object> entry : homeAssistantAttributes.entrySet()) {
+            attributeConverters.apply(entityType, entry.getKey(), entry.getValue(), asset);
         }
-        return Optional.of(assets);
+
+        asset.getAttributes().forEach(attribute -> {
+            var agentLink = new HomeAssistantAgentLink(agentId, entityType, entityId);
+            attribute.addOrReplaceMeta(new MetaItem<>(AGENT_LINK, agentLink));
+        });
+        return asset;
     }
 
     // Initiates the appropriate asset class based on the given entity type
@@ -103,94 +132,110 @@ public class HomeAssistantEntityProcessor {
     }
 
 
-    // Handles the conversion of Home Assistant attributes to OpenRemote attributes
-    private void handleAttributeConversion(Map.Entry<String, Object> entry, Asset<?> asset) {
-        LOG.info("Processing attribute: " + entry.getKey() + " with value: " + entry.getValue());
-        var attributeValue = entry.getValue();
-        var attributeKey = entry.getKey();
-
-        if (entry.getKey().isEmpty() || entry.getValue() == null)
-            return;
-
-        //Do not import attribute keys that contain min, max, or supported_ (these are not useful for the user)
-        if (attributeKey.contains("min") || attributeKey.contains("max") || attributeKey.contains("supported_features"))
-            return;
-
-        if (attributeValue instanceof Integer) {
-            Attribute<Integer> attribute = asset.getAttributes().getOrCreate(new AttributeDescriptor<>(attributeKey, ValueType.POSITIVE_INTEGER));
-            attribute.setValue((Integer) attributeValue);
-
-            if (attributeKey.equals("off_brightness")) { //
-                attribute = asset.getAttributes().getOrCreate(new AttributeDescriptor<>("brightness", ValueType.POSITIVE_INTEGER));
-                attribute.setValue((Integer) attributeValue);
-            }
-            return; // skip the rest of the checks
-        }
-
-        //String based boolean check (true, false, on, off)
-        if (attributeValue instanceof String) {
-            if (attributeValue.equals("on") || attributeValue.equals("off") || attributeValue.equals("true") || attributeValue.equals("false")) {
-                Attribute<Boolean> attribute = asset.getAttributes().getOrCreate(new AttributeDescriptor<>(attributeKey, ValueType.BOOLEAN));
-                attribute.setValue(attributeValue.equals("on") || attributeValue.equals("true"));
-            }
-        }
-    }
-
     // Handles the conversion of Home Assistant state to OpenRemote state
     private void handleStateConversion(HomeAssistantBaseEntity entity, Asset<?> asset) {
         var assetState = entity.getState();
         if (assetState.equals("on") || assetState.equals("off") || assetState.equals("true") || assetState.equals("false")) {
-            Attribute<Boolean> attribute = asset.getAttributes().getOrCreate(new AttributeDescriptor<>("state", ValueType.BOOLEAN));
+            Attribute<Boolean> attribute = asset.getAttributes().getOrCreate(HomeAssistantAttributeConverters.STATE_BOOLEAN);
             attribute.setValue(assetState.equals("on") || assetState.equals("true"));
         } else {
-            Attribute<String> attribute = asset.getAttributes().getOrCreate(new AttributeDescriptor<>("state", ValueType.TEXT));
+            Attribute<String> attribute = asset.getAttributes().getOrCreate(HomeAssistantAttributeConverters.STATE_TEXT);
             attribute.setValue(assetState);
         }
     }
 
 
-    @SuppressWarnings("unchecked") // suppress unchecked cast warnings for attribute.get() calls
-    private void processEntityStateEvent(Asset<?> asset, HomeAssistantEntityStateEvent event) {
-
-        for (Map.Entry<String, Object> eventAttribute : event.getData().getNewBaseEntity().getAttributes().entrySet()) {
-            var assetAttribute = asset.getAttributes().get(eventAttribute.getKey());
-            if (assetAttribute.isEmpty())
-                continue;
-            if (assetAttribute.get().getValue().equals(eventAttribute.getValue()))
-                continue;
+    // Publishes the values of the entity (converted to the type of the linked attribute) that differ from the last known values
+    private void processEntityStateEvent(Map<String, List<HomeAssistantLinkedAttribute>> linkedAttributes, HomeAssistantBaseEntity newEntity) {
+        if (newEntity == null)
+            return; // entity was removed from Home Assistant
 
-            AttributeEvent attributeEvent = new AttributeEvent(asset.getId(), assetAttribute.get().getName(), eventAttribute.getValue());
-            protocol.handleExternalAttributeChange(attributeEvent);
+        if (newEntity.getAttributes() != null) {
+            for (Map.Entry<String, Object> eventAttribute : newEntity.getAttributes().entrySet()) {
+                var links = linkedAttributes.get(eventAttribute.getKey());
+                if (links != null) {
+                    for (HomeAssistantLinkedAttribute linkedAttribute : links) {
+                        publishIfChanged(linkedAttribute, eventAttribute.getValue());
+                    }
+                }
+            }
         }
 
-        var stateAttribute = asset.getAttribute("state");
-        if (stateAttribute.isPresent()) {
-            AttributeEvent attributeEvent;
-            if (isAttributeAssignableFrom(stateAttribute.get(), Boolean.class)) {
-                Attribute<Boolean> attribute = (Attribute<Boolean>) stateAttribute.get();
-                boolean value = event.getData().getNewBaseEntity().getState().equals("on") || event.getData().getNewBaseEntity().getState().equals("true");
-                attributeEvent = new AttributeEvent(asset.getId(), attribute.getName(), value);
-                protocol.handleExternalAttributeChange(attributeEvent);
-            }
-            else if (isAttributeAssignableFrom(stateAttribute.get(), String.class)) {
-                Attribute<String> attribute = (Attribute<String>) stateAttribute.get();
-                attributeEvent = new AttributeEvent(asset.getId(), attribute.getName(), event.getData().getNewBaseEntity().getState());
-                protocol.handleExternalAttributeChange(attributeEvent);
+        var stateLinks = linkedAttributes.get("state");
+        if (stateLinks != null && newEntity.getState() != null) {
+            for (HomeAssistantLinkedAttribute stateAttribute : stateLinks) {
+                publishIfChanged(stateAttribute, newEntity.getState());
             }
         }
 
     }
 
-    // Checks whether the attribute<?> can be assigned from the given class, allowing safe casting
-    private Boolean isAttributeAssignableFrom(Attribute<?> attribute, Class<?> clazz) {
-        return attribute.getType().getType().isAssignableFrom(clazz);
+    private void publishIfChanged(HomeAssistantLinkedAttribute linkedAttribute, Object eventValue) {
+        Object value = HomeAssistantValueConverter.convert(eventValue, linkedAttribute.getValueType());
+        if (value == null)
+            return; // cannot be represented by the attribute type (e.g. unavailable state of a boolean attribute)
+
+        // The filter of the attribute compares the value itself as an equal value still has to drop a deferred value and
+        // can be published again after the maximum silence
+        if (linkedAttribute.getUpdateFilter() == null && HomeAssistantValueConverter.valueEquals(linkedAttribute.getLastValue(), value)) {
+            protocol.getMetrics().onEventSuppressed();
+            return;
+        }
+        publishAttributeChange(linkedAttribute, value);
     }
 
-    // Retrieves the appropriate asset based on the given home assistant entity id
-    private Asset<?> findAssetByEntityId(String homeAssistantEntityId) {
+    public HomeAssistantAttributeConverters getAttributeConverters() {
+        return attributeConverters;
+    }
 
-        return protocolAssetService.findAssets(agentId, new AssetQuery().attributeName("HomeAssistantEntityId")).stream()
-                .filter(asset -> asset.getAttributes().getValue("HomeAssistantEntityId").orElseThrow().toString().equals(homeAssistantEntityId)).findFirst().orElse(null);
+    public long getPublishedCount() {
+        return protocol.getMetrics().getEventsPublished();
+    }
+
+    public long getSuppressedCount() {
+        return protocol.getMetrics().getEventsSuppressed();
+    }
+
+    private void publishAttributeChange(HomeAssistantLinkedAttribute linkedAttribute, Object value) {
+        var filter = linkedAttribute.getUpdateFilter();
+        if (filter != null) {
+            long now = System.currentTimeMillis();
+            synchronized (filter) {
+                switch (filter.evaluate(value, now)) {
+                    case SUPPRESS -> {
+                        protocol.getMetrics().onEventSuppressed();
+                        return;
+                    }
+                    case DEFER -> {
+                        if (filter.scheduleFlush()) {
+                            protocol.schedule(() -> publishDeferredAttributeChange(linkedAttribute), filter.getDeferredUntilMillis() - now);
+                        }
+                        return;
+                    }
+                    case PUBLISH -> filter.onPublished(value, now);
+                }
+            }
+        }
+        sendAttributeChange(linkedAttribute, value);
+    }
+
+    private void publishDeferredAttributeChange(HomeAssistantLinkedAttribute linkedAttribute) {
+        var filter = linkedAttribute.getUpdateFilter();
+        Object value;
+        synchronized (filter) {
+            if (!filter.takeDeferredValue(System.currentTimeMillis())) {
+                return;
+            }
+            value = filter.getLastPublishedValue();
+        }
+        sendAttributeChange(linkedAttribute, value);
+    }
+
+    private void sendAttributeChange(HomeAssistantLinkedAttribute linkedAttribute, Object value) {
+        protocol.getMetrics().onEventPublished();
+        linkedAttribute.setLastValue(value);
+        AttributeEvent attributeEvent = new AttributeEvent(linkedAttribute.getAssetId(), linkedAttribute.getAttributeName(), value);
+        protocol.handleExternalAttributeChange(attributeEvent);
     }
 
     // Retrieves the entity type from the given home assistant entity id (format <entity_type>.<entity_id>)
@@ -199,6 +244,15 @@ public class HomeAssistantEntityProcessor {
         return parts[0];
     }
 
+    // Checks whether the given entity id belongs to one of the imported entity types (domains)
+    public boolean isEntityImported(String entityId) {
+        return !entityCanBeSkipped(getEntityTypeFromEntityId(entityId));
+    }
+
+    public boolean isEntityTypeImported(String entityType) {
+        return !entityCanBeSkipped(entityType);
+    }
+
     private boolean entityCanBeSkipped(String entityType) {
         //split get imported entity types string by comma
         //check if the entity type is in the list
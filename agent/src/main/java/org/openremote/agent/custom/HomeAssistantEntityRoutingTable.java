@@ -0,0 +1,82 @@
+package org.openremote.agent.custom;
+
+import org.openremote.model.attribute.AttributeRef;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Routing table from Home Assistant entity id to the linked attributes of that entity (keyed by attribute name); the
+ * table is maintained by {@link HomeAssistantProtocol#doLinkAttribute} and {@link HomeAssistantProtocol#doUnlinkAttribute}
+ * so that inbound state changes can be dispatched with a single map lookup. Several assets can link the same entity
+ * under the same attribute name, so every attribute name holds a list of links which is replaced (never modified) on
+ * change and can be iterated without locking.
+ */
+public class HomeAssistantEntityRoutingTable {
+
+    protected final Map<String, Map<String, List<HomeAssistantLinkedAttribute>>> routes = new ConcurrentHashMap<>();
+
+    // Adds the link, replacing an earlier link of the same attribute
+    public void link(String entityId, HomeAssistantLinkedAttribute linkedAttribute) {
+        routes.computeIfAbsent(entityId, id -> new ConcurrentHashMap<>())
+            .compute(linkedAttribute.getAttributeName(), (name, links) -> {
+                List<HomeAssistantLinkedAttribute> updated = new ArrayList<>(links != null ? links.size() + 1 : 1);
+                if (links != null) {
+                    links.stream()
+                        .filter(link -> !link.getAttributeRef().equals(linkedAttribute.getAttributeRef()))
+                        .forEach(updated::add);
+                }
+                updated.add(linkedAttribute);
+                return List.copyOf(updated);
+            });
+    }
+
+    // Removes the link of the attribute only, links of other assets to the same entity and attribute name are kept
+    public void unlink(String entityId, AttributeRef attributeRef) {
+        routes.computeIfPresent(entityId, (id, attributes) -> {
+            attributes.computeIfPresent(attributeRef.getName(), (name, links) -> {
+                List<HomeAssistantLinkedAttribute> updated = links.stream()
+                    .filter(link -> !link.getAttributeRef().equals(attributeRef))
+                    .toList();
+                return updated.isEmpty() ? null : updated;
+            });
+            return attributes.isEmpty() ? null : attributes;
+        });
+    }
+
+    // Returns the links of the given entity keyed by attribute name, or null if the entity is not linked
+    public Map<String, List<HomeAssistantLinkedAttribute>> get(String entityId) {
+        return routes.get(entityId);
+    }
+
+    // Returns the link of the attribute to the given entity, or null if it is not linked
+    public HomeAssistantLinkedAttribute get(String entityId, AttributeRef attributeRef) {
+        var attributes = routes.get(entityId);
+        var links = attributes != null ? attributes.get(attributeRef.getName()) : null;
+        if (links == null) {
+            return null;
+        }
+        for (HomeAssistantLinkedAttribute link : links) {
+            if (link.getAttributeRef().equals(attributeRef)) {
+                return link;
+            }
+        }
+        return null;
+    }
+
+    public Set<String> getEntityIds() {
+        return Collections.unmodifiableSet(routes.keySet());
+    }
+
+    public boolean isEmpty() {
+        return routes.isEmpty();
+    }
+
+    public void clear() {
+        routes.clear();
+    }
+}
@@ -0,0 +1,158 @@
+package org.openremote.agent.custom;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cheap classification of Home Assistant websocket frames; only the top level {@code id} and {@code type} and for
+ * events the {@code event_type} and {@code data.entity_id} fields are read, tokenizing stops as soon as these are known.
+ * This allows frames to be routed (or dropped) before any object binding takes place. Frames can be classified from
+ * their text or straight from their UTF-8 bytes. Counts of classified, bound and dropped frames are kept so the savings
+ * are visible.
+ */
+public class HomeAssistantFrameClassifier {
+
+    public static final String TYPE_AUTH_REQUIRED = "auth_required";
+    public static final String TYPE_AUTH_OK = "auth_ok";
+    public static final String TYPE_AUTH_INVALID = "auth_invalid";
+    public static final String TYPE_RESULT = "result";
+    public static final String TYPE_EVENT = "event";
+    public static final String TYPE_PONG = "pong";
+
+    /**
+     * The classification of a single frame; any of the fields can be null when not present in the frame.
+     */
+    public static class Frame {
+        protected Integer id;
+        protected String type;
+        protected String eventType;
+        protected String entityId;
+
+        public Integer getId() {
+            return id;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public String getEventType() {
+            return eventType;
+        }
+
+        public String getEntityId() {
+            return entityId;
+        }
+
+        // Results, pongs and events are matched to their request or subscription by id, which Home Assistant usually but
+        // not necessarily sends before the type
+        protected boolean isComplete() {
+            if (type == null) {
+                return false;
+            }
+            return switch (type) {
+                case TYPE_RESULT, TYPE_PONG -> id != null;
+                case TYPE_EVENT -> id != null && entityId != null;
+                default -> true;
+            };
+        }
+    }
+
+    @FunctionalInterface
+    protected interface ParserFactory {
+        JsonParser create() throws IOException;
+    }
+
+    protected final AtomicLong classifiedCount = new AtomicLong();
+    protected final AtomicLong boundCount = new AtomicLong();
+    protected final AtomicLong droppedCount = new AtomicLong();
+
+    public Frame classify(String message) {
+        return classify(() -> HomeAssistantJson.FACTORY.createParser(message));
+    }
+
+    public Frame classify(byte[] data, int offset, int length) {
+        return classify(() -> HomeAssistantJson.FACTORY.createParser(data, offset, length));
+    }
+
+    public Frame classify(InputStream input) {
+        return classify(() -> HomeAssistantJson.FACTORY.createParser(input));
+    }
+
+    protected Frame classify(ParserFactory parserFactory) {
+        classifiedCount.incrementAndGet();
+        Frame frame = new Frame();
+
+        try (JsonParser parser = parserFactory.create()) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return frame;
+            }
+            while (!frame.isComplete() && parser.nextToken() == JsonToken.FIELD_NAME) {
+                String fieldName = parser.getCurrentName();
+                JsonToken valueToken = parser.nextToken();
+                switch (fieldName) {
+                    case "id" -> frame.id = valueToken == JsonToken.VALUE_NUMBER_INT ? parser.getIntValue() : null;
+                    case "type" -> frame.type = parser.getValueAsString();
+                    case "event" -> readEvent(parser, frame);
+                    default -> parser.skipChildren();
+                }
+            }
+        } catch (IOException e) {
+            // malformed frame; return whatever was classified so far
+        }
+        return frame;
+    }
+
+    // Reads the event_type and data.entity_id of the event object the parser is positioned at
+    protected static void readEvent(JsonParser parser, Frame frame) throws IOException {
+        if (parser.currentToken() != JsonToken.START_OBJECT) {
+            parser.skipChildren();
+            return;
+        }
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String fieldName = parser.getCurrentName();
+            JsonToken valueToken = parser.nextToken();
+            if ("event_type".equals(fieldName)) {
+                frame.eventType = parser.getValueAsString();
+            } else if ("data".equals(fieldName) && valueToken == JsonToken.START_OBJECT) {
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String dataFieldName = parser.getCurrentName();
+                    parser.nextToken();
+                    if ("entity_id".equals(dataFieldName)) {
+                        frame.entityId = parser.getValueAsString();
+                        if (frame.isComplete()) {
+                            return; // nothing else is needed, the rest of the frame is left unread
+                        }
+                    }
+                    parser.skipChildren();
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+    }
+
+    public void onFrameBound() {
+        boundCount.incrementAndGet();
+    }
+
+    public void onFrameDropped() {
+        droppedCount.incrementAndGet();
+    }
+
+    public long getClassifiedCount() {
+        return classifiedCount.get();
+    }
+
+    public long getBoundCount() {
+        return boundCount.get();
+    }
+
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+}
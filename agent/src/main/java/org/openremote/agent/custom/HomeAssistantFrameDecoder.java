@@ -0,0 +1,144 @@
+package org.openremote.agent.custom;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.ObjectReader;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketClientProtocolHandler;
+import org.openremote.model.syslog.SyslogCategory;
+
+import java.io.IOException;
+import java.util.function.BiConsumer;
+import java.util.logging.Logger;
+
+import static org.openremote.model.syslog.SyslogCategory.PROTOCOL;
+
+/**
+ * Decodes Home Assistant websocket text frames straight from their (UTF-8) {@link ByteBuf}s; frames are classified and
+ * bound with the shared readers without first being decoded to a {@link String}, and frames that are dropped after
+ * classification are never copied at all.
+ * <p>
+ * The websocket client decodes text frames to strings before the handlers it is given, so once added this decoder moves
+ * itself to right after the {@link WebSocketClientProtocolHandler}; if that handler is not found it stays put and text
+ * frames take the string path as before.
+ */
+public class HomeAssistantFrameDecoder extends SimpleChannelInboundHandler<TextWebSocketFrame> {
+
+    public static final String NAME = "homeAssistantFrameDecoder";
+    private static final Logger LOG = SyslogCategory.getLogger(PROTOCOL, HomeAssistantFrameDecoder.class);
+
+    /**
+     * The content of a frame that can be bound by any of the shared readers; a body is only valid while the frame is
+     * being handled unless it is detached.
+     */
+    public interface FrameBody {
+
+        <T> T read(ObjectReader reader) throws IOException;
+
+        // Returns a body that remains valid after the frame has been released
+        FrameBody detach();
+
+        static FrameBody of(String message) {
+            return new FrameBody() {
+                @Override
+                public <T> T read(ObjectReader reader) throws IOException {
+                    return reader.readValue(message);
+                }
+
+                @Override
+                public FrameBody detach() {
+                    return this;
+                }
+            };
+        }
+
+        static FrameBody of(byte[] data) {
+            return new FrameBody() {
+                @Override
+                public <T> T read(ObjectReader reader) throws IOException {
+                    return reader.readValue(data);
+                }
+
+                @Override
+                public FrameBody detach() {
+                    return this;
+                }
+            };
+        }
+    }
+
+    protected final HomeAssistantFrameClassifier classifier;
+    protected final BiConsumer<HomeAssistantFrameClassifier.Frame, FrameBody> frameConsumer;
+    protected final boolean positioned;
+
+    public HomeAssistantFrameDecoder(HomeAssistantFrameClassifier classifier, BiConsumer<HomeAssistantFrameClassifier.Frame, FrameBody> frameConsumer) {
+        this(classifier, frameConsumer, false);
+    }
+
+    protected HomeAssistantFrameDecoder(HomeAssistantFrameClassifier classifier, BiConsumer<HomeAssistantFrameClassifier.Frame, FrameBody> frameConsumer, boolean positioned) {
+        this.classifier = classifier;
+        this.frameConsumer = frameConsumer;
+        this.positioned = positioned;
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) {
+        if (positioned) {
+            return;
+        }
+        ChannelPipeline pipeline = ctx.pipeline();
+        ChannelHandlerContext protocolHandler = pipeline.context(WebSocketClientProtocolHandler.class);
+        if (protocolHandler == null) {
+            LOG.warning("Websocket protocol handler not found, text frames are decoded to strings before being classified: " + pipeline.channel());
+            return;
+        }
+        pipeline.addAfter(protocolHandler.name(), NAME, new HomeAssistantFrameDecoder(classifier, frameConsumer, true));
+        pipeline.remove(this);
+    }
+
+    // Fragmented messages are left to the websocket client which aggregates them
+    @Override
+    public boolean acceptInboundMessage(Object msg) throws Exception {
+        return super.acceptInboundMessage(msg) && ((TextWebSocketFrame) msg).isFinalFragment();
+    }
+
+    @Override
+    protected void channelRead0(ChannelHandlerContext ctx, TextWebSocketFrame frame) {
+        ByteBuf content = frame.content();
+        HomeAssistantFrameClassifier.Frame classified = content.hasArray()
+            ? classifier.classify(content.array(), content.arrayOffset() + content.readerIndex(), content.readableBytes())
+            : classifier.classify(new ByteBufInputStream(content.duplicate()));
+        frameConsumer.accept(classified, new ByteBufBody(content));
+    }
+
+    // Reads from the buffer of the frame, which is released once the frame has been handled
+    protected static class ByteBufBody implements FrameBody {
+        protected final ByteBuf content;
+
+        protected ByteBufBody(ByteBuf content) {
+            this.content = content;
+        }
+
+        @Override
+        public <T> T read(ObjectReader reader) throws IOException {
+            if (content.hasArray()) {
+                return reader.readValue(content.array(), content.arrayOffset() + content.readerIndex(), content.readableBytes());
+            }
+            try (JsonParser parser = reader.getFactory().createParser(new ByteBufInputStream(content.duplicate()))) {
+                return reader.readValue(parser);
+            }
+        }
+
+        // A single copy of the bytes; keeping the pooled buffer instead would pin it while the frame waits in the inbound
+        // queue, which can merge or drop it
+        @Override
+        public FrameBody detach() {
+            return FrameBody.of(ByteBufUtil.getBytes(content));
+        }
+    }
+}
@@ -1,107 +1,432 @@
 package org.openremote.agent.custom;
 
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.core.type.TypeReference;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
 import org.openremote.agent.custom.commands.EntityStateCommand;
 import org.openremote.agent.custom.entities.HomeAssistantBaseEntity;
 import org.openremote.model.syslog.SyslogCategory;
 import org.openremote.model.util.ValueUtil;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 import java.util.logging.Logger;
 
 import static org.openremote.model.syslog.SyslogCategory.PROTOCOL;
 
+/**
+ * REST client for the Home Assistant API; a single instance is created per {@link HomeAssistantProtocol} and instances
+ * with the same request timeout share one long-lived {@link HttpClient} so connections (and TLS sessions) are kept alive
+ * and reused between requests. The request timeout applies to connecting as well. The
+ * number of requests in flight is limited by {@link #maxConcurrentRequests}; requests beyond that limit are queued
+ * rather than blocking the calling thread.
+ * <p>
+ * Waiting on a request or reading a response body does not respond to thread interrupts, so {@link #close} is what
+ * stops the I/O of a protocol: it cancels the requests in flight and closes streamed response bodies, which completes
+ * the callers waiting on them.
+ */
 public class HomeAssistantHttpClient {
 
+    public static final int DEFAULT_REQUEST_TIMEOUT_MILLIS = 10000;
+    public static final int DEFAULT_MAX_CONCURRENT_REQUESTS = 8;
     private static final Logger LOG = SyslogCategory.getLogger(PROTOCOL, HomeAssistantHttpClient.class);
+    private static final ObjectReader ENTITY_READER = HomeAssistantJson.ENTITY_READER;
+    private static final ObjectReader ENTITIES_READER = HomeAssistantJson.ENTITIES_READER;
+    // Hubs with the same request timeout share one client (and its I/O threads), the token is sent per request so
+    // connections can be pooled per host; the connect timeout is a setting of the client, hence one client per timeout
+    // Key: Request timeout in millis, Value: Client
+    private static final Map<Integer, HttpClient> SHARED_HTTP_CLIENTS = new ConcurrentHashMap<>();
     private final String HomeAssistantUrl;
     private final String Token;
+    private final HttpClient httpClient;
+    private final Duration requestTimeout;
+    private final int maxConcurrentRequests;
+    private final HomeAssistantMetrics metrics;
+    private final Queue<Runnable> pendingRequests = new ArrayDeque<>();
+    // Futures of the requests in flight and the response bodies being streamed, so they can be aborted on close
+    private final Set<CompletableFuture<?>> inFlightRequests = ConcurrentHashMap.newKeySet();
+    private final Set<InputStream> openBodies = ConcurrentHashMap.newKeySet();
+    private int requestsInFlight;
+    // Whether a thread is starting queued requests, guarded by pendingRequests
+    private boolean draining;
+    private volatile boolean closed;
 
     public HomeAssistantHttpClient(String homeAssistantUrl, String token) {
+        this(homeAssistantUrl, token, DEFAULT_REQUEST_TIMEOUT_MILLIS, DEFAULT_MAX_CONCURRENT_REQUESTS);
+    }
+
+    public HomeAssistantHttpClient(String homeAssistantUrl, String token, int requestTimeoutMillis, int maxConcurrentRequests) {
+        this(homeAssistantUrl, token, requestTimeoutMillis, maxConcurrentRequests, new HomeAssistantMetrics(homeAssistantUrl));
+    }
+
+    public HomeAssistantHttpClient(String homeAssistantUrl, String token, int requestTimeoutMillis, int maxConcurrentRequests, HomeAssistantMetrics metrics) {
+        this.metrics = metrics;
         this.HomeAssistantUrl = homeAssistantUrl;
         this.Token = token;
+        // Timeouts must be positive
+        requestTimeoutMillis = requestTimeoutMillis > 0 ? requestTimeoutMillis : DEFAULT_REQUEST_TIMEOUT_MILLIS;
+        this.requestTimeout = Duration.ofMillis(requestTimeoutMillis);
+        this.maxConcurrentRequests = Math.max(1, maxConcurrentRequests);
+        this.httpClient = SHARED_HTTP_CLIENTS.computeIfAbsent(requestTimeoutMillis, HomeAssistantHttpClient::createHttpClient);
+    }
+
+    // The protocol version is left to the client, which negotiates it per connection
+    private static HttpClient createHttpClient(int connectTimeoutMillis) {
+        return HttpClient.newBuilder()
+            .connectTimeout(Duration.ofMillis(connectTimeoutMillis))
+            .followRedirects(HttpClient.Redirect.NORMAL)
+            .executor(Optional.ofNullable(HomeAssistantIoScope.newVirtualThreadExecutor())
+                .orElseGet(() -> HomeAssistantIoScope.newPlatformThreadExecutor("http-" + connectTimeoutMillis)))
+            .build();
     }
 
     public Optional<List<HomeAssistantBaseEntity>> getEntities() {
-        Optional<String> response = sendGetRequest("/api/states");
-        if (response.isPresent()) {
-            ObjectMapper mapper = new ObjectMapper();
+        return getEntitiesAsync().join();
+    }
+
+    public CompletableFuture<Optional<List<HomeAssistantBaseEntity>>> getEntitiesAsync() {
+        return sendGetRequestAsync("/api/states").thenApply(response -> {
+            if (response.isEmpty()) {
+                return Optional.empty();
+            }
             try {
-                List<HomeAssistantBaseEntity> entities = mapper.readValue(response.get(), new TypeReference<>() {
-                });
+                List<HomeAssistantBaseEntity> entities = ENTITIES_READER.readValue(response.get());
                 return Optional.of(entities);
             } catch (JsonProcessingException e) {
                 LOG.warning("Error parsing response: " + e.getMessage());
                 return Optional.empty();
             }
+        });
+    }
+
+    /**
+     * Streams the entities of the /api/states endpoint to the consumer one at a time; the response is tokenized straight
+     * from the response body and entities whose id is not accepted by the filter are skipped before being bound, so peak
+     * memory is bounded by the size of a single entity rather than the size of the hub.
+     *
+     * @return true if the whole response was read successfully
+     */
+    public boolean streamEntities(Predicate<String> entityIdFilter, Consumer<HomeAssistantBaseEntity> entityConsumer) {
+        HttpRequest request = HttpRequest.newBuilder()
+                .uri(URI.create(HomeAssistantUrl + "/api/states"))
+                .timeout(requestTimeout)
+                .header("Authorization", "Bearer " + Token)
+                .GET()
+                .build();
+
+        HttpResponse<InputStream> response;
+        try {
+            response = submit(() -> httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofInputStream())).join();
+        } catch (Exception e) {
+            if (!closed) {
+                LOG.warning("Error sending request: " + e.getMessage());
+            }
+            return false;
+        }
+
+        InputStream body = response.body();
+        openBodies.add(body);
+        try (body) {
+            if (closed) {
+                return false;
+            }
+            if (!isSuccessful(response)) {
+                LOG.warning("Request to /api/states failed with status: " + response.statusCode());
+                return false;
+            }
+            return readEntities(body, entityIdFilter, entityConsumer);
+        } catch (IOException e) {
+            if (!closed) {
+                LOG.warning("Error parsing response: " + e.getMessage());
+            }
+            return false;
+        } finally {
+            openBodies.remove(body);
+        }
+    }
+
+    // Reads a JSON array of entities from the input one entity at a time, returns true if the whole array was read
+    static boolean readEntities(InputStream input, Predicate<String> entityIdFilter, Consumer<HomeAssistantBaseEntity> entityConsumer) throws IOException {
+        try (JsonParser parser = ENTITY_READER.getFactory().createParser(input)) {
+            if (parser.nextToken() != JsonToken.START_ARRAY) {
+                LOG.warning("Error parsing response: expected an array of entities");
+                return false;
+            }
+            JsonToken token;
+            while ((token = parser.nextToken()) == JsonToken.START_OBJECT) {
+                HomeAssistantBaseEntity entity = readEntity(parser, entityIdFilter);
+                if (entity != null) {
+                    entityConsumer.accept(entity);
+                }
+            }
+            // A body truncated between two entities ends without the end of the array, it must not count as complete
+            // as the assets of the entities that were not read would then be removed
+            if (token != JsonToken.END_ARRAY) {
+                LOG.warning("Error parsing response: the array of entities is incomplete");
+                return false;
+            }
+            return true;
         }
-        return Optional.empty();
     }
 
+    // Reads the entity object the parser is positioned at, returns null (with the object consumed) if it is filtered out
+    private static HomeAssistantBaseEntity readEntity(JsonParser parser, Predicate<String> entityIdFilter) throws IOException {
+        TokenBuffer buffer = new TokenBuffer(parser);
+        buffer.writeStartObject();
+        boolean accepted = false;
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String fieldName = parser.getCurrentName();
+            if (!accepted && "entity_id".equals(fieldName)) {
+                parser.nextToken();
+                String entityId = parser.getValueAsString();
+                if (entityId == null || !entityIdFilter.test(entityId)) {
+                    skipRemainingFields(parser);
+                    return null;
+                }
+                accepted = true;
+                buffer.writeFieldName(fieldName);
+                buffer.writeString(entityId);
+                continue;
+            }
+            buffer.copyCurrentStructure(parser);
+        }
+        buffer.writeEndObject();
+
+        if (!accepted) {
+            return null;
+        }
+        try (JsonParser bufferParser = buffer.asParser()) {
+            return ENTITY_READER.readValue(bufferParser);
+        }
+    }
+
+    private static void skipRemainingFields(JsonParser parser) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            parser.nextToken();
+            parser.skipChildren();
+        }
+    }
 
     public boolean isConnectionSuccessful() {
-        Optional<String> response = sendGetRequest("/api");
+        Optional<String> response = sendGetRequestAsync("/api").join();
         return response.isPresent();
     }
 
     public void setEntityState(String domain, EntityStateCommand command) {
-        LOG.info("Setting entity state: " + domain + "." + command.getService() + " " + command.getEntityId());
+        setEntityStateAsync(domain, command).join();
+    }
 
-        // default for setting the entity state
-        var json = ValueUtil.asJSON(Map.of("entity_id", command.getEntityId()));
+    public CompletableFuture<Boolean> setEntityStateAsync(String domain, EntityStateCommand command) {
+        return setEntityStateAsync(domain, command, List.of(command.getEntityId()));
+    }
 
-        // if the attribute name is set, we are setting an attribute value.
-        if (command.getAttributeName() != null && !command.getAttributeName().isEmpty()) {
-            json = ValueUtil.asJSON(Map.of("entity_id", command.getEntityId(), command.getAttributeName(), command.getAttributeValue()));
-        }
+    // Calls the service of the command for all the given entities in a single request
+    public CompletableFuture<Boolean> setEntityStateAsync(String domain, EntityStateCommand command, List<String> entityIds) {
+        LOG.fine("Setting entity state: " + domain + "." + command.getService() + " " + entityIds);
 
-        if (json.isEmpty())
-            return;
+        Map<String, Object> body = new HashMap<>(command.getServiceData());
+        body.put("entity_id", entityIds.size() == 1 ? entityIds.get(0) : entityIds);
+        var json = ValueUtil.asJSON(body);
 
-        sendPostRequest("/api/services/" + domain + "/" + command.getService(), json.get());
+        if (json.isEmpty())
+            return CompletableFuture.completedFuture(false);
 
+        return sendPostRequestAsync("/api/services/" + domain + "/" + command.getService(), json.get());
     }
 
     public void sendPostRequest(String path, String json) {
-        HttpClient client = HttpClient.newHttpClient();
+        sendPostRequestAsync(path, json).join();
+    }
+
+    public CompletableFuture<Boolean> sendPostRequestAsync(String path, String json) {
         HttpRequest request = HttpRequest.newBuilder()
                 .uri(URI.create(HomeAssistantUrl + path))
+                .timeout(requestTimeout)
                 .header("Authorization", "Bearer " + Token)
                 .header("Content-Type", "application/json")
                 .POST(HttpRequest.BodyPublishers.ofString(json))
                 .build();
-        try {
-            client.send(request, HttpResponse.BodyHandlers.ofString());
-        } catch (Exception e) {
-            LOG.warning("Error sending request: " + e.getMessage());
-        }
+
+        return submit(() -> httpClient.sendAsync(request, HttpResponse.BodyHandlers.discarding()))
+            .handle((response, e) -> {
+                if (e != null) {
+                    LOG.warning("Error sending request: " + e.getMessage());
+                    return false;
+                }
+                if (!isSuccessful(response)) {
+                    LOG.warning("Request to " + path + " failed with status: " + response.statusCode());
+                    return false;
+                }
+                return true;
+            });
     }
 
-    private Optional<String> sendGetRequest(String path) {
-        HttpClient client = HttpClient.newHttpClient();
+    private CompletableFuture<Optional<String>> sendGetRequestAsync(String path) {
         HttpRequest request = HttpRequest.newBuilder()
                 .uri(URI.create(HomeAssistantUrl + path))
+                .timeout(requestTimeout)
                 .header("Authorization", "Bearer " + Token)
                 .GET()
                 .build();
 
+        return submit(() -> httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofString()))
+            .handle((response, e) -> {
+                if (e != null) {
+                    LOG.warning("Error sending request: " + e.getMessage());
+                    return Optional.empty();
+                }
+                if (!isSuccessful(response)) {
+                    LOG.warning("Request to " + path + " failed with status: " + response.statusCode());
+                    return Optional.empty();
+                }
+                return Optional.of(response.body());
+            });
+    }
+
+    private static boolean isSuccessful(HttpResponse<?> response) {
+        return response.statusCode() >= 200 && response.statusCode() < 300;
+    }
+
+    // Starts the request if the concurrency limit allows it, otherwise queues it until a running request completes
+    private <T> CompletableFuture<T> submit(Supplier<CompletableFuture<T>> requestSupplier) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        Runnable task = () -> {
+            CompletableFuture<T> future;
+            long startNanos = System.nanoTime();
+            try {
+                future = closed
+                    ? CompletableFuture.failedFuture(new CancellationException("HTTP client has been closed"))
+                    : requestSupplier.get();
+            } catch (Exception e) {
+                future = CompletableFuture.failedFuture(e);
+            }
+            inFlightRequests.add(future);
+            if (closed) {
+                future.cancel(true); // closed while the request was being sent
+            }
+            future.whenComplete((value, e) -> {
+                inFlightRequests.remove(future);
+                metrics.onHttpRequestCompleted(System.nanoTime() - startNanos);
+                onRequestCompleted();
+                if (e != null) {
+                    result.completeExceptionally(e);
+                } else {
+                    result.complete(value);
+                }
+            });
+        };
+
+        boolean startNow;
+        synchronized (pendingRequests) {
+            startNow = requestsInFlight < maxConcurrentRequests && pendingRequests.isEmpty();
+            if (startNow) {
+                requestsInFlight++;
+            } else {
+                pendingRequests.add(task);
+            }
+        }
+
+        if (startNow) {
+            task.run();
+        }
+        return result;
+    }
+
+    private void onRequestCompleted() {
+        synchronized (pendingRequests) {
+            requestsInFlight--;
+        }
+        drainPendingRequests();
+    }
+
+    // Starts queued requests while the concurrency limit allows it; a request that completes synchronously (e.g. when
+    // the client is closed) calls back into this method, so only one thread drains at a time and the others leave the
+    // freed slots to it, which keeps the stack flat however many requests are queued
+    private void drainPendingRequests() {
+        synchronized (pendingRequests) {
+            if (draining) {
+                return;
+            }
+            draining = true;
+        }
+        boolean stopped = false;
         try {
-            HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
-            return Optional.of(response.body());
+            while (!stopped) {
+                Runnable next;
+                synchronized (pendingRequests) {
+                    next = requestsInFlight < maxConcurrentRequests ? pendingRequests.poll() : null;
+                    if (next == null) {
+                        draining = false;
+                        stopped = true;
+                        continue;
+                    }
+                    requestsInFlight++;
+                }
+                next.run();
+            }
+        } finally {
+            if (!stopped) {
+                synchronized (pendingRequests) {
+                    draining = false;
+                }
+            }
+        }
+    }
 
-        } catch (Exception e) {
-            LOG.warning("Error sending request: " + e.getMessage());
+    /**
+     * Aborts the requests in flight (cancelling the future of a request aborts its exchange) and the response bodies
+     * being streamed, and fails queued and new requests; the shared {@link HttpClient} itself stays open.
+     */
+    public void close() {
+        closed = true;
+        inFlightRequests.forEach(future -> future.cancel(true));
+        openBodies.forEach(body -> {
+            try {
+                body.close();
+            } catch (IOException ignored) {
+            }
+        });
+        // Queued requests fail without being sent as soon as they are started
+        Runnable next;
+        while ((next = pollPendingRequest()) != null) {
+            next.run();
         }
-        return Optional.empty();
     }
 
+    private Runnable pollPendingRequest() {
+        synchronized (pendingRequests) {
+            Runnable next = pendingRequests.poll();
+            if (next != null) {
+                requestsInFlight++;
+            }
+            return next;
+        }
+    }
 
+    public int getPendingRequestCount() {
+        synchronized (pendingRequests) {
+            return pendingRequests.size();
+        }
+    }
 }
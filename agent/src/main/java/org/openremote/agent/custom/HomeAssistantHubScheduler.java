@@ -0,0 +1,199 @@
+package org.openremote.agent.custom;
+
+import org.openremote.model.syslog.SyslogCategory;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static org.openremote.model.syslog.SyslogCategory.PROTOCOL;
+
+/**
+ * Processes the inbound messages of all Home Assistant hubs (one per {@link HomeAssistantProtocol}) on a single shared
+ * pool of worker threads. Each hub has its own bounded queue; hubs with queued messages take turns in round-robin
+ * order and process at most {@link #QUANTUM} messages per turn so a chatty hub cannot starve the others. Messages of a
+ * single hub are processed in order by one worker at a time.
+ * <p>
+ * The scheduler is shared by all protocol instances, it is created by the first {@link #acquire} and shut down by the
+ * last {@link #release}.
+ */
+public class HomeAssistantHubScheduler {
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 10000;
+    public static final int QUANTUM = 64;
+    private static final Logger LOG = SyslogCategory.getLogger(PROTOCOL, HomeAssistantHubScheduler.class);
+    private static HomeAssistantHubScheduler instance;
+    private static int references;
+
+    /**
+     * The bounded inbound queue (see {@link HomeAssistantIngestQueue}) of a single hub.
+     */
+    public class Hub {
+
+        protected final String id;
+        protected final HomeAssistantIngestQueue queue;
+        protected final AtomicBoolean scheduled = new AtomicBoolean();
+        protected final AtomicLong processedCount = new AtomicLong();
+        protected volatile boolean closed;
+
+        protected Hub(String id, int capacity, HomeAssistantIngestQueue.OverflowPolicy overflowPolicy) {
+            this.id = id;
+            this.queue = new HomeAssistantIngestQueue(capacity, overflowPolicy);
+        }
+
+        /**
+         * Queues the message task, the key (entity id) allows the task to be merged with a queued task of the same entity
+         * and may be null. Returns false if the task was dropped or the hub is closed.
+         */
+        public boolean offer(String key, Runnable task) {
+            if (closed) {
+                return false;
+            }
+            long droppedBefore = queue.getDroppedCount();
+            boolean queued = queue.offer(key, task);
+            long dropped = queue.getDroppedCount();
+            // Log the first drop and then every thousand drops
+            if (dropped > droppedBefore && (droppedBefore == 0 || dropped / 1000 > droppedBefore / 1000)) {
+                LOG.warning("Inbound queue of hub is full, dropping messages (" + queue.getDroppedCount() + " dropped so far): " + id);
+            }
+            if (!queued) {
+                return false;
+            }
+            if (scheduled.compareAndSet(false, true)) {
+                ready(this);
+            }
+            return true;
+        }
+
+        // Discards any queued messages; messages offered afterwards are rejected
+        public void close() {
+            closed = true;
+            queue.close();
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public HomeAssistantIngestQueue getQueue() {
+            return queue;
+        }
+
+        public int getQueueDepth() {
+            return queue.getDepth();
+        }
+
+        public long getProcessedCount() {
+            return processedCount.get();
+        }
+
+        public long getDroppedCount() {
+            return queue.getDroppedCount();
+        }
+
+        // Runs up to one quantum of messages, returns true if the hub has to be given another turn
+        protected boolean runTurn() {
+            for (int i = 0; i < QUANTUM && !closed; i++) {
+                Runnable task = queue.poll();
+                if (task == null) {
+                    break;
+                }
+                try {
+                    task.run();
+                } catch (Exception e) {
+                    LOG.log(Level.WARNING, "Failed to process inbound message of hub: " + id, e);
+                }
+                processedCount.incrementAndGet();
+            }
+
+            if (!closed && !queue.isEmpty()) {
+                return true;
+            }
+            scheduled.set(false);
+            // A message may have been queued after the last poll but before the flag was cleared
+            return !closed && !queue.isEmpty() && scheduled.compareAndSet(false, true);
+        }
+    }
+
+    protected final ExecutorService workers;
+    protected final int maxWorkers;
+    protected final Queue<Hub> readyHubs = new ConcurrentLinkedQueue<>();
+    protected final AtomicInteger activeWorkers = new AtomicInteger();
+
+    protected HomeAssistantHubScheduler(int maxWorkers) {
+        this.maxWorkers = Math.max(1, maxWorkers);
+        AtomicInteger threadCount = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(this.maxWorkers, runnable -> {
+            Thread thread = new Thread(runnable, "HomeAssistant-hub-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public static synchronized HomeAssistantHubScheduler acquire() {
+        if (instance == null) {
+            instance = new HomeAssistantHubScheduler(Math.min(4, Runtime.getRuntime().availableProcessors()));
+        }
+        references++;
+        return instance;
+    }
+
+    public static synchronized void release() {
+        if (references == 0) {
+            return;
+        }
+        if (--references == 0) {
+            instance.workers.shutdownNow();
+            instance = null;
+        }
+    }
+
+    public Hub register(String hubId, int queueCapacity, HomeAssistantIngestQueue.OverflowPolicy overflowPolicy) {
+        return new Hub(hubId, queueCapacity, overflowPolicy);
+    }
+
+    public int getReadyHubCount() {
+        return readyHubs.size();
+    }
+
+    protected void ready(Hub hub) {
+        readyHubs.add(hub);
+        startWorker();
+    }
+
+    protected void startWorker() {
+        int active;
+        do {
+            active = activeWorkers.get();
+            if (active >= maxWorkers) {
+                return;
+            }
+        } while (!activeWorkers.compareAndSet(active, active + 1));
+
+        try {
+            workers.execute(this::drain);
+        } catch (Exception e) {
+            activeWorkers.decrementAndGet(); // scheduler has been shut down
+        }
+    }
+
+    protected void drain() {
+        Hub hub;
+        while ((hub = readyHubs.poll()) != null) {
+            if (hub.runTurn()) {
+                readyHubs.add(hub);
+            }
+        }
+        activeWorkers.decrementAndGet();
+        // A hub may have become ready after the last poll but was not given a worker as this one was still active
+        if (!readyHubs.isEmpty()) {
+            startWorker();
+        }
+    }
+}
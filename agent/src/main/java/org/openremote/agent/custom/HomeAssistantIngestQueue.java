@@ -0,0 +1,175 @@
+package org.openremote.agent.custom;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Bounded, lock-free handoff of inbound messages from the websocket I/O thread to the processing stage; offering never
+ * waits as the producer is a Netty event loop shared with other channels. What happens when the queue is full depends on
+ * the {@link OverflowPolicy}:
+ *
+ * <ul>
+ * <li>{@link OverflowPolicy#DROP_OLDEST}: the oldest queued message is dropped
+ * <li>{@link OverflowPolicy#MERGE_BY_ENTITY}: a message for an entity that already has a queued message replaces the
+ * latest queued message of that entity (only the latest state of an entity matters); messages that cannot be merged
+ * are dropped
+ * </ul>
+ *
+ * Below capacity every message is queued whatever the policy.
+ */
+public class HomeAssistantIngestQueue {
+
+    public enum OverflowPolicy {
+        DROP_OLDEST,
+        MERGE_BY_ENTITY
+    }
+
+    protected static class Element {
+        protected final String key;
+        protected final AtomicReference<Runnable> task;
+
+        protected Element(String key, Runnable task) {
+            this.key = key;
+            this.task = new AtomicReference<>(task);
+        }
+    }
+
+    protected final int capacity;
+    protected final OverflowPolicy overflowPolicy;
+    protected final Queue<Element> elements = new ConcurrentLinkedQueue<>();
+    // Key: Entity id, Value: Latest queued element of the entity (merge policy only)
+    protected final Map<String, Element> pendingByKey = new ConcurrentHashMap<>();
+    protected final AtomicInteger depth = new AtomicInteger();
+    protected final AtomicLong droppedCount = new AtomicLong();
+    protected final AtomicLong mergedCount = new AtomicLong();
+    protected volatile boolean closed;
+
+    public HomeAssistantIngestQueue(int capacity, OverflowPolicy overflowPolicy) {
+        this.capacity = Math.max(1, capacity);
+        this.overflowPolicy = overflowPolicy != null ? overflowPolicy : OverflowPolicy.DROP_OLDEST;
+    }
+
+    /**
+     * Queues the task; the key (e.g. entity id) identifies tasks that supersede each other and may be null if the task
+     * cannot be merged. Returns false if the task was dropped.
+     */
+    public boolean offer(String key, Runnable task) {
+        if (closed) {
+            return false;
+        }
+
+        while (!tryReserve()) {
+            switch (overflowPolicy) {
+                case DROP_OLDEST -> {
+                    if (dropOldest()) {
+                        droppedCount.incrementAndGet();
+                    }
+                }
+                case MERGE_BY_ENTITY -> {
+                    if (key != null && merge(key, task)) {
+                        return true;
+                    }
+                    droppedCount.incrementAndGet();
+                    return false;
+                }
+            }
+        }
+
+        Element element = new Element(key, task);
+        if (overflowPolicy == OverflowPolicy.MERGE_BY_ENTITY && key != null) {
+            pendingByKey.put(key, element);
+        }
+        elements.add(element);
+        return true;
+    }
+
+    // Returns the next task or null if the queue is empty
+    public Runnable poll() {
+        Element element;
+        while ((element = elements.poll()) != null) {
+            depth.decrementAndGet();
+            if (element.key != null) {
+                pendingByKey.remove(element.key, element);
+            }
+            Runnable task = element.task.getAndSet(null);
+            if (task != null) {
+                return task;
+            }
+        }
+        return null;
+    }
+
+    public boolean isEmpty() {
+        return depth.get() == 0;
+    }
+
+    // Discards the queued tasks and rejects any further ones
+    public void close() {
+        closed = true;
+        elements.clear();
+        pendingByKey.clear();
+        depth.set(0);
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    public int getDepth() {
+        return depth.get();
+    }
+
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    public long getMergedCount() {
+        return mergedCount.get();
+    }
+
+    // Replaces the task of the queued element of the key, fails if there is none or it has already been taken
+    protected boolean merge(String key, Runnable task) {
+        Element element = pendingByKey.get(key);
+        if (element == null) {
+            return false;
+        }
+        Runnable current = element.task.get();
+        if (current != null && element.task.compareAndSet(current, task)) {
+            mergedCount.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    protected boolean tryReserve() {
+        int current;
+        do {
+            current = depth.get();
+            if (current >= capacity) {
+                return false;
+            }
+        } while (!depth.compareAndSet(current, current + 1));
+        return true;
+    }
+
+    protected boolean dropOldest() {
+        Element element = elements.poll();
+        if (element == null) {
+            return false;
+        }
+        depth.decrementAndGet();
+        if (element.key != null) {
+            pendingByKey.remove(element.key, element);
+        }
+        return element.task.getAndSet(null) != null;
+    }
+}
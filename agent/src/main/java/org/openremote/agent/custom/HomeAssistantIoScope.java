@@ -0,0 +1,123 @@
+package org.openremote.agent.custom;
+
+import org.openremote.model.syslog.SyslogCategory;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static org.openremote.model.syslog.SyslogCategory.PROTOCOL;
+
+/**
+ * Runs the blocking Home Assistant I/O of a single {@link HomeAssistantProtocol} (connection checks, asset imports,
+ * resynchronisation and command dispatch) so it never occupies the shared container executor threads. When the runtime
+ * supports virtual threads every task gets its own virtual thread, so many slow calls to a hub do not tie up platform
+ * threads; otherwise a cached pool of daemon threads is used.
+ * <p>
+ * {@link #close} cancels every task still running and rejects new ones. Cancelling interrupts the thread of a task,
+ * which only stops tasks blocked in interruptible waits; a task waiting on a Home Assistant request is not interrupted
+ * and keeps running until the protocol aborts the request by closing its {@link HomeAssistantHttpClient}, so tasks
+ * must also check whether the protocol is still running between steps.
+ */
+public class HomeAssistantIoScope implements Executor, AutoCloseable {
+
+    private static final Logger LOG = SyslogCategory.getLogger(PROTOCOL, HomeAssistantIoScope.class);
+
+    protected final String name;
+    protected final ExecutorService executor;
+    protected final boolean virtualThreads;
+    // Key: Result of the task, Value: Future of the running task
+    protected final Map<CompletableFuture<Void>, Future<?>> tasks = new ConcurrentHashMap<>();
+    protected volatile boolean closed;
+
+    public HomeAssistantIoScope(String name, boolean useVirtualThreads) {
+        this.name = name;
+        ExecutorService virtualExecutor = useVirtualThreads ? newVirtualThreadExecutor() : null;
+        this.virtualThreads = virtualExecutor != null;
+        this.executor = virtualExecutor != null ? virtualExecutor : newPlatformThreadExecutor(name);
+    }
+
+    // Uses reflection so the module still runs (with platform threads) on runtimes without virtual threads
+    protected static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    protected static ExecutorService newPlatformThreadExecutor(String name) {
+        AtomicInteger threadCount = new AtomicInteger();
+        return Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "HomeAssistant-io-" + name + "-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // Runs the task in this scope, the task is silently dropped if the scope has been closed
+    @Override
+    public void execute(Runnable task) {
+        submit(task);
+    }
+
+    // Runs the task in this scope, the returned future is cancelled if the scope is closed before the task completes
+    public CompletableFuture<Void> submit(Runnable task) {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        if (closed) {
+            result.cancel(false);
+            return result;
+        }
+
+        try {
+            Future<?> future = executor.submit(() -> {
+                try {
+                    task.run();
+                    result.complete(null);
+                } catch (Exception e) {
+                    if (!closed) {
+                        LOG.log(Level.WARNING, "Home Assistant I/O task failed: " + name, e);
+                    }
+                    result.completeExceptionally(e);
+                }
+            });
+            tasks.put(result, future);
+            result.whenComplete((r, e) -> {
+                tasks.remove(result);
+                if (result.isCancelled()) {
+                    future.cancel(true);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            result.cancel(false);
+        }
+        return result;
+    }
+
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    public int getActiveTaskCount() {
+        return tasks.size();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        tasks.forEach((result, future) -> {
+            future.cancel(true);
+            result.cancel(false);
+        });
+        tasks.clear();
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,29 @@
+package org.openremote.agent.custom;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import org.openremote.agent.custom.entities.HomeAssistantBaseEntity;
+import org.openremote.agent.custom.entities.HomeAssistantEntitiesMessage;
+import org.openremote.agent.custom.entities.HomeAssistantEntityState;
+
+import java.util.List;
+
+/**
+ * Shared Jackson readers of the Home Assistant payloads; readers are immutable and thread safe so they are built once
+ * from a single mapper (sharing its deserializer cache) rather than per client or per call.
+ */
+final class HomeAssistantJson {
+
+    static final ObjectMapper MAPPER = new ObjectMapper();
+    static final JsonFactory FACTORY = MAPPER.getFactory();
+    static final ObjectReader ENTITY_STATE_READER = MAPPER.readerFor(HomeAssistantEntityState.class);
+    static final ObjectReader ENTITIES_MESSAGE_READER = MAPPER.readerFor(HomeAssistantEntitiesMessage.class);
+    static final ObjectReader ENTITY_READER = MAPPER.readerFor(HomeAssistantBaseEntity.class);
+    static final ObjectReader ENTITIES_READER = MAPPER.readerFor(new TypeReference<List<HomeAssistantBaseEntity>>() {
+    });
+
+    private HomeAssistantJson() {
+    }
+}
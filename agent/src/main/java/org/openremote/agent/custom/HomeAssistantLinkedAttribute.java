@@ -0,0 +1,81 @@
+package org.openremote.agent.custom;
+
+import org.openremote.model.attribute.Attribute;
+import org.openremote.model.attribute.AttributeRef;
+
+/**
+ * A linked {@link Attribute} of a Home Assistant asset together with its {@link HomeAssistantAgentLink}; instances are
+ * created when the attribute is linked to the {@link HomeAssistantProtocol} and held by the
+ * {@link HomeAssistantEntityRoutingTable} so inbound entity events can be dispatched without any asset lookups.
+ */
+public class HomeAssistantLinkedAttribute {
+
+    protected final AttributeRef attributeRef;
+    protected final Attribute<?> attribute;
+    protected final HomeAssistantAgentLink agentLink;
+    protected final Class<?> valueType;
+    protected final HomeAssistantUpdateFilter updateFilter;
+    protected volatile Object lastValue;
+
+    public HomeAssistantLinkedAttribute(AttributeRef attributeRef, Attribute<?> attribute, HomeAssistantAgentLink agentLink) {
+        this.attributeRef = attributeRef;
+        this.attribute = attribute;
+        this.agentLink = agentLink;
+        this.valueType = attribute.getType().getType();
+        this.lastValue = attribute.getValue().orElse(null);
+        this.updateFilter = HomeAssistantUpdateFilter.isConfigured(agentLink) ? new HomeAssistantUpdateFilter(agentLink) : null;
+        if (updateFilter != null) {
+            updateFilter.onValueSet(lastValue);
+        }
+    }
+
+    public AttributeRef getAttributeRef() {
+        return attributeRef;
+    }
+
+    public String getAssetId() {
+        return attributeRef.getId();
+    }
+
+    public String getAttributeName() {
+        return attributeRef.getName();
+    }
+
+    public Attribute<?> getAttribute() {
+        return attribute;
+    }
+
+    public HomeAssistantAgentLink getAgentLink() {
+        return agentLink;
+    }
+
+    // Returns the filter for inbound updates or null if the agent link has no filter settings
+    public HomeAssistantUpdateFilter getUpdateFilter() {
+        return updateFilter;
+    }
+
+    // The last value known to be stored for this attribute (either at link time or the last value we published)
+    public Object getLastValue() {
+        return lastValue;
+    }
+
+    public void setLastValue(Object lastValue) {
+        this.lastValue = lastValue;
+    }
+
+    // Sets the value stored for this attribute other than by publishing an inbound update (e.g. when it is written), so
+    // inbound updates and the update filter compare against it
+    public void onValueSet(Object value) {
+        setLastValue(value);
+        if (updateFilter != null) {
+            synchronized (updateFilter) {
+                updateFilter.onValueSet(value);
+            }
+        }
+    }
+
+    // The java type of the attribute value
+    public Class<?> getValueType() {
+        return valueType;
+    }
+}
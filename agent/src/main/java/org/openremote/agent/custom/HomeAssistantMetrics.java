@@ -0,0 +1,300 @@
+package org.openremote.agent.custom;
+
+import io.micrometer.core.instrument.Clock;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import io.micrometer.core.instrument.distribution.ValueAtPercentile;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntSupplier;
+
+/**
+ * Hot path counters and latency timers of a single {@link HomeAssistantProtocol}, tagged with the agent id. The meters
+ * always record to a local registry (so the diagnostics attribute of the {@link HomeAssistantAgent} and tests can read
+ * them) and are exported through the meter registry of the container while the protocol is started; the container has
+ * no registry when metrics are disabled.
+ */
+public class HomeAssistantMetrics {
+
+    public static final String METER_PREFIX = "or.homeassistant.";
+    public static final String AGENT_TAG = "agent";
+
+    protected final String agentId;
+    // Meters are recorded through the composite registry and read from the local registry, the order in which a composite
+    // reads its child registries is undefined and an export registry only holds values since it was added
+    protected final SimpleMeterRegistry localRegistry = new SimpleMeterRegistry();
+    protected final CompositeMeterRegistry registry = new CompositeMeterRegistry(Clock.SYSTEM, List.of(localRegistry));
+    protected final Counter eventsReceived;
+    protected final Counter eventsDropped;
+    protected final Counter eventsSuppressed;
+    protected final Counter eventsPublished;
+    protected final Counter commandsSent;
+    protected final Counter commandsFailed;
+    protected final Counter commandsMerged;
+    protected final Counter reconnects;
+    protected final Timer parseTime;
+    protected final Timer assetLookupTime;
+    protected final Timer commandLatency;
+    protected final Timer httpLatency;
+    protected final AtomicLong lastDiscoveryDurationMillis = new AtomicLong();
+    protected volatile IntSupplier inboundQueueDepth = () -> 0;
+    // Rate of received events, sampled when read
+    protected long rateSampleNanos = System.nanoTime();
+    protected long rateSampleCount;
+    protected double eventsPerSecond;
+    protected MeterRegistry exportRegistry;
+
+    public HomeAssistantMetrics(String agentId) {
+        this.agentId = agentId;
+        eventsReceived = counter("events.received");
+        eventsDropped = counter("events.dropped");
+        eventsSuppressed = counter("events.suppressed");
+        eventsPublished = counter("events.published");
+        commandsSent = counter("commands.sent");
+        commandsFailed = counter("commands.failed");
+        commandsMerged = counter("commands.merged");
+        reconnects = counter("reconnects");
+        parseTime = timer("parse.time");
+        assetLookupTime = timer("asset.lookup.time");
+        commandLatency = timer("command.latency");
+        httpLatency = timer("http.latency");
+        Gauge.builder(METER_PREFIX + "inbound.queue.depth", this, HomeAssistantMetrics::getInboundQueueDepth)
+            .tag(AGENT_TAG, agentId)
+            .register(registry);
+        Gauge.builder(METER_PREFIX + "discovery.duration", lastDiscoveryDurationMillis, AtomicLong::get)
+            .tag(AGENT_TAG, agentId)
+            .baseUnit("milliseconds")
+            .register(registry);
+    }
+
+    /**
+     * Exports the meters through the given registry (e.g. the meter registry of the container) until {@link #unregister}
+     * is called; does nothing if the registry is null.
+     */
+    public synchronized void register(MeterRegistry exportRegistry) {
+        unregister();
+        if (exportRegistry != null) {
+            registry.add(exportRegistry);
+            this.exportRegistry = exportRegistry;
+        }
+    }
+
+    // Removes the meters from the export registry so a stopped or deleted agent is no longer reported
+    public synchronized void unregister() {
+        if (exportRegistry == null) {
+            return;
+        }
+        registry.remove(exportRegistry);
+        for (Meter meter : registry.getMeters()) {
+            exportRegistry.remove(meter.getId());
+        }
+        exportRegistry = null;
+    }
+
+    public void setInboundQueueDepth(IntSupplier inboundQueueDepth) {
+        this.inboundQueueDepth = inboundQueueDepth;
+    }
+
+    public void onEventReceived() {
+        eventsReceived.increment();
+    }
+
+    public void onEventDropped() {
+        eventsDropped.increment();
+    }
+
+    public void onEventSuppressed() {
+        eventsSuppressed.increment();
+    }
+
+    public void onEventPublished() {
+        eventsPublished.increment();
+    }
+
+    public void onParsed(long nanos) {
+        parseTime.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void onAssetLookup(long nanos) {
+        assetLookupTime.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    // A service call targeting the given number of entities has completed
+    public void onCommandCompleted(long nanos, boolean success, int entityCount) {
+        commandsSent.increment();
+        commandsMerged.increment(entityCount - 1);
+        if (!success) {
+            commandsFailed.increment();
+        }
+        commandLatency.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void onHttpRequestCompleted(long nanos) {
+        httpLatency.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void onReconnected() {
+        reconnects.increment();
+    }
+
+    public void onDiscoveryCompleted(long durationMillis) {
+        lastDiscoveryDurationMillis.set(durationMillis);
+    }
+
+    public long getEventsReceived() {
+        return (long) count(eventsReceived);
+    }
+
+    public synchronized double getEventsReceivedPerSecond() {
+        long now = System.nanoTime();
+        long elapsed = now - rateSampleNanos;
+        if (elapsed >= TimeUnit.SECONDS.toNanos(1)) {
+            long count = getEventsReceived();
+            eventsPerSecond = (count - rateSampleCount) / (elapsed / 1_000_000_000d);
+            rateSampleCount = count;
+            rateSampleNanos = now;
+        }
+        return eventsPerSecond;
+    }
+
+    public long getEventsDropped() {
+        return (long) count(eventsDropped);
+    }
+
+    public long getEventsSuppressed() {
+        return (long) count(eventsSuppressed);
+    }
+
+    public long getEventsPublished() {
+        return (long) count(eventsPublished);
+    }
+
+    public long getParseCount() {
+        return local(parseTime).count();
+    }
+
+    public double getParseTimeMeanMillis() {
+        return local(parseTime).mean(TimeUnit.MILLISECONDS);
+    }
+
+    public double getParseTimeP99Millis() {
+        return getPercentileMillis(local(parseTime), 0.99);
+    }
+
+    public double getAssetLookupTimeMeanMillis() {
+        return local(assetLookupTime).mean(TimeUnit.MILLISECONDS);
+    }
+
+    public double getAssetLookupTimeP99Millis() {
+        return getPercentileMillis(local(assetLookupTime), 0.99);
+    }
+
+    public long getCommandsSent() {
+        return (long) count(commandsSent);
+    }
+
+    public long getCommandsFailed() {
+        return (long) count(commandsFailed);
+    }
+
+    public long getCommandsMerged() {
+        return (long) count(commandsMerged);
+    }
+
+    public double getCommandLatencyMeanMillis() {
+        return local(commandLatency).mean(TimeUnit.MILLISECONDS);
+    }
+
+    public double getCommandLatencyP50Millis() {
+        return getPercentileMillis(local(commandLatency), 0.5);
+    }
+
+    public double getCommandLatencyP99Millis() {
+        return getPercentileMillis(local(commandLatency), 0.99);
+    }
+
+    public long getHttpRequests() {
+        return local(httpLatency).count();
+    }
+
+    public double getHttpLatencyMeanMillis() {
+        return local(httpLatency).mean(TimeUnit.MILLISECONDS);
+    }
+
+    public double getHttpLatencyP99Millis() {
+        return getPercentileMillis(local(httpLatency), 0.99);
+    }
+
+    public long getReconnects() {
+        return (long) count(reconnects);
+    }
+
+    public long getLastDiscoveryDurationMillis() {
+        return lastDiscoveryDurationMillis.get();
+    }
+
+    public int getInboundQueueDepth() {
+        return inboundQueueDepth.getAsInt();
+    }
+
+    // Summary of the metrics for the diagnostics attribute of the agent
+    public Map<String, Object> toMap() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("eventsReceived", getEventsReceived());
+        map.put("eventsReceivedPerSecond", getEventsReceivedPerSecond());
+        map.put("eventsDropped", getEventsDropped());
+        map.put("eventsSuppressed", getEventsSuppressed());
+        map.put("eventsPublished", getEventsPublished());
+        map.put("parseTimeMeanMillis", getParseTimeMeanMillis());
+        map.put("assetLookupTimeMeanMillis", getAssetLookupTimeMeanMillis());
+        map.put("commandsSent", getCommandsSent());
+        map.put("commandsFailed", getCommandsFailed());
+        map.put("commandsMerged", getCommandsMerged());
+        map.put("commandLatencyP50Millis", getCommandLatencyP50Millis());
+        map.put("commandLatencyP99Millis", getCommandLatencyP99Millis());
+        map.put("httpRequests", getHttpRequests());
+        map.put("httpLatencyP99Millis", getHttpLatencyP99Millis());
+        map.put("reconnects", getReconnects());
+        map.put("lastDiscoveryDurationMillis", getLastDiscoveryDurationMillis());
+        map.put("inboundQueueDepth", getInboundQueueDepth());
+        return map;
+    }
+
+    protected Counter counter(String name) {
+        return Counter.builder(METER_PREFIX + name).tag(AGENT_TAG, agentId).register(registry);
+    }
+
+    // Timers publish their percentiles so the diagnostics can report them without a histogram backend
+    protected Timer timer(String name) {
+        return Timer.builder(METER_PREFIX + name)
+            .tag(AGENT_TAG, agentId)
+            .publishPercentiles(0.5, 0.99)
+            .register(registry);
+    }
+
+    protected double count(Counter counter) {
+        return localRegistry.get(counter.getId().getName()).tags(counter.getId().getTags()).counter().count();
+    }
+
+    protected Timer local(Timer timer) {
+        return localRegistry.get(timer.getId().getName()).tags(timer.getId().getTags()).timer();
+    }
+
+    protected static double getPercentileMillis(Timer timer, double percentile) {
+        for (ValueAtPercentile value : timer.takeSnapshot().percentileValues()) {
+            if (value.percentile() == percentile) {
+                return value.value(TimeUnit.MILLISECONDS);
+            }
+        }
+        return 0;
+    }
+}
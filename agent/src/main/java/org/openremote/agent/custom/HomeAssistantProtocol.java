@@ -19,24 +19,31 @@
  */
 package org.openremote.agent.custom;
 
-import org.openremote.agent.custom.assets.HomeAssistantBaseAsset;
 import org.openremote.agent.custom.assets.HomeAssistantLightAsset;
+import org.openremote.agent.custom.commands.EntityStateCommand;
+import org.openremote.agent.custom.commands.EntityStateCommandAggregator;
 import org.openremote.agent.custom.commands.EntityStateCommandFactory;
+import org.openremote.agent.custom.commands.EntityStateCommandQueue;
 import org.openremote.agent.protocol.AbstractProtocol;
 import org.openremote.agent.protocol.ProtocolAssetService;
-import org.openremote.container.util.UniqueIdentifierGenerator;
 import org.openremote.model.Container;
 import org.openremote.model.asset.AssetTreeNode;
 import org.openremote.model.asset.agent.ConnectionStatus;
 import org.openremote.model.asset.impl.GroupAsset;
 import org.openremote.model.attribute.Attribute;
 import org.openremote.model.attribute.AttributeEvent;
+import org.openremote.model.attribute.AttributeRef;
 import org.openremote.model.protocol.ProtocolAssetDiscovery;
 import org.openremote.model.syslog.SyslogCategory;
 
 import java.net.URI;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 import java.util.logging.Logger;
 
@@ -50,14 +57,32 @@ import static org.openremote.model.syslog.SyslogCategory.PROTOCOL;
 public class HomeAssistantProtocol extends AbstractProtocol<HomeAssistantAgent, HomeAssistantAgentLink> implements ProtocolAssetDiscovery {
 
     public static final String PROTOCOL_DISPLAY_NAME = "HomeAssistant Client";
+    public static final int DEFAULT_DISCOVERY_BATCH_SIZE = 500;
+    public static final int DEFAULT_COMMAND_AGGREGATION_MILLIS = 10;
+    public static final int ENTITIES_SUBSCRIPTION_DEBOUNCE_MILLIS = 500;
+    public static final long INITIAL_CONNECT_RETRY_DELAY_MILLIS = 1000;
+    public static final long MAX_CONNECT_RETRY_DELAY_MILLIS = 60000;
     private static final Logger LOG = SyslogCategory.getLogger(PROTOCOL, HomeAssistantProtocol.class);
-    public HomeAssistantEntityProcessor entityProcessor;
+    public volatile HomeAssistantEntityProcessor entityProcessor;
     protected HomeAssistantHttpClient client;
-    protected HomeAssistantWebSocketClient webSocketClient;
+    protected volatile HomeAssistantWebSocketClient webSocketClient;
+    protected volatile EntityStateCommandQueue commandQueue;
+    protected volatile EntityStateCommandAggregator commandAggregator;
+    protected HomeAssistantIoScope ioScope;
+    protected ScheduledFuture<?> entitiesSubscriptionUpdate;
+    protected ScheduledFuture<?> diagnosticsUpdate;
+    protected ScheduledFuture<?> connectRetry;
+    protected int connectAttempts;
+    protected final HomeAssistantMetrics metrics;
+    protected HomeAssistantHubScheduler hubScheduler;
+    protected volatile HomeAssistantHubScheduler.Hub hub;
+    protected final HomeAssistantEntityRoutingTable routingTable = new HomeAssistantEntityRoutingTable();
     protected volatile boolean running;
+    private final Object lifecycleLock = new Object();
 
     public HomeAssistantProtocol(HomeAssistantAgent agent) {
         super(agent);
+        this.metrics = new HomeAssistantMetrics(agent.getId());
     }
 
     @Override
@@ -76,73 +101,310 @@ public class HomeAssistantProtocol extends AbstractProtocol<HomeAssistantAgent,
             return new IllegalArgumentException(msg);
         });
 
-        client = new HomeAssistantHttpClient(url, accessToken);
-        if (client.isConnectionSuccessful()) {
-            setConnectionStatus(ConnectionStatus.CONNECTED);
-            LOG.info("Connection to HomeAssistant API successful");
+        client = new HomeAssistantHttpClient(url, accessToken,
+            agent.getRequestTimeoutMillis().orElse(HomeAssistantHttpClient.DEFAULT_REQUEST_TIMEOUT_MILLIS),
+            agent.getMaxConcurrentRequests().orElse(HomeAssistantHttpClient.DEFAULT_MAX_CONCURRENT_REQUESTS),
+            metrics);
+        assetService = container.getService(ProtocolAssetService.class);
+        executorService = container.getExecutorService();
+        ioScope = new HomeAssistantIoScope(agent.getId(), agent.getUseVirtualThreads().orElse(true));
+        metrics.register(container.getMeterRegistry());
+        agent.getDiagnosticsIntervalMillis().ifPresent(interval ->
+            diagnosticsUpdate = executorService.scheduleAtFixedRate(this::publishDiagnostics, interval, interval, TimeUnit.MILLISECONDS));
+
+        // Connecting and importing can take long for slow or large hubs so it must not block the container executor
+        setConnectionStatus(ConnectionStatus.CONNECTING);
+        ioScope.execute(this::connect);
+    }
 
-            assetService = container.getService(ProtocolAssetService.class);
-            executorService = container.getExecutorService();
-            webSocketClient = createWebSocketClient();
-            entityProcessor = new HomeAssistantEntityProcessor(this, assetService);
+    /**
+     * Checks the connection to Home Assistant, opens the websocket and imports the assets (merging them in batches as
+     * they are converted); the agent is only reported as connected once the import has completed. When the hub cannot
+     * be reached or the import fails the attempt is retried with a jittered exponential backoff.
+     */
+    protected void connect() {
+        if (!client.isConnectionSuccessful()) {
+            LOG.warning("Connection to HomeAssistant failed: " + this);
+            scheduleConnectRetry();
+            return;
+        }
 
-            importAssets();
-        } else {
-            LOG.warning("Connection to HomeAssistant failed");
-            setConnectionStatus(ConnectionStatus.DISCONNECTED);
+        synchronized (lifecycleLock) {
+            if (!running) {
+                return;
+            }
+            if (webSocketClient == null) {
+                LOG.info("Connection to HomeAssistant API successful, importing assets: " + this);
+                openConnection();
+            }
         }
 
+        if (!importAssets()) {
+            scheduleConnectRetry();
+            return;
+        }
+
+        synchronized (lifecycleLock) {
+            if (running) {
+                connectAttempts = 0;
+                setConnectionStatus(ConnectionStatus.CONNECTED);
+            }
+        }
+    }
+
+    // Creates the command queue, inbound queue, entity processor and websocket client of the hub
+    private void openConnection() {
+        commandAggregator = new EntityStateCommandAggregator(executorService,
+            agent.getCommandAggregationMillis().orElse(DEFAULT_COMMAND_AGGREGATION_MILLIS),
+            EntityStateCommandAggregator.DEFAULT_MAX_GROUP_SIZE, this::sendEntityStateCommand);
+        commandQueue = new EntityStateCommandQueue(ioScope, commandAggregator);
+        hubScheduler = HomeAssistantHubScheduler.acquire();
+        metrics.setInboundQueueDepth(() -> hub != null ? hub.getQueueDepth() : 0);
+        hub = hubScheduler.register(agent.getId(),
+            agent.getInboundQueueCapacity().orElse(HomeAssistantHubScheduler.DEFAULT_QUEUE_CAPACITY),
+            agent.getInboundOverflowPolicy().orElse(HomeAssistantIngestQueue.OverflowPolicy.MERGE_BY_ENTITY));
+        entityProcessor = new HomeAssistantEntityProcessor(this, assetService);
+        webSocketClient = createWebSocketClient();
     }
 
-    // Imports all entities from Home Assistant and merges them into the agents asset store
+    protected void scheduleConnectRetry() {
+        synchronized (lifecycleLock) {
+            if (!running || executorService == null) {
+                return;
+            }
+            long delayMillis = getConnectRetryDelayMillis(connectAttempts++);
+            LOG.info("Retrying connection to HomeAssistant in " + delayMillis + "ms (attempt " + connectAttempts + "): " + this);
+            setConnectionStatus(ConnectionStatus.WAITING);
+            connectRetry = executorService.schedule(() -> {
+                if (running) {
+                    setConnectionStatus(ConnectionStatus.CONNECTING);
+                    ioScope.execute(this::connect);
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // Exponential backoff with equal jitter: half of the delay is fixed, the other half random, so retries of many agents
+    // that failed at the same time (e.g. after a network outage) are spread out
+    protected static long getConnectRetryDelayMillis(int attempt) {
+        long delay = Math.min(MAX_CONNECT_RETRY_DELAY_MILLIS, INITIAL_CONNECT_RETRY_DELAY_MILLIS << Math.min(attempt, 16));
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    // Imports all entities from Home Assistant and merges them into the agents asset store, returns true if successful
     // Uses the assetDiscoveryConsumer to pass the assets back to the agent
-    private void importAssets() {
+    private boolean importAssets() {
         var assetConsumer = new Consumer<AssetTreeNode[]>() {
             @Override
             public void accept(AssetTreeNode[] assetTreeNodes) {
                 for (var assetTreeNode : assetTreeNodes) {
-                    assetService.mergeAsset(assetTreeNode.getAsset());
+                    mergeAssetTree(assetTreeNode);
                 }
             }
         };
 
-        startAssetDiscovery(assetConsumer);
+        return discoverAssets(assetConsumer);
+    }
+
+    // Merges the asset of the node before its children so parents always exist when children are merged
+    private void mergeAssetTree(AssetTreeNode assetTreeNode) {
+        assetService.mergeAsset(assetTreeNode.getAsset());
+        if (assetTreeNode.getChildren() != null) {
+            for (var child : assetTreeNode.getChildren()) {
+                mergeAssetTree(child);
+            }
+        }
     }
 
 
     @Override
     protected void doStop(Container container) {
-        running = false;
+        synchronized (lifecycleLock) {
+            running = false;
+        }
+        if (connectRetry != null) {
+            connectRetry.cancel(false);
+            connectRetry = null;
+        }
+        if (ioScope != null) {
+            ioScope.close();
+        }
+        if (client != null) {
+            client.close(); // aborts the requests a running connect, import or resynchronisation waits on
+        }
+        if (entitiesSubscriptionUpdate != null) {
+            entitiesSubscriptionUpdate.cancel(false);
+        }
+        if (diagnosticsUpdate != null) {
+            diagnosticsUpdate.cancel(false);
+            diagnosticsUpdate = null;
+        }
+        metrics.unregister();
+        if (commandQueue != null) {
+            commandQueue.stop();
+        }
+        if (commandAggregator != null) {
+            commandAggregator.stop();
+        }
         if (webSocketClient != null) {
             webSocketClient.disconnect();
         }
+        if (hub != null) {
+            hub.close();
+            hub = null;
+        }
+        if (hubScheduler != null) {
+            HomeAssistantHubScheduler.release();
+            hubScheduler = null;
+        }
     }
 
     @Override
     protected void doLinkAttribute(String assetId, Attribute<?> attribute, HomeAssistantAgentLink agentLink) throws RuntimeException {
+        agentLink.getEntityId().ifPresent(entityId -> {
+            var attributeRef = new AttributeRef(assetId, attribute.getName());
+            routingTable.link(entityId, new HomeAssistantLinkedAttribute(attributeRef, attribute, agentLink));
+            scheduleEntitiesSubscriptionUpdate();
+        });
     }
 
     @Override
     protected void doUnlinkAttribute(String assetId, Attribute<?> attribute, HomeAssistantAgentLink agentLink) {
+        agentLink.getEntityId().ifPresent(entityId -> {
+            routingTable.unlink(entityId, new AttributeRef(assetId, attribute.getName()));
+            scheduleEntitiesSubscriptionUpdate();
+        });
+    }
+
+    // Links are (un)linked in bursts (e.g. during import) so the subscription update is debounced
+    protected void scheduleEntitiesSubscriptionUpdate() {
+        if (executorService == null || webSocketClient == null) {
+            return;
+        }
+        synchronized (routingTable) {
+            if (entitiesSubscriptionUpdate != null && entitiesSubscriptionUpdate.getDelay(TimeUnit.MILLISECONDS) > 0) {
+                return; // an update that has not started yet will pick up this change
+            }
+            entitiesSubscriptionUpdate = executorService.schedule(() -> {
+                if (running && webSocketClient != null) {
+                    webSocketClient.updateEntitiesSubscription();
+                }
+            }, ENTITIES_SUBSCRIPTION_DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS);
+        }
     }
 
     @Override
     protected void doLinkedAttributeWrite(Attribute<?> attribute, HomeAssistantAgentLink agentLink, AttributeEvent event, Object processedValue) {
-        var asset = assetService.findAsset(event.getAssetId());
-        if (asset == null) {
-            return; // asset not found
+        if (commandQueue == null || agentLink.getEntityId().isEmpty() || agentLink.getDomainId().isEmpty()) {
+            return; // not connected or link is not bound to an entity
         }
-        if (attribute.getValue().equals(processedValue)) {
+        if (processedValue == null || attribute.getValue().map(value -> value.equals(processedValue)).orElse(false)) {
             updateLinkedAttribute(event.getAttributeState());
             return; // no change
         }
 
-        var command = EntityStateCommandFactory.createEntityStateCommand(asset, attribute, processedValue.toString());
+        // Service data values are sent as text, which Home Assistant cannot coerce back into lists or objects, so array
+        // and JSON attributes (e.g. rgb_color) are read only
+        if (!isWritableValue(processedValue)) {
+            LOG.warning("Cannot write a value of type " + processedValue.getClass().getSimpleName() + " to Home Assistant, attribute is read only: " + event.getRef());
+            return;
+        }
+
+        var command = EntityStateCommandFactory.createEntityStateCommand(agentLink.getEntityId().get(), attribute, processedValue.toString());
         if (command.isEmpty())
             return;
 
-        client.setEntityState(agentLink.domainId, command.get());
+        commandQueue.enqueue(agentLink.getDomainId().get(), command.get());
         updateLinkedAttribute(event.getAttributeState());
+        onLinkedAttributeWritten(agentLink.getEntityId().get(), event.getRef(), processedValue);
+    }
+
+    protected static boolean isWritableValue(Object value) {
+        return value instanceof String || value instanceof Number || value instanceof Boolean;
+    }
+
+    // The attribute now holds the written value so inbound values are compared against it; if the command fails or Home
+    // Assistant ignores it the next report of the old value is then published and corrects the attribute
+    protected void onLinkedAttributeWritten(String entityId, AttributeRef attributeRef, Object value) {
+        var linkedAttribute = routingTable.get(entityId, attributeRef);
+        if (linkedAttribute != null) {
+            linkedAttribute.onValueSet(HomeAssistantValueConverter.convert(value, linkedAttribute.getValueType()));
+        }
+    }
+
+    // Sends the command for the given entities over the websocket when it is authenticated, falling back to the REST API
+    // only if the request was never written; once written Home Assistant may have run it (a toggle must not run twice) so
+    // timeouts, a lost connection and rejected calls fail the command
+    protected CompletableFuture<?> sendEntityStateCommand(String domain, EntityStateCommand command, List<String> entityIds) {
+        long startNanos = System.nanoTime();
+        var webSocketClient = this.webSocketClient;
+        CompletableFuture<?> result;
+        if (webSocketClient == null || !webSocketClient.isAuthenticated()) {
+            result = client.setEntityStateAsync(domain, command, entityIds);
+        } else {
+            result = callServiceWithFallback(webSocketClient, domain, command, entityIds);
+        }
+        return result.whenComplete((value, e) ->
+            metrics.onCommandCompleted(System.nanoTime() - startNanos, e == null && !Boolean.FALSE.equals(value), entityIds.size()));
+    }
+
+    private CompletableFuture<?> callServiceWithFallback(HomeAssistantWebSocketClient webSocketClient, String domain,
+                                                         EntityStateCommand command, List<String> entityIds) {
+        return webSocketClient.callService(domain, command, entityIds).exceptionallyCompose(e -> {
+            Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+            if (!(cause instanceof HomeAssistantWebSocketClient.NotSentException)) {
+                return CompletableFuture.failedFuture(cause);
+            }
+            LOG.fine("Websocket service call not sent, falling back to REST: " + cause.getMessage());
+            return client.setEntityStateAsync(domain, command, entityIds).thenApply(result -> null);
+        });
+    }
+
+    // Schedules a task on the protocol executor, the task is not run if the protocol has been stopped by then
+    protected void schedule(Runnable task, long delayMillis) {
+        if (!running || executorService == null) {
+            return;
+        }
+        executorService.schedule(() -> {
+            if (running) {
+                task.run();
+            }
+        }, Math.max(0, delayMillis), TimeUnit.MILLISECONDS);
+    }
+
+    // Called when the websocket has re-authenticated after a connection loss; state changes made in Home Assistant during
+    // the outage were not received so the current states of the linked entities are fetched and any differences applied
+    protected void onWebSocketReconnected() {
+        if (!running || ioScope == null) {
+            return;
+        }
+        ioScope.execute(this::resynchroniseLinkedEntities);
+    }
+
+    protected void resynchroniseLinkedEntities() {
+        if (routingTable.isEmpty()) {
+            return;
+        }
+        long startMillis = System.currentTimeMillis();
+        // The entities are processed on the inbound queue of the hub, in order with the live events of the same entities
+        boolean success = client.streamEntities(entityId -> routingTable.get(entityId) != null,
+            entity -> dispatchInbound(entity.getEntityId(), () -> entityProcessor.resynchroniseEntity(entity)));
+        if (success) {
+            LOG.info("Resynchronised linked entities after reconnect in " + (System.currentTimeMillis() - startMillis) + "ms: " + this);
+        } else {
+            LOG.warning("Failed to resynchronise linked entities after reconnect: " + this);
+        }
+    }
+
+    // Queues the processing of an inbound websocket message on the inbound queue of this hub, returns false if it was dropped;
+    // the entity id (may be null) allows the message to be merged with a queued message of the same entity
+    protected boolean dispatchInbound(String entityId, Runnable task) {
+        var hub = this.hub;
+        return hub != null && hub.offer(entityId, task);
+    }
+
+    public HomeAssistantHubScheduler.Hub getHub() {
+        return hub;
     }
 
     // Called when an attribute is written to due to external changes made by Home Assistant
@@ -150,6 +412,33 @@ public class HomeAssistantProtocol extends AbstractProtocol<HomeAssistantAgent,
         updateLinkedAttribute(event.getAttributeState());
     }
 
+    public EntityStateCommandQueue getCommandQueue() {
+        return commandQueue;
+    }
+
+    public EntityStateCommandAggregator getCommandAggregator() {
+        return commandAggregator;
+    }
+
+    // Publishes a summary of the metrics to the read-only diagnostics attribute of the agent
+    protected void publishDiagnostics() {
+        if (running && assetService != null) {
+            assetService.sendAttributeEvent(new AttributeEvent(agent.getId(), HomeAssistantAgent.DIAGNOSTICS.getName(), metrics.toMap()));
+        }
+    }
+
+    public HomeAssistantMetrics getMetrics() {
+        return metrics;
+    }
+
+    public HomeAssistantIoScope getIoScope() {
+        return ioScope;
+    }
+
+    public HomeAssistantEntityRoutingTable getRoutingTable() {
+        return routingTable;
+    }
+
     @Override
     public String getProtocolName() {
         return PROTOCOL_DISPLAY_NAME;
@@ -163,42 +452,47 @@ public class HomeAssistantProtocol extends AbstractProtocol<HomeAssistantAgent,
 
     @Override
     public Future<Void> startAssetDiscovery(Consumer<AssetTreeNode[]> assetConsumer) {
-        var entities = client.getEntities();
-        if (entities.isPresent()) {
-            var assets = entityProcessor.convertEntitiesToAssets(entities.get());
-            if (assets.isPresent()) {
-
-                //TODO: Remove assets that are no longer present in Home Assistant
-                //Pseudo: assetService.removeAssetsNotInList(assets.get());
-
-                // Key: Asset type name, Value: Parent (group asset) id
-                HashMap<String, String> assetTypeGroupIds = new HashMap<String, String>();
-
-                for (var asset : assets.get()) {
-                    String entityType = HomeAssistantEntityProcessor.getEntityTypeFromEntityId(asset.getEntityId());
-                    if (!assetTypeGroupIds.containsKey(entityType)) {
-                        Map<String, Object> nameMap = new HashMap<>();
-                        nameMap.put("friendly_name", entityType);
-                        HomeAssistantBaseAsset groupAsset = entityProcessor.initiateAssetClass(nameMap, entityType, UniqueIdentifierGenerator.generateId());
-                        // GroupAsset groupAsset = new GroupAsset(entityType, HomeAssistantBaseAsset.class);
-
-                        groupAsset.setId(UniqueIdentifierGenerator.generateId());
-                        groupAsset.setParentId(agent.getId());
-                        groupAsset.setRealm(agent.getRealm());
-
-                        assetTypeGroupIds.put(entityType, groupAsset.getId());
-                        AssetTreeNode groupAssetNode = new AssetTreeNode(groupAsset);
-
-                        assetConsumer.accept(new AssetTreeNode[]{groupAssetNode});
-                    }
-                    asset.setParentId(assetTypeGroupIds.get(entityType));
-                    asset.setRealm(agent.getRealm());
-                    AssetTreeNode node = new AssetTreeNode(asset);
-                    assetConsumer.accept(new AssetTreeNode[]{node});
-                }
+        if (ioScope == null || entityProcessor == null) {
+            return CompletableFuture.failedFuture(new IllegalStateException("Protocol is not connected: " + this));
+        }
+        return ioScope.submit(() -> discoverAssets(assetConsumer));
+    }
+
+    // Streams the entities from Home Assistant and reconciles them with the existing assets, returns true if all entities
+    // were retrieved
+    protected boolean discoverAssets(Consumer<AssetTreeNode[]> assetConsumer) {
+        long startMillis = System.currentTimeMillis();
+        var reconciler = new HomeAssistantAssetReconciler(this, entityProcessor, assetService);
+        reconciler.load();
+        // Batches still being converted when the protocol is stopped are dropped
+        var batcher = new HomeAssistantDiscoveryBatcher(agent, entityProcessor, assetTreeNodes -> {
+            if (running) {
+                assetConsumer.accept(assetTreeNodes);
+            }
+        }, agent.getDiscoveryBatchSize().orElse(DEFAULT_DISCOVERY_BATCH_SIZE));
+        reconciler.getExistingGroupIds().forEach(batcher::addExistingGroup);
+
+        // Entities are streamed from Home Assistant and reconciled one at a time to keep memory usage bounded
+        boolean success = client.streamEntities(entityProcessor::isEntityImported, entity -> {
+            if (running) {
+                reconciler.reconcile(entity, batcher);
             }
+        });
+        if (!running) {
+            LOG.info("Asset discovery stopped as the protocol has been stopped: " + this);
+            return false;
+        }
+        batcher.flush();
+
+        if (success && running) {
+            reconciler.removeMissing();
+        } else if (!success) {
+            LOG.warning("Failed to retrieve all entities from Home Assistant, not removing any assets: " + this);
         }
-        return null;
+        metrics.onDiscoveryCompleted(System.currentTimeMillis() - startMillis);
+        LOG.info("Asset discovery completed in " + (System.currentTimeMillis() - startMillis) + "ms ("
+            + reconciler.getSummary() + "): " + this);
+        return success;
     }
 
 
@@ -211,6 +505,7 @@ public class HomeAssistantProtocol extends AbstractProtocol<HomeAssistantAgent,
         var wsUrlString = (getAgent().getHomeAssistantUrl().get() + "/api/websocket").replace("http", "ws");
         var wsUrl = URI.create(wsUrlString);
 
-        return new HomeAssistantWebSocketClient(this, wsUrl);
+        return new HomeAssistantWebSocketClient(this, wsUrl,
+            agent.getRequestTimeoutMillis().orElse(HomeAssistantHttpClient.DEFAULT_REQUEST_TIMEOUT_MILLIS));
     }
 }
@@ -0,0 +1,147 @@
+package org.openremote.agent.custom;
+
+/**
+ * Rate and deadband filter for inbound updates of a single linked attribute, configured by the deadband, minimum
+ * interval and maximum silence settings of the {@link HomeAssistantAgentLink}:
+ *
+ * <ul>
+ * <li>Values equal to the last published value, and numeric values within the (absolute or percentage) deadband of it,
+ * are suppressed (dropping any deferred value) unless nothing was published for the maximum silence period
+ * <li>Values arriving within the minimum interval after the last publish are deferred; only the latest deferred value
+ * is published once the interval has passed
+ * </ul>
+ *
+ * Instances are not thread safe, callers must synchronize on the filter.
+ */
+public class HomeAssistantUpdateFilter {
+
+    public enum Decision {
+        PUBLISH,
+        SUPPRESS,
+        DEFER
+    }
+
+    protected final double deadband;
+    protected final double deadbandPercent;
+    protected final long minIntervalMillis;
+    protected final long maxSilenceMillis;
+    protected Object lastPublishedValue;
+    protected long lastPublishedMillis = Long.MIN_VALUE;
+    protected Object deferredValue;
+    protected boolean deferred;
+    protected boolean flushScheduled;
+
+    public HomeAssistantUpdateFilter(HomeAssistantAgentLink agentLink) {
+        this.deadband = agentLink.getDeadband().orElse(0d);
+        this.deadbandPercent = agentLink.getDeadbandPercent().orElse(0d);
+        this.minIntervalMillis = agentLink.getMinIntervalMillis().orElse(0);
+        this.maxSilenceMillis = agentLink.getMaxSilenceMillis().orElse(0);
+    }
+
+    // Returns true if the link has any filter settings; links without settings do not need a filter
+    public static boolean isConfigured(HomeAssistantAgentLink agentLink) {
+        return agentLink.getDeadband().orElse(0d) > 0
+            || agentLink.getDeadbandPercent().orElse(0d) > 0
+            || agentLink.getMinIntervalMillis().orElse(0) > 0
+            || agentLink.getMaxSilenceMillis().orElse(0) > 0;
+    }
+
+    public Decision evaluate(Object value, long timestampMillis) {
+        boolean published = lastPublishedMillis != Long.MIN_VALUE;
+        long sinceLastPublish = timestampMillis - lastPublishedMillis;
+        boolean silenceExceeded = published && maxSilenceMillis > 0 && sinceLastPublish >= maxSilenceMillis;
+
+        if (!silenceExceeded && (HomeAssistantValueConverter.valueEquals(lastPublishedValue, value) || isWithinDeadband(value))) {
+            deferred = false;
+            deferredValue = null;
+            return Decision.SUPPRESS;
+        }
+
+        if (published && minIntervalMillis > 0 && sinceLastPublish < minIntervalMillis) {
+            deferredValue = value;
+            deferred = true;
+            return Decision.DEFER;
+        }
+
+        return Decision.PUBLISH;
+    }
+
+    public void onPublished(Object value, long timestampMillis) {
+        lastPublishedValue = value;
+        lastPublishedMillis = timestampMillis;
+        deferred = false;
+        deferredValue = null;
+    }
+
+    // Sets the value the attribute holds without it being published through the filter (the value at link time or a
+    // written value) so later values are compared against it; a deferred value is dropped as it is older
+    public void onValueSet(Object value) {
+        lastPublishedValue = value;
+        deferred = false;
+        deferredValue = null;
+    }
+
+    // Returns the time at which a deferred value can be published
+    public long getDeferredUntilMillis() {
+        return lastPublishedMillis + minIntervalMillis;
+    }
+
+    // Marks a flush of the deferred value as scheduled, returns false if one was already scheduled
+    public boolean scheduleFlush() {
+        if (flushScheduled) {
+            return false;
+        }
+        flushScheduled = true;
+        return true;
+    }
+
+    // Takes the deferred value for publishing (clearing the scheduled flush), returns false if there is none
+    public boolean takeDeferredValue(long timestampMillis) {
+        flushScheduled = false;
+        if (!deferred) {
+            return false;
+        }
+        onPublished(deferredValue, timestampMillis);
+        return true;
+    }
+
+    public boolean hasDeferredValue() {
+        return deferred;
+    }
+
+    public Object getDeferredValue() {
+        return deferredValue;
+    }
+
+    public Object getLastPublishedValue() {
+        return lastPublishedValue;
+    }
+
+    protected boolean isWithinDeadband(Object value) {
+        Double number = toDouble(value);
+        Double lastNumber = toDouble(lastPublishedValue);
+        if (number == null || lastNumber == null) {
+            return false;
+        }
+        double difference = Math.abs(number - lastNumber);
+        if (deadband > 0 && difference < deadband) {
+            return true;
+        }
+        return deadbandPercent > 0 && difference < Math.abs(lastNumber) * deadbandPercent / 100d;
+    }
+
+    // Sensor states are text attributes so numeric strings are treated as numbers too
+    protected static Double toDouble(Object value) {
+        if (value instanceof Number number) {
+            return number.doubleValue();
+        }
+        if (value instanceof String string) {
+            try {
+                return Double.parseDouble(string);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        return null;
+    }
+}
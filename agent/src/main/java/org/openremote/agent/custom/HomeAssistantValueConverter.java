@@ -0,0 +1,128 @@
+package org.openremote.agent.custom;
+
+import java.lang.reflect.Array;
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Converts values received from Home Assistant to the value type of the attribute they are written to and compares
+ * values in that typed form; Home Assistant sends numbers as whichever JSON number fits and booleans as on/off strings so
+ * plain {@link Object#equals} comparisons of received and stored values are unreliable.
+ */
+public final class HomeAssistantValueConverter {
+
+    private HomeAssistantValueConverter() {
+    }
+
+    /**
+     * Converts the value to the given type, returns null if the value cannot be represented as that type. Values that
+     * already are an instance of the type are returned as is.
+     */
+    public static Object convert(Object value, Class<?> type) {
+        if (value == null || type.isInstance(value)) {
+            return value;
+        }
+        if (type == Boolean.class) {
+            return toBoolean(value);
+        }
+        if (type == String.class) {
+            return value instanceof Number || value instanceof Boolean ? value.toString() : null;
+        }
+        if (Number.class.isAssignableFrom(type)) {
+            return toNumber(value, type);
+        }
+        if (type.isArray() && value instanceof List<?> list) {
+            return toArray(list, type.getComponentType());
+        }
+        return null;
+    }
+
+    // Compares the values in their typed form; numbers are compared by value regardless of their boxed type
+    public static boolean valueEquals(Object a, Object b) {
+        if (a instanceof Number numberA && b instanceof Number numberB) {
+            if (isIntegral(numberA) && isIntegral(numberB)) {
+                return numberA.longValue() == numberB.longValue();
+            }
+            return Double.compare(numberA.doubleValue(), numberB.doubleValue()) == 0;
+        }
+        if (a instanceof Object[] arrayA && b instanceof Object[] arrayB) {
+            if (arrayA.length != arrayB.length) {
+                return false;
+            }
+            for (int i = 0; i < arrayA.length; i++) {
+                if (!valueEquals(arrayA[i], arrayB[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return Objects.equals(a, b);
+    }
+
+    // Converts each list element to the component type, returns null if any element cannot be converted
+    private static Object toArray(List<?> list, Class<?> componentType) {
+        Object[] array = (Object[]) Array.newInstance(componentType, list.size());
+        for (int i = 0; i < array.length; i++) {
+            Object element = convert(list.get(i), componentType);
+            if (element == null) {
+                return null;
+            }
+            array[i] = element;
+        }
+        return array;
+    }
+
+    private static Boolean toBoolean(Object value) {
+        if (value instanceof Boolean bool) {
+            return bool;
+        }
+        if (value instanceof String string) {
+            return switch (string) {
+                case "on", "true" -> true;
+                case "off", "false" -> false;
+                default -> null;
+            };
+        }
+        if (value instanceof Number number) {
+            return number.doubleValue() != 0;
+        }
+        return null;
+    }
+
+    private static Object toNumber(Object value, Class<?> type) {
+        Number number;
+        if (value instanceof Number n) {
+            number = n;
+        } else if (value instanceof String string) {
+            try {
+                number = Double.parseDouble(string);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        } else {
+            return null;
+        }
+
+        if (type == Double.class || type == Number.class) {
+            return number.doubleValue();
+        }
+        if (type == Integer.class) {
+            return number.intValue();
+        }
+        if (type == Long.class) {
+            return number.longValue();
+        }
+        if (type == Float.class) {
+            return number.floatValue();
+        }
+        if (type == BigDecimal.class) {
+            return BigDecimal.valueOf(number.doubleValue());
+        }
+        return null;
+    }
+
+    private static boolean isIntegral(Number number) {
+        return number instanceof Integer || number instanceof Long || number instanceof Short || number instanceof Byte;
+    }
+}
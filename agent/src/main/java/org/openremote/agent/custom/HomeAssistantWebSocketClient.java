@@ -1,39 +1,312 @@
 package org.openremote.agent.custom;
 
+import com.fasterxml.jackson.databind.ObjectReader;
 import io.netty.channel.ChannelHandler;
+import org.openremote.agent.custom.commands.EntityStateCommand;
+import org.openremote.agent.custom.entities.HomeAssistantBaseEntity;
+import org.openremote.agent.custom.entities.HomeAssistantCompactState;
+import org.openremote.agent.custom.entities.HomeAssistantEntitiesMessage;
 import org.openremote.agent.custom.entities.HomeAssistantEntityState;
+import org.openremote.agent.custom.entities.HomeAssistantEntityStateEvent;
+import org.openremote.agent.custom.entities.HomeAssistantEntityStateEventData;
 import org.openremote.agent.protocol.io.AbstractNettyIOClient;
 import org.openremote.agent.protocol.websocket.WebsocketIOClient;
 import org.openremote.model.asset.agent.ConnectionStatus;
 import org.openremote.model.syslog.SyslogCategory;
 import org.openremote.model.util.ValueUtil;
 
+import java.io.IOException;
 import java.net.URI;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntConsumer;
 import java.util.logging.Logger;
+import java.util.stream.Collectors;
 
 import static org.openremote.model.syslog.SyslogCategory.PROTOCOL;
 
 public class HomeAssistantWebSocketClient extends WebsocketIOClient<String> {
 
+    /**
+     * Thrown when Home Assistant replies to a request with an unsuccessful result; as opposed to transport failures the
+     * request reached Home Assistant so it should not be retried over another transport.
+     */
+    public static class ResultException extends RuntimeException {
+        public ResultException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Thrown when a request could not be written to the websocket at all, so Home Assistant cannot have acted on it and
+     * it is safe to send it over another transport.
+     */
+    public static class NotSentException extends RuntimeException {
+        public NotSentException(String message) {
+            super(message);
+        }
+    }
+
     private static final Logger LOG = SyslogCategory.getLogger(PROTOCOL, HomeAssistantHttpClient.class);
+    private static final ObjectReader FRAME_READER = HomeAssistantJson.ENTITY_STATE_READER;
+    private static final ObjectReader ENTITIES_FRAME_READER = HomeAssistantJson.ENTITIES_MESSAGE_READER;
     private final HomeAssistantProtocol protocol;
+    private final HomeAssistantFrameClassifier classifier = new HomeAssistantFrameClassifier();
+    // Home Assistant closes the connection when the id of a message is not greater than the previous one, so ids are
+    // allocated and their messages written under one lock
+    private final Object sendLock = new Object();
+    private int messageId; // guarded by sendLock
+    private final Map<Integer, CompletableFuture<HomeAssistantEntityState>> pendingRequests = new ConcurrentHashMap<>();
+    private final long requestTimeoutMillis;
+    private volatile boolean authenticated;
+    private volatile boolean previouslyAuthenticated;
+    private volatile Integer entitiesSubscriptionId;
+    private Set<String> subscribedEntityIds = Collections.emptySet();
 
-    public HomeAssistantWebSocketClient(HomeAssistantProtocol protocol, URI homeAssistantWebSocketUrl) {
+    // The event loop group is created and shut down by the base client on each connect and disconnect, so every client
+    // keeps its own (single threaded) group; a shared group would be shut down by the first client to disconnect
+    public HomeAssistantWebSocketClient(HomeAssistantProtocol protocol, URI homeAssistantWebSocketUrl, long requestTimeoutMillis) {
         super(homeAssistantWebSocketUrl, null, null);
         this.protocol = protocol;
+        this.requestTimeoutMillis = requestTimeoutMillis;
 
+        // Text frames are decoded from their bytes by the frame decoder, the string decoder is the fallback path
         setEncoderDecoderProvider(() ->
-            new ChannelHandler[] {new AbstractNettyIOClient.MessageToMessageDecoder<>(String.class, this)}
+            new ChannelHandler[] {
+                new HomeAssistantFrameDecoder(classifier, this::onFrameReceived),
+                new AbstractNettyIOClient.MessageToMessageDecoder<>(String.class, this)
+            }
         );
 
         addMessageConsumer(this::onExternalMessageReceived);
         connect();
     }
 
+    public HomeAssistantFrameClassifier getClassifier() {
+        return classifier;
+    }
+
+    // Returns true once the connection is established and Home Assistant has accepted the access token
+    public boolean isAuthenticated() {
+        return authenticated;
+    }
+
+    /**
+     * Sends a call_service request over the websocket; many requests can be in flight at the same time, each reply is
+     * correlated to its request by message id. The returned future fails with a {@link NotSentException} if the request
+     * was never written, with a {@link ResultException} if Home Assistant rejects the call and with another exception
+     * (e.g. a timeout or the connection being lost) if the outcome of the call is unknown.
+     */
+    public CompletableFuture<Void> callService(String domain, EntityStateCommand command) {
+        return callService(domain, command, List.of(command.getEntityId()));
+    }
+
+    // Calls the service of the command for all the given entities in a single request
+    public CompletableFuture<Void> callService(String domain, EntityStateCommand command, List<String> entityIds) {
+        Map<String, Object> message = new HashMap<>();
+        message.put("type", "call_service");
+        message.put("domain", domain);
+        message.put("service", command.getService());
+        message.put("service_data", command.getServiceData());
+        message.put("target", Map.of("entity_id", entityIds.size() == 1 ? entityIds.get(0) : entityIds));
+
+        return sendRequest(message).thenApply(result -> null);
+    }
+
+    // Sends a request and completes the returned future with the matching result message
+    protected CompletableFuture<HomeAssistantEntityState> sendRequest(Map<String, Object> message) {
+        if (!authenticated || getConnectionStatus() != ConnectionStatus.CONNECTED) {
+            return CompletableFuture.failedFuture(new NotSentException("Websocket is not authenticated"));
+        }
+
+        CompletableFuture<HomeAssistantEntityState> future = new CompletableFuture<>();
+        Integer id = sendWithNextId(message, nextId -> pendingRequests.put(nextId, future));
+        if (id == null) {
+            return CompletableFuture.failedFuture(new IllegalArgumentException("Failed to serialise request: " + message.get("type")));
+        }
+
+        future.orTimeout(requestTimeoutMillis, TimeUnit.MILLISECONDS)
+            .whenComplete((result, e) -> pendingRequests.remove(id));
+        return future;
+    }
+
+    // Sets the next message id on the message, passes it to the consumer (e.g. to register the request before its
+    // reply can arrive) and writes the message; returns the id or null if the message could not be serialised
+    private Integer sendWithNextId(Map<String, Object> message, IntConsumer onIdAllocated) {
+        synchronized (sendLock) {
+            int id = ++messageId;
+            message.put("id", id);
+            var json = ValueUtil.asJSON(message);
+            if (json.isEmpty()) {
+                return null;
+            }
+            onIdAllocated.accept(id);
+            sendMessage(json.get());
+            return id;
+        }
+    }
+
 
     private void onExternalMessageReceived(String message) {
-        tryHandleEntityStateChange(message);
+        onFrameReceived(classifier.classify(message), HomeAssistantFrameDecoder.FrameBody.of(message));
+    }
+
+    // Called on the connection event loop, the body must be detached before it is handed to another thread
+    private void onFrameReceived(HomeAssistantFrameClassifier.Frame frame, HomeAssistantFrameDecoder.FrameBody message) {
+        if (frame.getType() == null) {
+            classifier.onFrameDropped();
+            return; // not a message we understand
+        }
+
+        switch (frame.getType()) {
+            case HomeAssistantFrameClassifier.TYPE_AUTH_OK -> {
+                LOG.info("Authenticated with Home Assistant WebSocket Endpoint");
+                authenticated = true;
+                if (previouslyAuthenticated) {
+                    protocol.getMetrics().onReconnected();
+                }
+                if (isLinkedEntitiesMode()) {
+                    // the subscription starts with the full state of every entity so no resynchronisation is needed
+                    updateEntitiesSubscription();
+                } else {
+                    subscribeToEntityStateChanges();
+                    if (previouslyAuthenticated) {
+                        protocol.onWebSocketReconnected();
+                    }
+                }
+                previouslyAuthenticated = true;
+            }
+            case HomeAssistantFrameClassifier.TYPE_AUTH_INVALID -> LOG.warning("Home Assistant rejected the access token of the websocket connection");
+            case HomeAssistantFrameClassifier.TYPE_RESULT -> handleResultFrame(frame, message);
+            case HomeAssistantFrameClassifier.TYPE_EVENT -> handleEventFrame(frame, message);
+            default -> {
+                // auth_required and pong frames need no handling
+            }
+        }
+    }
+
+    private void handleEventFrame(HomeAssistantFrameClassifier.Frame frame, HomeAssistantFrameDecoder.FrameBody message) {
+        protocol.getMetrics().onEventReceived();
+        if (frame.getId() != null && frame.getId().equals(entitiesSubscriptionId)) {
+            var body = message.detach();
+            if (!protocol.dispatchInbound(null, () -> handleEntitiesFrame(body))) {
+                classifier.onFrameDropped();
+                protocol.getMetrics().onEventDropped();
+            }
+            return;
+        }
+
+        String entityId = frame.getEntityId();
+        if (entityId == null
+            || protocol.entityProcessor == null
+            || !protocol.entityProcessor.isEntityImported(entityId)
+            || protocol.getRoutingTable().get(entityId) == null) {
+            classifier.onFrameDropped();
+            return;
+        }
+
+        // Binding and processing happen on the shared hub workers rather than the connection event loop
+        var body = message.detach();
+        if (!protocol.dispatchInbound(entityId, () -> {
+            var state = bindFrame(body);
+            if (state != null && state.getEvent() != null && state.getEvent().getData() != null) {
+                protocol.entityProcessor.handleEntityStateEvent(state.getEvent());
+            }
+        })) {
+            classifier.onFrameDropped();
+            protocol.getMetrics().onEventDropped();
+        }
+    }
+
+    // Handles an event of the subscribe_entities subscription, each added or changed entity is converted to a state event
+    private void handleEntitiesFrame(HomeAssistantFrameDecoder.FrameBody message) {
+        HomeAssistantEntitiesMessage entitiesMessage;
+        long startNanos = System.nanoTime();
+        try {
+            classifier.onFrameBound();
+            entitiesMessage = message.read(ENTITIES_FRAME_READER);
+            protocol.getMetrics().onParsed(System.nanoTime() - startNanos);
+        } catch (IOException e) {
+            LOG.warning("Failed to parse message from Home Assistant: " + e.getMessage());
+            return;
+        }
+
+        var event = entitiesMessage.getEvent();
+        if (event == null || protocol.entityProcessor == null) {
+            return;
+        }
+        if (event.getAdded() != null) {
+            event.getAdded().forEach(this::handleCompactState);
+        }
+        if (event.getChanged() != null) {
+            event.getChanged().forEach((entityId, diff) -> {
+                if (diff.getAdditions() != null) {
+                    handleCompactState(entityId, diff.getAdditions());
+                }
+            });
+        }
+    }
+
+    private void handleCompactState(String entityId, HomeAssistantCompactState compactState) {
+        var entity = new HomeAssistantBaseEntity();
+        entity.setEntityId(entityId);
+        entity.setState(compactState.getState());
+        entity.setAttributes(compactState.getAttributes());
+
+        var data = new HomeAssistantEntityStateEventData();
+        data.setEntityId(entityId);
+        data.setNewBaseEntity(entity);
+
+        var event = new HomeAssistantEntityStateEvent();
+        event.setEventType("state_changed");
+        event.setData(data);
+        protocol.entityProcessor.handleEntityStateEvent(event);
+    }
+
+    private void handleResultFrame(HomeAssistantFrameClassifier.Frame frame, HomeAssistantFrameDecoder.FrameBody message) {
+        if (frame.getId() == null || !pendingRequests.containsKey(frame.getId())) {
+            classifier.onFrameDropped();
+            return; // e.g. the result of a subscription request
+        }
+
+        var result = bindFrame(message);
+        if (result != null) {
+            handleResult(result);
+        }
+    }
+
+    private HomeAssistantEntityState bindFrame(HomeAssistantFrameDecoder.FrameBody message) {
+        long startNanos = System.nanoTime();
+        try {
+            classifier.onFrameBound();
+            HomeAssistantEntityState state = message.read(FRAME_READER);
+            protocol.getMetrics().onParsed(System.nanoTime() - startNanos);
+            return state;
+        } catch (IOException e) {
+            LOG.warning("Failed to parse message from Home Assistant: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private void handleResult(HomeAssistantEntityState result) {
+        if (result.getId() == null) {
+            return;
+        }
+        var future = pendingRequests.remove(result.getId());
+        if (future == null) {
+            return;
+        }
+        if (Boolean.TRUE.equals(result.getSuccess())) {
+            future.complete(result);
+        } else {
+            future.completeExceptionally(new ResultException("Request " + result.getId() + " failed: " + result.getError()));
+        }
     }
 
 
@@ -42,34 +315,80 @@ public class HomeAssistantWebSocketClient extends WebsocketIOClient<String> {
         super.onConnectionStatusChanged(connectionStatus);
         LOG.info("Connection status changed to: " + connectionStatus);
 
-        if (connectionStatus == ConnectionStatus.CONNECTED) {
-            var authMessage = ValueUtil.asJSON(Map.of("type", "auth", "access_token", this.protocol.getAgent().getAccessToken().orElse("")));
-            if(authMessage.isPresent())
-            {
-                LOG.info("Sending auth message to Home Assistant WebSocket Endpoint: " + authMessage.get());
-                sendMessage(authMessage.get());
-                subscribeToEntityStateChanges();
+        if (connectionStatus != ConnectionStatus.CONNECTED) {
+            authenticated = false;
+            synchronized (this) {
+                entitiesSubscriptionId = null;
+                subscribedEntityIds = Collections.emptySet();
             }
+            failPendingRequests();
+            return;
+        }
+
+        var authMessage = ValueUtil.asJSON(Map.of("type", "auth", "access_token", this.protocol.getAgent().getAccessToken().orElse("")));
+        if(authMessage.isPresent())
+        {
+            LOG.info("Sending auth message to Home Assistant WebSocket Endpoint");
+            sendMessage(authMessage.get());
         }
     }
 
+    private void failPendingRequests() {
+        var exception = new IllegalStateException("Websocket connection lost");
+        pendingRequests.values().forEach(future -> future.completeExceptionally(exception));
+        pendingRequests.clear();
+    }
 
-    private void tryHandleEntityStateChange(String message) {
-        try {
-            var event = ValueUtil.parse(message, HomeAssistantEntityState.class);
-            event.ifPresent(homeAssistantEntityState -> protocol.entityProcessor.handleEntityStateEvent(homeAssistantEntityState.getEvent()));
-        } catch (Exception e) {
-            // ignore - not an entity state change event
+    private boolean isLinkedEntitiesMode() {
+        return protocol.getAgent().getSubscriptionMode().orElse(HomeAssistantAgent.SubscriptionMode.STATE_CHANGED_EVENTS)
+            == HomeAssistantAgent.SubscriptionMode.LINKED_ENTITIES;
+    }
+
+    /**
+     * Replaces the subscribe_entities subscription when the set of linked entities of imported entity types has changed
+     * since the last subscription; does nothing when not in {@link HomeAssistantAgent.SubscriptionMode#LINKED_ENTITIES}
+     * mode or not authenticated.
+     */
+    public synchronized void updateEntitiesSubscription() {
+        if (!authenticated || !isLinkedEntitiesMode() || protocol.entityProcessor == null) {
+            return;
+        }
+
+        Set<String> entityIds = protocol.getRoutingTable().getEntityIds().stream()
+            .filter(protocol.entityProcessor::isEntityImported)
+            .collect(Collectors.toSet());
+        if (entitiesSubscriptionId != null && entityIds.equals(subscribedEntityIds)) {
+            return;
+        }
+
+        if (entitiesSubscriptionId != null) {
+            Map<String, Object> unsubscribeMessage = new HashMap<>();
+            unsubscribeMessage.put("type", "unsubscribe_events");
+            unsubscribeMessage.put("subscription", entitiesSubscriptionId);
+            sendWithNextId(unsubscribeMessage, id -> {});
+            entitiesSubscriptionId = null;
+        }
+
+        subscribedEntityIds = entityIds;
+        if (entityIds.isEmpty()) {
+            return;
         }
+
+        Map<String, Object> subscribeMessage = new HashMap<>();
+        subscribeMessage.put("type", "subscribe_entities");
+        subscribeMessage.put("entity_ids", entityIds);
+        LOG.info("Subscribing to " + entityIds.size() + " entities of Home Assistant WebSocket Endpoint");
+        sendWithNextId(subscribeMessage, id -> entitiesSubscriptionId = id);
     }
 
     // Subscribe to state changes for all entities within Home Assistant
     private void subscribeToEntityStateChanges() {
-        var subscribeMessage = ValueUtil.asJSON(Map.of("id", 1, "type", "subscribe_events", "event_type", "state_changed"));
-        if(subscribeMessage.isPresent())
-        {
-            LOG.info("Sending subscribe message to Home Assistant WebSocket Endpoint: " + subscribeMessage.get());
-            sendMessage(subscribeMessage.get());
+        Map<String, Object> subscribeMessage = new HashMap<>();
+        subscribeMessage.put("type", "subscribe_events");
+        subscribeMessage.put("event_type", "state_changed");
+        Integer id = sendWithNextId(subscribeMessage, nextId -> {});
+        if (id != null) {
+            LOG.info("Sent subscribe message " + id + " to Home Assistant WebSocket Endpoint");
         }
     }
 }
@@ -1,5 +1,8 @@
 package org.openremote.agent.custom.commands;
 
+import java.util.HashMap;
+import java.util.Map;
+
 public class EntityStateCommand {
     private String service;
     private String entityId;
@@ -47,5 +50,12 @@ public class EntityStateCommand {
         return service;
     }
 
-
+    // Returns the service data of the call excluding the target entity id
+    public Map<String, Object> getServiceData() {
+        Map<String, Object> serviceData = new HashMap<>();
+        if (attributeName != null && !attributeName.isEmpty()) {
+            serviceData.put(attributeName, attributeValue);
+        }
+        return serviceData;
+    }
 }
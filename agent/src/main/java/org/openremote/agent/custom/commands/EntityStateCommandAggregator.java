@@ -0,0 +1,166 @@
+package org.openremote.agent.custom.commands;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+
+/**
+ * Sits between the {@link EntityStateCommandQueue} and the sender; commands with the same domain, service and service
+ * data that arrive within a short window are merged into a single service call targeting all of their entities (e.g. a
+ * scene switching on hundreds of lights results in one call instead of hundreds). The future of every merged command
+ * completes with the result of the shared call.
+ */
+public class EntityStateCommandAggregator implements BiFunction<String, EntityStateCommand, CompletableFuture<?>> {
+
+    public static final int DEFAULT_MAX_GROUP_SIZE = 500;
+
+    /**
+     * Sends one service call for the given domain and command targeting all of the given entities.
+     */
+    @FunctionalInterface
+    public interface GroupSender {
+        CompletableFuture<?> send(String domain, EntityStateCommand command, List<String> entityIds);
+    }
+
+    protected static class Group {
+        protected final String key;
+        protected final String domain;
+        protected final EntityStateCommand command;
+        protected final List<String> entityIds = new ArrayList<>();
+        protected final CompletableFuture<Object> result = new CompletableFuture<>();
+        protected ScheduledFuture<?> flush;
+
+        protected Group(String key, String domain, EntityStateCommand command) {
+            this.key = key;
+            this.domain = domain;
+            this.command = command;
+        }
+    }
+
+    protected final ScheduledExecutorService scheduler;
+    protected final long windowMillis;
+    protected final int maxGroupSize;
+    protected final GroupSender sender;
+    // Guarded by this
+    protected final Map<String, Group> openGroups = new HashMap<>();
+    protected final AtomicLong callCount = new AtomicLong();
+    protected final AtomicLong mergedCount = new AtomicLong();
+    protected volatile boolean running = true;
+
+    /**
+     * @param scheduler    used to send a group once its window has elapsed
+     * @param windowMillis how long the first command of a group waits for compatible commands, 0 sends every command
+     *                     on its own
+     * @param maxGroupSize a group is sent immediately once it targets this many entities
+     */
+    public EntityStateCommandAggregator(ScheduledExecutorService scheduler, long windowMillis, int maxGroupSize, GroupSender sender) {
+        this.scheduler = scheduler;
+        this.windowMillis = windowMillis;
+        this.maxGroupSize = Math.max(1, maxGroupSize);
+        this.sender = sender;
+    }
+
+    // The queue has at most one command in flight per entity so an entity is never added to a group twice
+    @Override
+    public CompletableFuture<?> apply(String domain, EntityStateCommand command) {
+        if (windowMillis <= 0 || maxGroupSize == 1) {
+            callCount.incrementAndGet();
+            return sender.send(domain, command, List.of(command.getEntityId()));
+        }
+        if (!running) {
+            return CompletableFuture.failedFuture(new CancellationException("Aggregator has been stopped"));
+        }
+
+        String key = getGroupKey(domain, command);
+        Group group;
+        boolean full;
+
+        synchronized (this) {
+            group = openGroups.get(key);
+            if (group == null) {
+                group = new Group(key, domain, command);
+                openGroups.put(key, group);
+                Group newGroup = group;
+                try {
+                    group.flush = scheduler.schedule(() -> flush(newGroup), windowMillis, TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException e) {
+                    group.flush = null; // the scheduler is shutting down, send right away
+                }
+            } else {
+                mergedCount.incrementAndGet();
+            }
+            group.entityIds.add(command.getEntityId());
+            full = group.flush == null || group.entityIds.size() >= maxGroupSize;
+        }
+
+        if (full) {
+            if (group.flush != null) {
+                group.flush.cancel(false);
+            }
+            flush(group);
+        }
+        return group.result;
+    }
+
+    public synchronized void stop() {
+        running = false;
+        openGroups.values().forEach(group -> {
+            if (group.flush != null) {
+                group.flush.cancel(false);
+            }
+            group.result.completeExceptionally(new CancellationException("Aggregator has been stopped"));
+        });
+        openGroups.clear();
+    }
+
+    // Number of service calls sent
+    public long getCallCount() {
+        return callCount.get();
+    }
+
+    // Number of commands that were merged into the call of an earlier command
+    public long getMergedCount() {
+        return mergedCount.get();
+    }
+
+    protected void flush(Group group) {
+        List<String> entityIds;
+        synchronized (this) {
+            if (openGroups.get(group.key) != group) {
+                return; // already sent or stopped
+            }
+            openGroups.remove(group.key);
+            entityIds = List.copyOf(group.entityIds);
+        }
+
+        callCount.incrementAndGet();
+        CompletableFuture<?> future;
+        try {
+            future = sender.send(group.domain, group.command, entityIds);
+        } catch (Exception e) {
+            future = CompletableFuture.failedFuture(e);
+        }
+        future.whenComplete((result, e) -> {
+            if (e != null) {
+                group.result.completeExceptionally(e);
+            } else {
+                group.result.complete(result);
+            }
+        });
+    }
+
+    // Service data is sorted so the key does not depend on the iteration order of the map
+    protected static String getGroupKey(String domain, EntityStateCommand command) {
+        return domain + "." + command.getService() + new TreeMap<>(command.getServiceData());
+    }
+}
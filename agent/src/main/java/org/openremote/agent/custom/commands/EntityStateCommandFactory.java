@@ -18,7 +18,10 @@ public final class EntityStateCommandFactory {
             return Optional.empty();
         }
 
-        var entityId = homeAssistantAsset.getEntityId();
+        return createEntityStateCommand(homeAssistantAsset.getEntityId(), attribute, value);
+    }
+
+    public static Optional<EntityStateCommand> createEntityStateCommand(String entityId, Attribute<?> attribute, String value) {
         var entityType = HomeAssistantEntityProcessor.getEntityTypeFromEntityId(entityId);
         var attributeName = attribute.getName();
         var isStateAttribute = attributeName.equals("state");
@@ -0,0 +1,168 @@
+package org.openremote.agent.custom.commands;
+
+import org.openremote.model.syslog.SyslogCategory;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static org.openremote.model.syslog.SyslogCategory.PROTOCOL;
+
+/**
+ * Outbound pipeline for {@link EntityStateCommand}s; commands are accepted immediately and dispatched in order per
+ * entity with at most one command in flight per entity. While a command for an entity is in flight any newer command for
+ * the same entity, service and attribute replaces the queued one (last write wins) so a burst of writes (e.g. dragging a
+ * slider) results in at most two calls to Home Assistant.
+ */
+public class EntityStateCommandQueue {
+
+    private static final Logger LOG = SyslogCategory.getLogger(PROTOCOL, EntityStateCommandQueue.class);
+
+    protected final Executor executor;
+    protected final BiFunction<String, EntityStateCommand, CompletableFuture<?>> sender;
+    protected final Map<String, EntityQueue> entityQueues = new ConcurrentHashMap<>();
+    protected final AtomicInteger queueDepth = new AtomicInteger();
+    protected final AtomicLong coalescedCount = new AtomicLong();
+    protected final AtomicLong dispatchedCount = new AtomicLong();
+    protected volatile boolean running = true;
+
+    protected static class QueuedCommand {
+        protected final String domain;
+        protected final EntityStateCommand command;
+
+        protected QueuedCommand(String domain, EntityStateCommand command) {
+            this.domain = domain;
+            this.command = command;
+        }
+    }
+
+    protected static class EntityQueue {
+        protected final LinkedHashMap<String, QueuedCommand> commands = new LinkedHashMap<>();
+        protected boolean dispatching;
+        protected long sequence;
+        // Set once the queue has been removed from the map, commands must then be added to a new queue of the entity
+        protected boolean removed;
+    }
+
+    /**
+     * @param executor used to dispatch commands, must not be the thread that delivers attribute writes
+     * @param sender   sends a command for the given domain and completes the returned future once it has been handled
+     */
+    public EntityStateCommandQueue(Executor executor, BiFunction<String, EntityStateCommand, CompletableFuture<?>> sender) {
+        this.executor = executor;
+        this.sender = sender;
+    }
+
+    public void enqueue(String domain, EntityStateCommand command) {
+        if (!running) {
+            return;
+        }
+
+        EntityQueue entityQueue;
+        boolean startDispatch;
+
+        while (true) {
+            entityQueue = entityQueues.computeIfAbsent(command.getEntityId(), id -> new EntityQueue());
+            synchronized (entityQueue) {
+                if (!entityQueue.removed) {
+                    startDispatch = addCommand(entityQueue, domain, command);
+                    break;
+                }
+            }
+        }
+
+        if (startDispatch) {
+            EntityQueue dispatchQueue = entityQueue;
+            executor.execute(() -> dispatchNext(command.getEntityId(), dispatchQueue));
+        }
+    }
+
+    // Must be called while holding the lock of the entity queue, returns true if dispatching must be started
+    protected boolean addCommand(EntityQueue entityQueue, String domain, EntityStateCommand command) {
+        String key = getCoalesceKey(command, entityQueue);
+        // remove before put so the superseding command takes the position of the latest write
+        if (entityQueue.commands.remove(key) != null) {
+            coalescedCount.incrementAndGet();
+        } else {
+            queueDepth.incrementAndGet();
+        }
+        entityQueue.commands.put(key, new QueuedCommand(domain, command));
+        boolean startDispatch = !entityQueue.dispatching;
+        entityQueue.dispatching = true;
+        return startDispatch;
+    }
+
+    public void stop() {
+        running = false;
+        entityQueues.clear();
+        queueDepth.set(0);
+    }
+
+    public int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    // Number of entities with queued or in flight commands
+    public int getEntityQueueCount() {
+        return entityQueues.size();
+    }
+
+    public long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    public long getDispatchedCount() {
+        return dispatchedCount.get();
+    }
+
+    protected void dispatchNext(String entityId, EntityQueue entityQueue) {
+        QueuedCommand next;
+
+        synchronized (entityQueue) {
+            Iterator<QueuedCommand> iterator = entityQueue.commands.values().iterator();
+            if (!running || !iterator.hasNext()) {
+                // The queue of an idle entity is removed so the map only holds entities with commands
+                entityQueue.dispatching = false;
+                entityQueue.removed = true;
+                entityQueues.remove(entityId, entityQueue);
+                return;
+            }
+            next = iterator.next();
+            iterator.remove();
+            queueDepth.decrementAndGet();
+        }
+
+        CompletableFuture<?> future;
+        try {
+            future = sender.apply(next.domain, next.command);
+        } catch (Exception e) {
+            future = CompletableFuture.failedFuture(e);
+        }
+
+        future.whenComplete((result, e) -> {
+            dispatchedCount.incrementAndGet();
+            if (e != null) {
+                LOG.log(Level.WARNING, "Failed to send command for entity: " + entityId, e);
+            }
+            if (running) {
+                executor.execute(() -> dispatchNext(entityId, entityQueue));
+            }
+        });
+    }
+
+    // Commands for the same service and attribute supersede each other; toggles are never merged as each one matters
+    protected static String getCoalesceKey(EntityStateCommand command, EntityQueue entityQueue) {
+        if ("toggle".equals(command.getService())) {
+            return command.getService() + "#" + entityQueue.sequence++;
+        }
+        return command.getService() + ":" + command.getAttributeName();
+    }
+}
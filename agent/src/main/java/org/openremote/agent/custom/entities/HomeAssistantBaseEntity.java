@@ -35,4 +35,8 @@ public class HomeAssistantBaseEntity {
     public Map<String, Object> getAttributes() {
         return homeAssistantAttributes;
     }
+
+    public void setAttributes(Map<String, Object> homeAssistantAttributes) {
+        this.homeAssistantAttributes = homeAssistantAttributes;
+    }
 }
@@ -0,0 +1,32 @@
+package org.openremote.agent.custom.entities;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.Map;
+
+// Compressed entity state as sent by the subscribe_entities websocket command
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class HomeAssistantCompactState {
+    @JsonProperty("s")
+    private String state;
+
+    @JsonProperty("a")
+    private Map<String, Object> attributes;
+
+    public String getState() {
+        return state;
+    }
+
+    public void setState(String state) {
+        this.state = state;
+    }
+
+    public Map<String, Object> getAttributes() {
+        return attributes;
+    }
+
+    public void setAttributes(Map<String, Object> attributes) {
+        this.attributes = attributes;
+    }
+}
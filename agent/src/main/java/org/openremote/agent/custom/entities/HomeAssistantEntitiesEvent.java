@@ -0,0 +1,59 @@
+package org.openremote.agent.custom.entities;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.List;
+import java.util.Map;
+
+// Event of the subscribe_entities websocket command; contains added (full) states, changed states as diffs and removals
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class HomeAssistantEntitiesEvent {
+
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    public static class StateDiff {
+        @JsonProperty("+")
+        private HomeAssistantCompactState additions;
+
+        public HomeAssistantCompactState getAdditions() {
+            return additions;
+        }
+
+        public void setAdditions(HomeAssistantCompactState additions) {
+            this.additions = additions;
+        }
+    }
+
+    @JsonProperty("a")
+    private Map<String, HomeAssistantCompactState> added;
+
+    @JsonProperty("c")
+    private Map<String, StateDiff> changed;
+
+    @JsonProperty("r")
+    private List<String> removed;
+
+    public Map<String, HomeAssistantCompactState> getAdded() {
+        return added;
+    }
+
+    public void setAdded(Map<String, HomeAssistantCompactState> added) {
+        this.added = added;
+    }
+
+    public Map<String, StateDiff> getChanged() {
+        return changed;
+    }
+
+    public void setChanged(Map<String, StateDiff> changed) {
+        this.changed = changed;
+    }
+
+    public List<String> getRemoved() {
+        return removed;
+    }
+
+    public void setRemoved(List<String> removed) {
+        this.removed = removed;
+    }
+}
@@ -0,0 +1,40 @@
+package org.openremote.agent.custom.entities;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class HomeAssistantEntitiesMessage {
+    @JsonProperty("id")
+    private Integer id;
+
+    @JsonProperty("type")
+    private String type;
+
+    @JsonProperty("event")
+    private HomeAssistantEntitiesEvent event;
+
+    public Integer getId() {
+        return id;
+    }
+
+    public void setId(Integer id) {
+        this.id = id;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public void setType(String type) {
+        this.type = type;
+    }
+
+    public HomeAssistantEntitiesEvent getEvent() {
+        return event;
+    }
+
+    public void setEvent(HomeAssistantEntitiesEvent event) {
+        this.event = event;
+    }
+}
@@ -3,14 +3,33 @@ package org.openremote.agent.custom.entities;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
+import java.util.Map;
+
 @JsonIgnoreProperties(ignoreUnknown = true)
 public class HomeAssistantEntityState {
+    @JsonProperty("id")
+    private Integer id;
+
     @JsonProperty("type")
     private String type;
 
+    @JsonProperty("success")
+    private Boolean success;
+
+    @JsonProperty("error")
+    private Map<String, Object> error;
+
     @JsonProperty("event")
     private HomeAssistantEntityStateEvent event;
 
+    public Integer getId() {
+        return id;
+    }
+
+    public void setId(Integer id) {
+        this.id = id;
+    }
+
     public String getType() {
         return type;
     }
@@ -27,5 +46,21 @@ public class HomeAssistantEntityState {
         this.event = event;
     }
 
+    public Boolean getSuccess() {
+        return success;
+    }
+
+    public void setSuccess(Boolean success) {
+        this.success = success;
+    }
+
+    public Map<String, Object> getError() {
+        return error;
+    }
+
+    public void setError(Map<String, Object> error) {
+        this.error = error;
+    }
+
 }
 
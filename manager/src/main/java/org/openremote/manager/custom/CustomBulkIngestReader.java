@@ -0,0 +1,91 @@
+/*
+ * Copyright 2024, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.manager.custom;
+
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectReader;
+import org.openremote.model.custom.CustomDataRecord;
+import org.openremote.model.custom.CustomIngestResult;
+import org.openremote.model.util.ValueUtil;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the body of a bulk ingest request one record at a time and hands the records to a consumer in batches; a root
+ * level array is unwrapped so both a JSON array and a stream of newline delimited records are supported. A malformed
+ * record ends the body: the records read before it are still handed over and the error is added to the result of the
+ * last batch.
+ */
+public class CustomBulkIngestReader {
+
+    protected static final ObjectReader RECORD_READER = ValueUtil.JSON.readerFor(CustomDataRecord.class);
+
+    /**
+     * Handles a batch of records; record i of the batch is record {@code result.getFirstRecord() + i} of the body and
+     * may be null (a null in the body). The consumer records the outcome of each record in the result.
+     */
+    @FunctionalInterface
+    public interface BatchConsumer {
+        void accept(List<CustomDataRecord> records, CustomIngestResult result);
+    }
+
+    protected final int batchSize;
+
+    public CustomBulkIngestReader(int batchSize) {
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    public List<CustomIngestResult> read(InputStream input, BatchConsumer consumer) {
+        List<CustomIngestResult> results = new ArrayList<>();
+        List<CustomDataRecord> batch = new ArrayList<>(batchSize);
+        long index = 0;
+
+        try (MappingIterator<CustomDataRecord> iterator = RECORD_READER.readValues(input)) {
+            while (iterator.hasNextValue()) {
+                batch.add(iterator.nextValue());
+                index++;
+                if (batch.size() == batchSize) {
+                    results.add(handOver(batch, results.size(), index, consumer));
+                }
+            }
+        } catch (IOException e) {
+            CustomIngestResult result = handOver(batch, results.size(), index, consumer);
+            result.onRejected(index, "Malformed record: " + e.getMessage());
+            results.add(result);
+            return results;
+        }
+        if (!batch.isEmpty()) {
+            results.add(handOver(batch, results.size(), index, consumer));
+        }
+        return results;
+    }
+
+    protected static CustomIngestResult handOver(List<CustomDataRecord> batch, int batchIndex, long nextIndex, BatchConsumer consumer) {
+        CustomIngestResult result = new CustomIngestResult(batchIndex, nextIndex - batch.size());
+        if (!batch.isEmpty()) {
+            consumer.accept(new ArrayList<>(batch), result);
+            batch.clear();
+        }
+        return result;
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2021, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.manager.custom;
+
+import jakarta.ws.rs.BadRequestException;
+import jakarta.ws.rs.ForbiddenException;
+import jakarta.ws.rs.NotFoundException;
+import org.openremote.container.security.AuthContext;
+import org.openremote.container.timer.TimerService;
+import org.openremote.manager.asset.AssetProcessingService;
+import org.openremote.manager.asset.AssetStorageService;
+import org.openremote.manager.event.ClientEventService;
+import org.openremote.manager.security.ManagerIdentityService;
+import org.openremote.manager.web.ManagerWebResource;
+import org.openremote.model.asset.Asset;
+import org.openremote.model.attribute.AttributeEvent;
+import org.openremote.model.attribute.AttributeRef;
+import org.openremote.model.custom.CustomData;
+import org.openremote.model.custom.CustomDataRecord;
+import org.openremote.model.custom.CustomEndpointResource;
+import org.openremote.model.custom.CustomIngestResult;
+import org.openremote.model.custom.RollupInterval;
+import org.openremote.model.custom.SensorRollup;
+import org.openremote.model.datapoint.ValueDatapoint;
+import org.openremote.model.query.AssetQuery;
+
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.logging.Logger;
+
+public class CustomEndpointResourceImpl extends ManagerWebResource implements CustomEndpointResource {
+
+    private static final Logger LOG = Logger.getLogger(CustomEndpointResourceImpl.class.getName());
+    public static final int DEFAULT_HISTORY_MAX_POINTS = 1000;
+    public static final int INGEST_BATCH_SIZE = 1000;
+
+    protected final AssetStorageService assetStorageService;
+    protected final AssetProcessingService assetProcessingService;
+    protected final ClientEventService clientEventService;
+    protected final CustomService customService;
+
+    public CustomEndpointResourceImpl(TimerService timerService, ManagerIdentityService identityService,
+                                      AssetStorageService assetStorageService, AssetProcessingService assetProcessingService,
+                                      ClientEventService clientEventService, CustomService customService) {
+        super(timerService, identityService);
+        this.assetStorageService = assetStorageService;
+        this.assetProcessingService = assetProcessingService;
+        this.clientEventService = clientEventService;
+        this.customService = customService;
+    }
+
+    @Override
+    public void submitData(CustomData customData) {
+        LOG.fine("Custom data submitted: " + customData.getName());
+    }
+
+    @Override
+    public CustomIngestResult[] submitBulkData(InputStream records) {
+        // Assets are looked up once per request, empty if not found or not accessible
+        Map<String, Optional<Asset<?>>> assets = new HashMap<>();
+        List<CustomIngestResult> results = new CustomBulkIngestReader(INGEST_BATCH_SIZE)
+            .read(records, (batch, result) -> queueBatch(batch, result, assets));
+
+        LOG.fine("Bulk data submitted: batches=" + results.size());
+        return results.toArray(CustomIngestResult[]::new);
+    }
+
+    // Validates and authorizes the records of a batch and queues an attribute event for each accepted record
+    protected void queueBatch(List<CustomDataRecord> batch, CustomIngestResult result, Map<String, Optional<Asset<?>>> assets) {
+        loadAssets(batch, assets);
+        String realm = getRequestRealmName();
+        AuthContext authContext = getAuthContext();
+
+        for (int i = 0; i < batch.size(); i++) {
+            long index = result.getFirstRecord() + i;
+            CustomDataRecord record = batch.get(i);
+            String error = validateRecord(record, assets);
+            if (error != null) {
+                result.onRejected(index, error);
+                continue;
+            }
+
+            long timestamp = record.getTimestamp() != null ? record.getTimestamp() : timerService.getCurrentTimeMillis();
+            var event = new AttributeEvent(new AttributeRef(record.getAssetId(), record.getAttributeName()), record.getValue(), timestamp);
+            // The same check as the attribute write endpoint (read only attributes, restricted user access)
+            if (!clientEventService.authorizeEventWrite(realm, authContext, event)) {
+                result.onRejected(index, "Not allowed to write attribute: " + record.getAttributeName());
+                continue;
+            }
+            assetProcessingService.sendAttributeEvent(event);
+            result.onQueued();
+        }
+    }
+
+    // Loads the assets of the batch that have not been looked up yet with a single query
+    protected void loadAssets(List<CustomDataRecord> batch, Map<String, Optional<Asset<?>>> assets) {
+        String[] assetIds = batch.stream()
+            .filter(record -> record != null && record.getAssetId() != null && !assets.containsKey(record.getAssetId()))
+            .map(CustomDataRecord::getAssetId)
+            .distinct()
+            .toArray(String[]::new);
+        if (assetIds.length == 0) {
+            return;
+        }
+        assetStorageService.findAll(new AssetQuery().ids(assetIds))
+            .forEach(asset -> assets.put(asset.getId(), Optional.<Asset<?>>of(asset).filter(this::isAssetAccessible)));
+        for (String assetId : assetIds) {
+            assets.putIfAbsent(assetId, Optional.empty());
+        }
+    }
+
+    @Override
+    public SensorRollup[] getSensorRollups(String assetId, String attributeName, RollupInterval interval, long fromTimestamp, long toTimestamp) {
+        if (interval == null || toTimestamp <= fromTimestamp) {
+            throw new BadRequestException("An interval and a time range are required");
+        }
+        checkAssetAccess(assetId);
+        return customService.getSensorRollups(new AttributeRef(assetId, attributeName), interval, fromTimestamp, toTimestamp)
+            .toArray(SensorRollup[]::new);
+    }
+
+    @Override
+    public ValueDatapoint<?>[] getSensorHistory(String assetId, String attributeName, Long fromTimestamp, Long toTimestamp, Integer maxPoints) {
+        long to = toTimestamp != null ? toTimestamp : timerService.getCurrentTimeMillis() + 1;
+        // The default range starts at the beginning of the retention period, saturated for a to timestamp near the minimum
+        long from = fromTimestamp != null ? fromTimestamp
+            : to < Long.MIN_VALUE + CustomService.HISTORY_RETENTION_MILLIS ? Long.MIN_VALUE : to - CustomService.HISTORY_RETENTION_MILLIS;
+        int points = maxPoints != null ? Math.min(maxPoints, CustomService.HISTORY_MAX_POINTS) : DEFAULT_HISTORY_MAX_POINTS;
+        if (to <= from || points <= 0) {
+            throw new BadRequestException("Invalid time range or number of points");
+        }
+        checkAssetAccess(assetId);
+        return customService.getSensorHistory(new AttributeRef(assetId, attributeName), from, to, points)
+            .toArray(ValueDatapoint<?>[]::new);
+    }
+
+    // Returns the reason the record cannot be queued, null if it can; the assets of the batch must have been loaded
+    protected String validateRecord(CustomDataRecord record, Map<String, Optional<Asset<?>>> assets) {
+        if (record == null || record.getAssetId() == null || record.getAttributeName() == null) {
+            return "Asset id and attribute name are required";
+        }
+        var asset = assets.getOrDefault(record.getAssetId(), Optional.empty());
+        if (asset.isEmpty()) {
+            return "Asset not found or not accessible: " + record.getAssetId();
+        }
+        if (asset.get().getAttribute(record.getAttributeName()).isEmpty()) {
+            return "Attribute not found: " + record.getAttributeName();
+        }
+        return null;
+    }
+
+    protected void checkAssetAccess(String assetId) {
+        var asset = assetStorageService.find(assetId);
+        if (asset == null) {
+            throw new NotFoundException("Asset not found: " + assetId);
+        }
+        if (!isAssetAccessible(asset)) {
+            throw new ForbiddenException("Asset is not accessible: " + assetId);
+        }
+    }
+
+    protected boolean isAssetAccessible(Asset<?> asset) {
+        return isRealmActiveAndAccessible(asset.getRealm())
+            && (!isRestrictedUser() || assetStorageService.isUserAsset(getUserId(), asset.getId()));
+    }
+}
@@ -19,22 +19,385 @@
  */
 package org.openremote.manager.custom;
 
+import org.hibernate.Session;
+import org.openremote.agent.custom.assets.HomeAssistantSensorAsset;
+import org.openremote.container.timer.TimerService;
+import org.openremote.manager.asset.AssetProcessingService;
+import org.openremote.manager.asset.AssetStorageService;
+import org.openremote.manager.event.ClientEventService;
+import org.openremote.manager.persistence.PersistenceService;
+import org.openremote.manager.security.ManagerIdentityService;
+import org.openremote.manager.web.ManagerWebService;
 import org.openremote.model.Container;
 import org.openremote.model.ContainerService;
+import org.openremote.model.asset.AssetEvent;
+import org.openremote.model.attribute.AttributeEvent;
+import org.openremote.model.attribute.AttributeRef;
+import org.openremote.model.custom.RollupInterval;
+import org.openremote.model.custom.SensorRollup;
+import org.openremote.model.datapoint.ValueDatapoint;
 
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static org.openremote.container.util.MapAccess.getBoolean;
+import static org.openremote.container.util.MapAccess.getInteger;
+
+/**
+ * Maintains minute, hour and day rollups (count, min, max and sum) of the numeric attributes of
+ * {@link HomeAssistantSensorAsset}s incrementally from attribute events, so charts over long periods only read
+ * pre-aggregated rows instead of raw datapoints. Values are aggregated in memory per attribute and the deltas are
+ * periodically upserted (merged with the stored row of the same bucket) in a single JDBC batch.
+ * <p>
+ * The values of the last 24 hours of the same attributes are also kept in memory in a {@link SensorHistoryBuffer} per
+ * attribute so live charts can be served without querying the datapoint store. Buffers grow with the rate of their
+ * sensor and are dropped when the attribute or asset is deleted or no value was received within the retention period.
+ */
 public class CustomService implements ContainerService {
+
+    private static final Logger LOG = Logger.getLogger(CustomService.class.getName());
+
+    public static final long ROLLUP_FLUSH_INTERVAL_MILLIS = 10_000;
+    public static final int ROLLUP_BATCH_SIZE = 1000;
+    // Deltas kept while the database is unavailable, beyond this the oldest are dropped
+    public static final int ROLLUP_MAX_PENDING = 100_000;
+
+    public static final String CUSTOM_HISTORY_MAX_CAPACITY = "CUSTOM_HISTORY_MAX_CAPACITY";
+    // One sample every second for 24 hours (1.4MB), only sensors reporting faster keep less than 24 hours
+    public static final int CUSTOM_HISTORY_MAX_CAPACITY_DEFAULT = 86_400;
+    public static final String CUSTOM_HISTORY_OFF_HEAP = "CUSTOM_HISTORY_OFF_HEAP";
+    public static final long HISTORY_RETENTION_MILLIS = TimeUnit.HOURS.toMillis(24);
+    public static final int HISTORY_MAX_POINTS = 10_000;
+
+    protected static final String SENSOR_ASSET_TYPE = HomeAssistantSensorAsset.class.getSimpleName();
+    protected static final String CREATE_TABLE_SQL = "create table if not exists custom_sensor_rollup ("
+        + "asset_id varchar(22) not null, "
+        + "attribute_name varchar(255) not null, "
+        + "rollup_interval varchar(10) not null, "
+        + "bucket_start bigint not null, "
+        + "value_count bigint not null, "
+        + "value_min double precision not null, "
+        + "value_max double precision not null, "
+        + "value_sum double precision not null, "
+        + "primary key (asset_id, attribute_name, rollup_interval, bucket_start))";
+    protected static final String UPSERT_SQL = "insert into custom_sensor_rollup "
+        + "(asset_id, attribute_name, rollup_interval, bucket_start, value_count, value_min, value_max, value_sum) "
+        + "values (?, ?, ?, ?, ?, ?, ?, ?) "
+        + "on conflict (asset_id, attribute_name, rollup_interval, bucket_start) do update set "
+        + "value_count = custom_sensor_rollup.value_count + excluded.value_count, "
+        + "value_min = least(custom_sensor_rollup.value_min, excluded.value_min), "
+        + "value_max = greatest(custom_sensor_rollup.value_max, excluded.value_max), "
+        + "value_sum = custom_sensor_rollup.value_sum + excluded.value_sum";
+    protected static final String SELECT_SQL = "select bucket_start, value_count, value_min, value_max, value_sum "
+        + "from custom_sensor_rollup where asset_id = ? and attribute_name = ? and rollup_interval = ? "
+        + "and bucket_start >= ? and bucket_start < ? order by bucket_start";
+
+    protected record PendingRollup(AttributeRef ref, SensorRollupAccumulator.Delta delta) {
+    }
+
+    protected static final String ATTRIBUTE_SUBSCRIPTION_ID = CustomService.class.getSimpleName();
+    protected static final String ASSET_SUBSCRIPTION_ID = CustomService.class.getSimpleName() + "Assets";
+
+    protected PersistenceService persistenceService;
+    protected ClientEventService clientEventService;
+    protected ScheduledExecutorService executorService;
+    protected final Map<AttributeRef, SensorRollupAccumulator> accumulators = new ConcurrentHashMap<>();
+    protected final Map<AttributeRef, SensorHistoryBuffer> histories = new ConcurrentHashMap<>();
+    protected TimerService timerService;
+    protected int historyMaxCapacity;
+    protected boolean historyOffHeap;
+    // Guarded by itself, acquired while holding the lock of an accumulator when a bucket is drained
+    protected final Deque<PendingRollup> pending = new ArrayDeque<>();
+    // Held while a batch is taken from pending until it has been persisted (or put back) and while rollups are read, so a
+    // read sees every delta either in the table or in pending
+    protected final Object flushLock = new Object();
+    protected ScheduledFuture<?> flushTask;
+    protected volatile boolean running;
+
     @Override
     public void init(Container container) throws Exception {
+        persistenceService = container.getService(PersistenceService.class);
+        clientEventService = container.getService(ClientEventService.class);
+        executorService = container.getExecutorService();
+        timerService = container.getService(TimerService.class);
+        historyMaxCapacity = Math.max(1, getInteger(container.getConfig(), CUSTOM_HISTORY_MAX_CAPACITY, CUSTOM_HISTORY_MAX_CAPACITY_DEFAULT));
+        historyOffHeap = getBoolean(container.getConfig(), CUSTOM_HISTORY_OFF_HEAP, false);
 
+        container.getService(ManagerWebService.class).addApiSingleton(
+            new CustomEndpointResourceImpl(
+                timerService,
+                container.getService(ManagerIdentityService.class),
+                container.getService(AssetStorageService.class),
+                container.getService(AssetProcessingService.class),
+                clientEventService,
+                this
+            )
+        );
     }
 
     @Override
     public void start(Container container) throws Exception {
-
+        persistenceService.doTransaction(em -> em.createNativeQuery(CREATE_TABLE_SQL).executeUpdate());
+        running = true;
+        clientEventService.addInternalSubscription(ATTRIBUTE_SUBSCRIPTION_ID, AttributeEvent.class, null, this::onAttributeEvent);
+        clientEventService.addInternalSubscription(ASSET_SUBSCRIPTION_ID, AssetEvent.class, null, this::onAssetEvent);
+        flushTask = executorService.scheduleWithFixedDelay(this::flushRollups, ROLLUP_FLUSH_INTERVAL_MILLIS,
+            ROLLUP_FLUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
     }
 
     @Override
     public void stop(Container container) throws Exception {
+        running = false;
+        clientEventService.cancelInternalSubscription(ATTRIBUTE_SUBSCRIPTION_ID);
+        clientEventService.cancelInternalSubscription(ASSET_SUBSCRIPTION_ID);
+        if (flushTask != null) {
+            flushTask.cancel(false);
+            flushTask = null;
+        }
+        flushRollups();
+    }
+
+    protected void onAttributeEvent(AttributeEvent event) {
+        if (!running || !SENSOR_ASSET_TYPE.equals(event.getAssetType())) {
+            return;
+        }
+        if (event.isDeleted()) {
+            removeAttribute(event.getRef());
+            return;
+        }
+        Double value = event.getValue().map(CustomService::toDouble).orElse(null);
+        if (value == null) {
+            return; // not numeric (e.g. the unavailable state)
+        }
+
+        var ref = event.getRef();
+        histories.computeIfAbsent(ref, r -> new SensorHistoryBuffer(HISTORY_RETENTION_MILLIS, historyMaxCapacity, historyOffHeap))
+            .add(event.getTimestamp(), value);
+
+        var accumulator = accumulators.computeIfAbsent(ref, r -> new SensorRollupAccumulator());
+        synchronized (accumulator) {
+            accumulator.add(event.getTimestamp(), value, delta -> addPending(ref, delta));
+        }
+    }
+
+    protected void onAssetEvent(AssetEvent event) {
+        if (!running || event.getCause() != AssetEvent.Cause.DELETE) {
+            return;
+        }
+        String assetId = event.getId();
+        histories.keySet().removeIf(ref -> ref.getId().equals(assetId));
+        accumulators.keySet().stream().filter(ref -> ref.getId().equals(assetId)).toList().forEach(this::removeAttribute);
+    }
+
+    // Drops the history of the attribute; the values of its open rollup buckets are still persisted
+    protected void removeAttribute(AttributeRef ref) {
+        histories.remove(ref);
+        var accumulator = accumulators.remove(ref);
+        if (accumulator != null) {
+            synchronized (accumulator) {
+                accumulator.drain(delta -> addPending(ref, delta));
+            }
+        }
+    }
+
+    /**
+     * Returns the rollups of the attribute in the range (epoch millis, to is exclusive) including the values that have
+     * not been persisted yet.
+     */
+    public List<SensorRollup> getSensorRollups(AttributeRef ref, RollupInterval interval, long fromTimestamp, long toTimestamp) {
+        TreeMap<Long, SensorRollupAccumulator.Delta> buckets = new TreeMap<>();
+        List<SensorRollupAccumulator.Delta> unflushed = new ArrayList<>();
+
+        synchronized (flushLock) {
+            readRollups(ref, interval, fromTimestamp, toTimestamp, buckets);
+
+            // The deltas that are waiting to be persisted and the open bucket are read together so a bucket drained in
+            // between is not missed
+            var accumulator = accumulators.get(ref);
+            if (accumulator == null) {
+                addPendingDeltas(ref, unflushed);
+            } else {
+                synchronized (accumulator) {
+                    addPendingDeltas(ref, unflushed);
+                    var open = accumulator.peek(interval);
+                    if (open != null) {
+                        unflushed.add(open);
+                    }
+                }
+            }
+        }
+
+        unflushed.stream()
+            .filter(delta -> delta.interval() == interval && delta.bucketStart() >= fromTimestamp && delta.bucketStart() < toTimestamp)
+            .forEach(delta -> buckets.merge(delta.bucketStart(), delta, CustomService::merge));
+
+        return buckets.values().stream()
+            .map(delta -> new SensorRollup(delta.bucketStart(), delta.count(), delta.min(), delta.max(), delta.sum() / delta.count()))
+            .toList();
+    }
+
+    protected void addPendingDeltas(AttributeRef ref, List<SensorRollupAccumulator.Delta> deltas) {
+        synchronized (pending) {
+            pending.stream().filter(rollup -> rollup.ref().equals(ref)).forEach(rollup -> deltas.add(rollup.delta()));
+        }
+    }
+
+    protected void readRollups(AttributeRef ref, RollupInterval interval, long fromTimestamp, long toTimestamp,
+                               Map<Long, SensorRollupAccumulator.Delta> buckets) {
+        persistenceService.doTransaction(em -> em.unwrap(Session.class).doWork(connection -> {
+            try (PreparedStatement statement = connection.prepareStatement(SELECT_SQL)) {
+                statement.setString(1, ref.getId());
+                statement.setString(2, ref.getName());
+                statement.setString(3, interval.name());
+                statement.setLong(4, fromTimestamp);
+                statement.setLong(5, toTimestamp);
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                        long bucketStart = resultSet.getLong(1);
+                        buckets.put(bucketStart, new SensorRollupAccumulator.Delta(interval, bucketStart,
+                            resultSet.getLong(2), resultSet.getDouble(3), resultSet.getDouble(4), resultSet.getDouble(5)));
+                    }
+                }
+            }
+        }));
+    }
+
+    /**
+     * Returns the values of the attribute received within the last 24 hours (the oldest are evicted earlier for sensors
+     * exceeding the max capacity) in the range (epoch millis, to is exclusive) downsampled to at most maxPoints averaged
+     * points.
+     */
+    public List<ValueDatapoint<Double>> getSensorHistory(AttributeRef ref, long fromTimestamp, long toTimestamp, int maxPoints) {
+        var history = histories.get(ref);
+        if (history == null) {
+            return List.of();
+        }
+        maxPoints = Math.min(maxPoints, HISTORY_MAX_POINTS);
+        long[] timestamps = new long[maxPoints];
+        double[] values = new double[maxPoints];
+        int count = history.read(fromTimestamp, toTimestamp, maxPoints, timestamps, values);
+
+        List<ValueDatapoint<Double>> datapoints = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            datapoints.add(new ValueDatapoint<>(timestamps[i], values[i]));
+        }
+        return datapoints;
+    }
+
+    // Drains the open buckets and persists all pending deltas, the state of attributes that received no value within the
+    // retention period is dropped
+    protected void flushRollups() {
+        long expiredBefore = timerService.getCurrentTimeMillis() - HISTORY_RETENTION_MILLIS;
+        histories.values().removeIf(history -> history.evictBefore(expiredBefore));
+        accumulators.forEach((ref, accumulator) -> {
+            synchronized (accumulator) {
+                accumulator.drain(delta -> addPending(ref, delta));
+            }
+            if (!histories.containsKey(ref)) {
+                accumulators.remove(ref, accumulator);
+            }
+        });
+
+        synchronized (flushLock) {
+            List<PendingRollup> batch;
+            synchronized (pending) {
+                if (pending.isEmpty()) {
+                    return;
+                }
+                batch = new ArrayList<>(pending);
+                pending.clear();
+            }
+
+            try {
+                persistRollups(batch);
+                LOG.fine("Persisted sensor rollups: " + batch.size());
+            } catch (Exception e) {
+                LOG.log(Level.WARNING, "Failed to persist sensor rollups, will retry: " + batch.size(), e);
+                synchronized (pending) {
+                    for (int i = batch.size() - 1; i >= 0; i--) {
+                        pending.addFirst(batch.get(i));
+                    }
+                    trimPending();
+                }
+            }
+        }
+    }
+
+    protected void persistRollups(List<PendingRollup> batch) {
+        persistenceService.doTransaction(em -> em.unwrap(Session.class).doWork(connection -> {
+            try (PreparedStatement statement = connection.prepareStatement(UPSERT_SQL)) {
+                int batched = 0;
+                for (PendingRollup rollup : batch) {
+                    var delta = rollup.delta();
+                    statement.setString(1, rollup.ref().getId());
+                    statement.setString(2, rollup.ref().getName());
+                    statement.setString(3, delta.interval().name());
+                    statement.setLong(4, delta.bucketStart());
+                    statement.setLong(5, delta.count());
+                    statement.setDouble(6, delta.min());
+                    statement.setDouble(7, delta.max());
+                    statement.setDouble(8, delta.sum());
+                    statement.addBatch();
+                    if (++batched % ROLLUP_BATCH_SIZE == 0) {
+                        statement.executeBatch();
+                    }
+                }
+                if (batched % ROLLUP_BATCH_SIZE != 0) {
+                    statement.executeBatch();
+                }
+            }
+        }));
+    }
+
+    protected void addPending(AttributeRef ref, SensorRollupAccumulator.Delta delta) {
+        synchronized (pending) {
+            pending.add(new PendingRollup(ref, delta));
+            trimPending();
+        }
+    }
+
+    // Must be called while holding the pending lock
+    protected void trimPending() {
+        int excess = pending.size() - ROLLUP_MAX_PENDING;
+        if (excess > 0) {
+            for (int i = 0; i < excess; i++) {
+                pending.pollFirst();
+            }
+            LOG.warning("Too many sensor rollups pending, dropped the oldest: " + excess);
+        }
+    }
+
+    protected static SensorRollupAccumulator.Delta merge(SensorRollupAccumulator.Delta a, SensorRollupAccumulator.Delta b) {
+        return new SensorRollupAccumulator.Delta(a.interval(), a.bucketStart(), a.count() + b.count(),
+            Math.min(a.min(), b.min()), Math.max(a.max(), b.max()), a.sum() + b.sum());
+    }
 
+    // Sensor states are text so numeric strings are accepted as well
+    protected static Double toDouble(Object value) {
+        double parsed;
+        if (value instanceof Number number) {
+            parsed = number.doubleValue();
+        } else if (value instanceof String text) {
+            try {
+                parsed = Double.parseDouble(text);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        } else {
+            return null;
+        }
+        return Double.isFinite(parsed) ? parsed : null;
     }
 }
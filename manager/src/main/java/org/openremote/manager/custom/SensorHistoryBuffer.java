@@ -0,0 +1,184 @@
+/*
+ * Copyright 2024, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.manager.custom;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Ring buffer of the (timestamp, value) samples of a single attribute received within a retention period, stored as 16
+ * bytes per sample in a single {@link ByteBuffer} which can be allocated off-heap so thousands of buffers add little to
+ * GC work. The buffer starts small and doubles when full up to a maximum capacity; samples older than the retention
+ * period (relative to the newest sample) are evicted and once at the maximum capacity the oldest sample is evicted
+ * instead. Samples are kept in time order; a sample older than the newest one is dropped.
+ */
+public class SensorHistoryBuffer {
+
+    protected static final int SAMPLE_BYTES = Long.BYTES + Double.BYTES;
+    public static final int INITIAL_CAPACITY = 64;
+
+    protected final long retentionMillis;
+    protected final int maxCapacity;
+    protected final boolean offHeap;
+    protected ByteBuffer samples;
+    protected int capacity;
+    // Index of the oldest sample and number of samples
+    protected int head;
+    protected int size;
+    protected long newestTimestamp = Long.MIN_VALUE;
+
+    public SensorHistoryBuffer(long retentionMillis, int maxCapacity, boolean offHeap) {
+        this.retentionMillis = retentionMillis;
+        this.maxCapacity = Math.max(1, maxCapacity);
+        this.offHeap = offHeap;
+        this.capacity = Math.min(INITIAL_CAPACITY, this.maxCapacity);
+        this.samples = allocate(capacity);
+    }
+
+    public synchronized boolean add(long timestamp, double value) {
+        if (timestamp < newestTimestamp) {
+            return false;
+        }
+        newestTimestamp = timestamp;
+        evictBefore(timestamp < Long.MIN_VALUE + retentionMillis ? Long.MIN_VALUE : timestamp - retentionMillis);
+
+        if (size == capacity) {
+            if (capacity < maxCapacity) {
+                grow();
+            } else {
+                head = (head + 1) % capacity;
+                size--;
+            }
+        }
+        int index = (head + size++) % capacity;
+        samples.putLong(index * SAMPLE_BYTES, timestamp);
+        samples.putDouble(index * SAMPLE_BYTES + Long.BYTES, value);
+        return true;
+    }
+
+    // Evicts the samples older than the timestamp, returns true if the buffer is empty afterwards
+    public synchronized boolean evictBefore(long timestamp) {
+        while (size > 0 && timestampAt(0) < timestamp) {
+            head = (head + 1) % capacity;
+            size--;
+        }
+        return size == 0;
+    }
+
+    /**
+     * Copies the samples within the range (to is exclusive); when there are more than maxPoints samples the range, clamped
+     * to the samples within it, is split into maxPoints equal periods and the average of each period is returned,
+     * timestamped at its first sample. Any range is accepted (e.g. up to {@link Long#MAX_VALUE}).
+     *
+     * @return the number of points written to the arrays which must have room for maxPoints points
+     */
+    public synchronized int read(long fromTimestamp, long toTimestamp, int maxPoints, long[] timestamps, double[] values) {
+        int first = indexOf(fromTimestamp);
+        int end = indexOf(toTimestamp);
+        int count = end - first;
+        if (count <= 0 || maxPoints <= 0) {
+            return 0;
+        }
+
+        if (count <= maxPoints) {
+            for (int i = 0; i < count; i++) {
+                timestamps[i] = timestampAt(first + i);
+                values[i] = valueAt(first + i);
+            }
+            return count;
+        }
+
+        // The samples can span more than Long.MAX_VALUE (e.g. negative timestamps) so offsets from the first sample are
+        // unsigned, which is exact as no sample is before it. The period is the ceiling of (range + 1) / maxPoints so
+        // every sample falls in one of maxPoints periods; the range is below 2^64 - 1 as to is exclusive so it does not wrap
+        long from = timestampAt(first);
+        long range = timestampAt(end - 1) - from;
+        long period = Long.divideUnsigned(range, maxPoints) + 1;
+        int points = -1;
+        long currentPeriod = -1;
+        double sum = 0;
+        int samplesInPeriod = 0;
+        for (int i = first; i < end; i++) {
+            long timestamp = timestampAt(i);
+            long samplePeriod = Long.divideUnsigned(timestamp - from, period);
+            if (samplePeriod != currentPeriod) {
+                if (points >= 0) {
+                    values[points] = sum / samplesInPeriod;
+                }
+                points++;
+                currentPeriod = samplePeriod;
+                timestamps[points] = timestamp;
+                sum = 0;
+                samplesInPeriod = 0;
+            }
+            sum += valueAt(i);
+            samplesInPeriod++;
+        }
+        values[points] = sum / samplesInPeriod;
+        return points + 1;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized int capacity() {
+        return capacity;
+    }
+
+    // Doubles the capacity, the samples are moved to the start of the new buffer
+    protected void grow() {
+        int newCapacity = (int) Math.min((long) capacity * 2, maxCapacity);
+        ByteBuffer newSamples = allocate(newCapacity);
+        for (int i = 0; i < size; i++) {
+            newSamples.putLong(i * SAMPLE_BYTES, timestampAt(i));
+            newSamples.putDouble(i * SAMPLE_BYTES + Long.BYTES, valueAt(i));
+        }
+        samples = newSamples;
+        capacity = newCapacity;
+        head = 0;
+    }
+
+    protected ByteBuffer allocate(int capacity) {
+        return offHeap ? ByteBuffer.allocateDirect(capacity * SAMPLE_BYTES) : ByteBuffer.allocate(capacity * SAMPLE_BYTES);
+    }
+
+    // Position (0 is the oldest sample) of the first sample at or after the timestamp
+    protected int indexOf(long timestamp) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (timestampAt(mid) < timestamp) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    protected long timestampAt(int position) {
+        return samples.getLong(((head + position) % capacity) * SAMPLE_BYTES);
+    }
+
+    protected double valueAt(int position) {
+        return samples.getDouble(((head + position) % capacity) * SAMPLE_BYTES + Long.BYTES);
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2024, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.manager.custom;
+
+import org.openremote.model.custom.RollupInterval;
+
+import java.util.function.Consumer;
+
+/**
+ * Running aggregates of a single sensor attribute, one open bucket per {@link RollupInterval} held in primitive arrays
+ * indexed by the ordinal of the interval. A bucket only holds the values added since it was last drained, so draining
+ * produces deltas that are merged into the stored rollup of the same bucket. Not thread safe.
+ */
+public class SensorRollupAccumulator {
+
+    protected static final RollupInterval[] INTERVALS = RollupInterval.values();
+
+    /**
+     * A drained bucket.
+     */
+    public record Delta(RollupInterval interval, long bucketStart, long count, double min, double max, double sum) {
+    }
+
+    protected final long[] bucketStart = new long[INTERVALS.length];
+    protected final long[] count = new long[INTERVALS.length];
+    protected final double[] min = new double[INTERVALS.length];
+    protected final double[] max = new double[INTERVALS.length];
+    protected final double[] sum = new double[INTERVALS.length];
+
+    // Adds a value to the bucket of every interval, a bucket holding values of another period is drained first
+    public void add(long timestamp, double value, Consumer<Delta> drained) {
+        for (int i = 0; i < INTERVALS.length; i++) {
+            long start = INTERVALS[i].getBucketStart(timestamp);
+            if (count[i] > 0 && bucketStart[i] != start) {
+                drain(i, drained);
+            }
+            if (count[i] == 0) {
+                bucketStart[i] = start;
+                min[i] = value;
+                max[i] = value;
+            } else {
+                min[i] = Math.min(min[i], value);
+                max[i] = Math.max(max[i], value);
+            }
+            count[i]++;
+            sum[i] += value;
+        }
+    }
+
+    // Drains the buckets of all intervals that hold values
+    public void drain(Consumer<Delta> drained) {
+        for (int i = 0; i < INTERVALS.length; i++) {
+            if (count[i] > 0) {
+                drain(i, drained);
+            }
+        }
+    }
+
+    // Returns the values of the open bucket of the interval that have not been drained yet, null if there are none
+    public Delta peek(RollupInterval interval) {
+        int i = interval.ordinal();
+        return count[i] > 0 ? new Delta(interval, bucketStart[i], count[i], min[i], max[i], sum[i]) : null;
+    }
+
+    protected void drain(int i, Consumer<Delta> drained) {
+        drained.accept(new Delta(INTERVALS[i], bucketStart[i], count[i], min[i], max[i], sum[i]));
+        count[i] = 0;
+        sum[i] = 0d;
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2024, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.model.custom;
+
+/**
+ * A value for an asset attribute submitted through the bulk ingest endpoint; the timestamp (epoch millis) is optional and
+ * defaults to the time the record is applied.
+ */
+public class CustomDataRecord {
+
+    protected String assetId;
+    protected String attributeName;
+    protected Object value;
+    protected Long timestamp;
+
+    protected CustomDataRecord() {
+    }
+
+    public CustomDataRecord(String assetId, String attributeName, Object value, Long timestamp) {
+        this.assetId = assetId;
+        this.attributeName = attributeName;
+        this.value = value;
+        this.timestamp = timestamp;
+    }
+
+    public String getAssetId() {
+        return assetId;
+    }
+
+    public String getAttributeName() {
+        return attributeName;
+    }
+
+    public Object getValue() {
+        return value;
+    }
+
+    public Long getTimestamp() {
+        return timestamp;
+    }
+}
@@ -19,8 +19,20 @@
  */
 package org.openremote.model.custom;
 
+import jakarta.annotation.security.RolesAllowed;
+import jakarta.ws.rs.Consumes;
+import jakarta.ws.rs.GET;
 import jakarta.ws.rs.POST;
 import jakarta.ws.rs.Path;
+import jakarta.ws.rs.PathParam;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.QueryParam;
+import org.openremote.model.Constants;
+import org.openremote.model.datapoint.ValueDatapoint;
+
+import java.io.InputStream;
+
+import static jakarta.ws.rs.core.MediaType.APPLICATION_JSON;
 
 /**
  * This is an example custom JAX-RS endpoint; this will be compiled and made available in the typescript model as well
@@ -28,6 +40,50 @@ import jakarta.ws.rs.Path;
 @Path("custom")
 public interface CustomEndpointResource {
 
+    String APPLICATION_NDJSON = "application/x-ndjson";
+
     @POST
     void submitData(CustomData customData);
+
+    /**
+     * Writes a JSON array or newline delimited stream of {@link CustomDataRecord}s to asset attributes; the body is parsed
+     * incrementally so a request can carry any number of records. Records are validated and authorized in batches (one
+     * asset query per batch) and each accepted record is queued as an attribute event. Returns one result per batch,
+     * a malformed body ends the request with the error in the result of the last batch.
+     */
+    @POST
+    @Path("bulk")
+    @Consumes({APPLICATION_JSON, APPLICATION_NDJSON})
+    @Produces(APPLICATION_JSON)
+    @RolesAllowed({Constants.WRITE_ATTRIBUTES_ROLE})
+    CustomIngestResult[] submitBulkData(InputStream records);
+
+    /**
+     * Returns the pre-aggregated values of a sensor attribute with a bucket start within the given range (epoch millis,
+     * to is exclusive) ordered by time.
+     */
+    @GET
+    @Path("rollup/{assetId}/{attributeName}")
+    @Produces(APPLICATION_JSON)
+    @RolesAllowed({Constants.READ_ASSETS_ROLE})
+    SensorRollup[] getSensorRollups(@PathParam("assetId") String assetId,
+                                    @PathParam("attributeName") String attributeName,
+                                    @QueryParam("interval") RollupInterval interval,
+                                    @QueryParam("from") long fromTimestamp,
+                                    @QueryParam("to") long toTimestamp);
+
+    /**
+     * Returns the values of a sensor attribute received within the last 24 hours from memory (sensors reporting more than
+     * once a second keep less); from and to (epoch millis, to is exclusive) default to the last 24 hours and when the
+     * range holds more than maxPoints values (default 1000) it is split into equal periods which are averaged.
+     */
+    @GET
+    @Path("history/{assetId}/{attributeName}")
+    @Produces(APPLICATION_JSON)
+    @RolesAllowed({Constants.READ_ASSETS_ROLE})
+    ValueDatapoint<?>[] getSensorHistory(@PathParam("assetId") String assetId,
+                                         @PathParam("attributeName") String attributeName,
+                                         @QueryParam("from") Long fromTimestamp,
+                                         @QueryParam("to") Long toTimestamp,
+                                         @QueryParam("maxPoints") Integer maxPoints);
 }
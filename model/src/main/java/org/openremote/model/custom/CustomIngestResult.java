@@ -0,0 +1,81 @@
+/*
+ * Copyright 2024, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.model.custom;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Acknowledgement of one batch of records submitted through the bulk ingest endpoint; records are numbered from 0 in
+ * the order they were submitted. A queued record passed validation and write authorization and was queued as an
+ * attribute event; the attribute processing chain can still reject it (e.g. an outdated timestamp or a value of the
+ * wrong type) which is not reported here.
+ */
+public class CustomIngestResult {
+
+    public static final int MAX_ERRORS = 10;
+
+    protected int batch;
+    protected long firstRecord;
+    protected int queued;
+    protected int rejected;
+    protected List<String> errors = new ArrayList<>();
+
+    protected CustomIngestResult() {
+    }
+
+    public CustomIngestResult(int batch, long firstRecord) {
+        this.batch = batch;
+        this.firstRecord = firstRecord;
+    }
+
+    public int getBatch() {
+        return batch;
+    }
+
+    public long getFirstRecord() {
+        return firstRecord;
+    }
+
+    // Records queued as attribute events
+    public int getQueued() {
+        return queued;
+    }
+
+    public int getRejected() {
+        return rejected;
+    }
+
+    // The first errors of the batch, at most MAX_ERRORS
+    public List<String> getErrors() {
+        return errors;
+    }
+
+    public void onQueued() {
+        queued++;
+    }
+
+    public void onRejected(long record, String error) {
+        rejected++;
+        if (errors.size() < MAX_ERRORS) {
+            errors.add("Record " + record + ": " + error);
+        }
+    }
+}
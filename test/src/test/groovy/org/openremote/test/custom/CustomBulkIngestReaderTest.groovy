@@ -0,0 +1,102 @@
+/*
+ * Copyright 2024, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.test.custom
+
+import org.openremote.manager.custom.CustomBulkIngestReader
+import org.openremote.model.custom.CustomDataRecord
+import org.openremote.model.custom.CustomIngestResult
+import spock.lang.Specification
+
+import java.nio.charset.StandardCharsets
+
+class CustomBulkIngestReaderTest extends Specification {
+
+    List<List<CustomDataRecord>> batches = []
+
+    def "Records are read from a JSON array and from NDJSON"() {
+        when: "the records are read"
+        def results = read(2, body)
+
+        then: "all records should be handed over in order"
+        results.size() == 1
+        batches.size() == 1
+        batches[0]*.assetId == ["asset1", "asset2"]
+        batches[0]*.value == [1, 2]
+        batches[0][1].timestamp == 1000L
+
+        where:
+        body << [
+            '[{"assetId":"asset1","attributeName":"temperature","value":1},{"assetId":"asset2","attributeName":"temperature","value":2,"timestamp":1000}]',
+            '{"assetId":"asset1","attributeName":"temperature","value":1}\n{"assetId":"asset2","attributeName":"temperature","value":2,"timestamp":1000}\n'
+        ]
+    }
+
+    def "Records are handed over in batches"() {
+        when: "more records than fit in a batch are read"
+        def results = read(2, records(count))
+
+        then: "the records should be split over batches numbered from the first record of each"
+        batches*.size() == batchSizes
+        results*.batch == (0..<batchSizes.size()).toList()
+        results*.firstRecord == firstRecords
+
+        where:
+        count | batchSizes | firstRecords
+        0     | []         | []
+        4     | [2, 2]     | [0L, 2L]
+        5     | [2, 2, 1]  | [0L, 2L, 4L]
+    }
+
+    def "A malformed record ends the body"() {
+        given: "a body with a malformed third record"
+        def body = records(2) + '{"assetId":"asset2","attributeName":\n' + records(1)
+
+        when: "the records are read"
+        def results = read(2, body)
+
+        then: "the records before it should be handed over"
+        batches.size() == 1
+        batches[0].size() == 2
+
+        and: "the error should be reported in the last batch"
+        results.size() == 2
+        results[1].firstRecord == 2L
+        results[1].rejected == 1
+        results[1].errors[0].startsWith("Record 2: Malformed record")
+    }
+
+    def "Null records are handed over"() {
+        when: "a body containing a null record is read"
+        read(10, '[null,{"assetId":"asset1","attributeName":"temperature","value":1}]')
+
+        then: "the null should be handed over for the consumer to reject"
+        batches[0].size() == 2
+        batches[0][0] == null
+    }
+
+    List<CustomIngestResult> read(int batchSize, String body) {
+        new CustomBulkIngestReader(batchSize).read(new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)),
+            { records, result -> batches.add(records) } as CustomBulkIngestReader.BatchConsumer)
+    }
+
+    static String records(int count) {
+        (0..<count).collect { "{\"assetId\":\"asset$it\",\"attributeName\":\"temperature\",\"value\":$it}\n" }.join("")
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2019, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.test.custom
+
+import org.openremote.manager.custom.CustomService
+import org.openremote.manager.custom.SensorRollupAccumulator
+import org.openremote.model.attribute.AttributeRef
+import org.openremote.test.ManagerContainerTrait
+import spock.lang.Specification
+import spock.util.concurrent.PollingConditions
+
+import static org.openremote.model.custom.RollupInterval.MINUTE
+
+class CustomServiceTest extends Specification implements ManagerContainerTrait {
+
+    def "Rollup deltas of the same bucket are merged when persisted"() {
+
+        given: "the container is started"
+        def conditions = new PollingConditions(timeout: 10, delay: 1)
+        def container = startContainer(defaultConfig(), defaultServices())
+        def customService = container.getService(CustomService.class)
+        def ref = new AttributeRef("rollupTestAsset0000001", "temperature")
+
+        expect: "the container should be running"
+        conditions.eventually {
+            assert container.isRunning()
+        }
+
+        when: "two deltas of the same bucket are persisted in separate batches"
+        customService.persistRollups([new CustomService.PendingRollup(ref, new SensorRollupAccumulator.Delta(MINUTE, 60_000, 2, 3d, 5d, 8d))])
+        customService.persistRollups([new CustomService.PendingRollup(ref, new SensorRollupAccumulator.Delta(MINUTE, 60_000, 3, 1d, 4d, 7d))])
+
+        and: "a delta of the next bucket"
+        customService.persistRollups([new CustomService.PendingRollup(ref, new SensorRollupAccumulator.Delta(MINUTE, 120_000, 1, 9d, 9d, 9d))])
+
+        then: "the stored rollup should combine the counts, sums and extremes of both deltas"
+        def rollups = customService.getSensorRollups(ref, MINUTE, 0, 180_000)
+        rollups*.timestamp == [60_000L, 120_000L]
+        rollups[0].count == 5L
+        rollups[0].min == 1d
+        rollups[0].max == 5d
+        rollups[0].avg == 3d
+        rollups[1].count == 1L
+        rollups[1].avg == 9d
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2019, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.test.custom
+
+import org.openremote.agent.custom.commands.EntityStateCommand
+import org.openremote.agent.custom.commands.EntityStateCommandAggregator
+import spock.lang.Specification
+
+import java.util.concurrent.CancellationException
+import java.util.concurrent.CompletableFuture
+
+class EntityStateCommandAggregatorTest extends Specification {
+
+    static class SentGroup {
+        final String domain
+        final EntityStateCommand command
+        final List<String> entityIds
+        final CompletableFuture<Object> result = new CompletableFuture<>()
+
+        SentGroup(String domain, EntityStateCommand command, List<String> entityIds) {
+            this.domain = domain
+            this.command = command
+            this.entityIds = entityIds
+        }
+    }
+
+    def scheduler = new ManualScheduledExecutor()
+    List<SentGroup> sent = []
+    EntityStateCommandAggregator.GroupSender sender = { String domain, EntityStateCommand command, List<String> entityIds ->
+        def group = new SentGroup(domain, command, entityIds)
+        sent.add(group)
+        return group.result
+    }
+
+    def cleanup() {
+        scheduler.shutdownNow()
+    }
+
+    def "Compatible commands within the window are merged into one call"() {
+        given: "an aggregator with a window"
+        def aggregator = new EntityStateCommandAggregator(scheduler, 10, 500, sender)
+
+        when: "compatible commands for several entities are applied"
+        def results = (1..3).collect { aggregator.apply("light", command("turn_on", "light.light" + it)) }
+
+        then: "nothing should be sent before the window has elapsed"
+        sent.isEmpty()
+        scheduler.pending.size() == 1
+        scheduler.pending[0].delayMillis == 10L
+
+        when: "the window elapses"
+        scheduler.runScheduled()
+
+        then: "a single call should target all of the entities"
+        sent.size() == 1
+        sent[0].domain == "light"
+        sent[0].command.service == "turn_on"
+        sent[0].entityIds == ["light.light1", "light.light2", "light.light3"]
+        aggregator.callCount == 1
+        aggregator.mergedCount == 2
+
+        when: "the call completes"
+        sent[0].result.complete(true)
+
+        then: "the future of every merged command should complete with its result"
+        results*.getNow(null) == [true, true, true]
+    }
+
+    def "Commands with different services or service data are sent separately"() {
+        given: "an aggregator with a window"
+        def aggregator = new EntityStateCommandAggregator(scheduler, 10, 500, sender)
+
+        when: "incompatible commands are applied"
+        aggregator.apply("light", command("turn_on", "light.light1"))
+        aggregator.apply("light", command("turn_off", "light.light2"))
+        aggregator.apply("light", command("turn_on", "light.light3", "brightness", "100"))
+        aggregator.apply("light", command("turn_on", "light.light4", "brightness", "200"))
+        aggregator.apply("light", command("turn_on", "light.light5", "brightness", "100"))
+        scheduler.runScheduled()
+
+        then: "a call should be sent per group of compatible commands"
+        sent.size() == 4
+        sent.collect { it.entityIds } as Set == [["light.light1"], ["light.light2"], ["light.light3", "light.light5"], ["light.light4"]] as Set
+    }
+
+    def "A group is sent as soon as it is full"() {
+        given: "an aggregator with a max group size"
+        def aggregator = new EntityStateCommandAggregator(scheduler, 10, 2, sender)
+
+        when: "more commands than fit in a group are applied"
+        (1..3).each { aggregator.apply("switch", command("turn_off", "switch.switch" + it)) }
+
+        then: "the full group should be sent without waiting and its window cancelled"
+        sent.size() == 1
+        sent[0].entityIds == ["switch.switch1", "switch.switch2"]
+        scheduler.scheduled[0].cancelled
+
+        when: "the window of the next group elapses"
+        scheduler.runScheduled()
+
+        then: "the remaining command should be sent"
+        sent.size() == 2
+        sent[1].entityIds == ["switch.switch3"]
+    }
+
+    def "Commands are sent immediately when there is no window"() {
+        given: "an aggregator without a window"
+        def aggregator = new EntityStateCommandAggregator(scheduler, 0, 500, sender)
+
+        when: "compatible commands are applied"
+        aggregator.apply("light", command("turn_on", "light.light1"))
+        aggregator.apply("light", command("turn_on", "light.light2"))
+
+        then: "each should be sent on its own without scheduling"
+        sent*.entityIds == [["light.light1"], ["light.light2"]]
+        scheduler.scheduled.isEmpty()
+    }
+
+    def "A failed call fails every merged command and stopping cancels open groups"() {
+        given: "an aggregator with a window"
+        def aggregator = new EntityStateCommandAggregator(scheduler, 10, 500, sender)
+
+        when: "two merged commands are sent and the call fails"
+        def results = (1..2).collect { aggregator.apply("light", command("turn_on", "light.light" + it)) }
+        scheduler.runScheduled()
+        sent[0].result.completeExceptionally(new IllegalStateException("failed"))
+
+        then: "both futures should fail"
+        results.every { it.isCompletedExceptionally() }
+
+        when: "a command is applied and the aggregator is stopped before its window elapses"
+        def open = aggregator.apply("light", command("turn_on", "light.light3"))
+        aggregator.stop()
+        scheduler.runScheduled()
+
+        then: "the command should be cancelled without being sent"
+        sent.size() == 1
+        open.isCompletedExceptionally()
+
+        when: "a command is applied after stopping"
+        def rejected = aggregator.apply("light", command("turn_on", "light.light4"))
+
+        then: "it should be rejected"
+        rejected.isCompletedExceptionally()
+        sent.size() == 1
+
+        when: "the result is awaited"
+        rejected.join()
+
+        then: "the cause should be a cancellation"
+        thrown(CancellationException)
+    }
+
+    protected static EntityStateCommand command(String service, String entityId, String attributeName = null, String attributeValue = null) {
+        return new EntityStateCommand(service, entityId, attributeName, attributeValue)
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2019, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.test.custom
+
+import org.openremote.agent.custom.commands.EntityStateCommand
+import org.openremote.agent.custom.commands.EntityStateCommandQueue
+import spock.lang.Specification
+
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.Executor
+
+class EntityStateCommandQueueTest extends Specification {
+
+    static class SentCommand {
+        final EntityStateCommand command
+        final CompletableFuture<Object> result = new CompletableFuture<>()
+
+        SentCommand(EntityStateCommand command) {
+            this.command = command
+        }
+    }
+
+    // Tasks only run when the test calls runTasks
+    List<Runnable> tasks = []
+    Executor executor = { Runnable task -> tasks.add(task) } as Executor
+    List<SentCommand> sent = []
+    def queue = new EntityStateCommandQueue(executor, { String domain, EntityStateCommand command ->
+        def sentCommand = new SentCommand(command)
+        sent.add(sentCommand)
+        return sentCommand.result
+    })
+
+    def "Commands for an entity are sent in order with one in flight"() {
+        when: "commands for different attributes of an entity are enqueued"
+        queue.enqueue("light", command("turn_on", "light.light1", "brightness", "10"))
+        queue.enqueue("light", command("turn_on", "light.light1", "color_temp", "300"))
+        queue.enqueue("light", command("turn_off", "light.light1"))
+        runTasks()
+
+        then: "only the first command should be in flight"
+        sent*.command*.attributeValue == ["10"]
+        queue.queueDepth == 2
+
+        when: "each command completes"
+        sent[0].result.complete(true)
+        runTasks()
+        sent[1].result.complete(true)
+        runTasks()
+
+        then: "the next command should only be sent once the previous one has completed, in the order of the writes"
+        sent*.command*.service == ["turn_on", "turn_on", "turn_off"]
+        sent*.command*.attributeName == ["brightness", "color_temp", null]
+        queue.queueDepth == 0
+    }
+
+    def "Commands of different entities are dispatched independently"() {
+        when: "commands for two entities are enqueued"
+        queue.enqueue("light", command("turn_on", "light.light1"))
+        queue.enqueue("switch", command("turn_off", "switch.switch1"))
+        runTasks()
+
+        then: "both should be in flight"
+        sent*.command*.entityId == ["light.light1", "switch.switch1"]
+    }
+
+    def "Queued writes of the same attribute are coalesced, toggles never are"() {
+        given: "a command in flight"
+        queue.enqueue("light", command("turn_on", "light.light1", "brightness", "1"))
+        runTasks()
+
+        when: "a burst of writes is enqueued while it is in flight"
+        (2..10).each { queue.enqueue("light", command("turn_on", "light.light1", "brightness", it as String)) }
+        queue.enqueue("light", command("toggle", "light.light1"))
+        queue.enqueue("light", command("toggle", "light.light1"))
+
+        then: "the writes of the attribute should be coalesced into the latest one"
+        queue.coalescedCount == 8
+        queue.queueDepth == 3
+
+        when: "the commands complete"
+        completeAll()
+
+        then: "the latest write and both toggles should be sent"
+        sent*.command*.service == ["turn_on", "turn_on", "toggle", "toggle"]
+        sent*.command*.attributeValue == ["1", "10", null, null]
+    }
+
+    def "The queue of an entity is removed once it is idle"() {
+        when: "commands for an entity are enqueued and complete"
+        queue.enqueue("light", command("turn_on", "light.light1"))
+        queue.enqueue("light", command("turn_off", "light.light1"))
+        runTasks()
+
+        then: "the entity should have a queue while it has commands"
+        queue.entityQueueCount == 1
+
+        when: "all commands complete"
+        completeAll()
+
+        then: "the queue should be removed"
+        queue.entityQueueCount == 0
+
+        when: "another command for the entity is enqueued"
+        queue.enqueue("light", command("turn_on", "light.light1"))
+        runTasks()
+
+        then: "it should be sent from a new queue"
+        sent.size() == 3
+        queue.entityQueueCount == 1
+    }
+
+    protected void runTasks() {
+        while (!tasks.isEmpty()) {
+            tasks.remove(0).run()
+        }
+    }
+
+    // Completes the in flight commands until none are left
+    protected void completeAll() {
+        runTasks()
+        while (sent.any { !it.result.isDone() }) {
+            sent.findAll { !it.result.isDone() }.each { it.result.complete(true) }
+            runTasks()
+        }
+    }
+
+    protected static EntityStateCommand command(String service, String entityId, String attributeName = null, String attributeValue = null) {
+        return new EntityStateCommand(service, entityId, attributeName, attributeValue)
+    }
+}
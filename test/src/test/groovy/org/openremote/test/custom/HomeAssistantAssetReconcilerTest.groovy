@@ -0,0 +1,210 @@
+/*
+ * Copyright 2019, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.test.custom
+
+import org.openremote.agent.custom.HomeAssistantAgent
+import org.openremote.agent.custom.HomeAssistantAssetReconciler
+import org.openremote.agent.custom.HomeAssistantDiscoveryBatcher
+import org.openremote.agent.custom.HomeAssistantEntityProcessor
+import org.openremote.agent.custom.HomeAssistantProtocol
+import org.openremote.agent.custom.entities.HomeAssistantBaseEntity
+import org.openremote.agent.protocol.ProtocolAssetService
+import org.openremote.container.util.UniqueIdentifierGenerator
+import org.openremote.model.asset.Asset
+import org.openremote.model.asset.AssetTreeNode
+import org.openremote.model.attribute.AttributeEvent
+import spock.lang.Specification
+
+class HomeAssistantAssetReconcilerTest extends Specification {
+
+    HomeAssistantAgent agent
+    HomeAssistantProtocol protocol
+    HomeAssistantEntityProcessor entityProcessor
+    List<Asset<?>> existingAssets = []
+    List<AttributeEvent> sentEvents = []
+    List<Asset<?>> mergedAssets = []
+    List<String> deletedAssetIds = []
+    List<AssetTreeNode[]> batches = []
+    ProtocolAssetService assetService = [
+        findAssets        : { Object[] args -> existingAssets },
+        sendAttributeEvent: { AttributeEvent event -> sentEvents.add(event) },
+        mergeAsset        : { Asset<?> asset -> mergedAssets.add(asset); asset },
+        deleteAssets      : { String[] ids -> deletedAssetIds.addAll(ids); true }
+    ] as ProtocolAssetService
+
+    def setup() {
+        agent = new HomeAssistantAgent("Test")
+        agent.setId("testAgentId00000000001")
+        agent.setRealm("master")
+        agent.getAttributes().getOrCreate(HomeAssistantAgent.IMPORTED_ENTITY_TYPES).setValue("light,switch")
+        protocol = new HomeAssistantProtocol(agent)
+        entityProcessor = new HomeAssistantEntityProcessor(protocol, assetService)
+    }
+
+    def "Unchanged entities are left alone"() {
+        given: "an existing light"
+        def group = addGroup("light")
+        addExisting(entity("light.kitchen", "on", [effect: "rainbow"]), group)
+
+        when: "the same entity is reconciled"
+        def reconciler = reconcile(entity("light.kitchen", "on", [effect: "rainbow"]))
+
+        then: "nothing should be sent, merged or added"
+        sentEvents.isEmpty()
+        mergedAssets.isEmpty()
+        batches.isEmpty()
+        reconciler.summary == "added=0, changed=0, unchanged=1, removed=0"
+    }
+
+    def "Changed attributes are published"() {
+        given: "an existing light"
+        def group = addGroup("light")
+        def light = addExisting(entity("light.kitchen", "off", [effect: "rainbow"]), group)
+
+        when: "the entity is reconciled with a new state and effect"
+        def reconciler = reconcile(entity("light.kitchen", "on", [effect: "fire"]))
+
+        then: "only the changed attributes should be published"
+        sentEvents.collect { [it.id, it.name, it.value.orElse(null)] } as Set == [[light.id, "state", true], [light.id, "effect", "fire"]] as Set
+        mergedAssets.isEmpty()
+        reconciler.summary == "added=0, changed=1, unchanged=0, removed=0"
+    }
+
+    def "Attributes that Home Assistant no longer reports are cleared"() {
+        given: "an existing light with an effect"
+        def group = addGroup("light")
+        def light = addExisting(entity("light.kitchen", "on", [effect: "rainbow"]), group)
+
+        when: "the entity is reconciled without the effect"
+        def reconciler = reconcile(entity("light.kitchen", "on", [:]))
+
+        then: "the effect should be cleared and kept on the asset"
+        sentEvents.collect { [it.id, it.name, it.value.orElse(null)] } == [[light.id, "effect", null]]
+        light.getAttributes().get("effect").isPresent()
+        reconciler.summary == "added=0, changed=1, unchanged=0, removed=0"
+
+        when: "the entity is reconciled without the effect again"
+        sentEvents.clear()
+        reconciler = reconcile(entity("light.kitchen", "on", [:]))
+
+        then: "nothing should be published"
+        sentEvents.isEmpty()
+        reconciler.summary == "added=0, changed=0, unchanged=1, removed=0"
+    }
+
+    def "Attributes that Home Assistant starts reporting are added to the asset"() {
+        given: "an existing light without an effect"
+        def group = addGroup("light")
+        def light = addExisting(entity("light.kitchen", "on", [:]), group)
+
+        when: "the entity is reconciled with an effect"
+        reconcile(entity("light.kitchen", "on", [effect: "rainbow"]))
+
+        then: "the asset should be merged with the new attribute"
+        mergedAssets*.id == [light.id]
+        light.getAttributes().get("effect").flatMap { it.value }.orElse(null) == "rainbow"
+        sentEvents.isEmpty()
+    }
+
+    def "New entities are added to their existing group"() {
+        given: "an existing light group"
+        def group = addGroup("light")
+
+        when: "a new light is reconciled"
+        def reconciler = reconcile(entity("light.hall", "off", [:]))
+
+        then: "it should be added to the existing group"
+        batches.size() == 1
+        batches[0]*.asset*.parentId == [group.id]
+        batches[0][0].asset.id != null
+        reconciler.summary == "added=1, changed=0, unchanged=0, removed=0"
+    }
+
+    def "Assets of missing entities and their empty groups are removed"() {
+        given: "existing lights, a switch and a sensor that is not imported"
+        def lightGroup = addGroup("light")
+        def switchGroup = addGroup("switch")
+        def sensorGroup = addGroup("sensor")
+        def kitchen = addExisting(entity("light.kitchen", "on", [:]), lightGroup)
+        def hall = addExisting(entity("light.hall", "on", [:]), lightGroup)
+        def pump = addExisting(entity("switch.pump", "off", [:]), switchGroup)
+        addExisting(entity("sensor.temperature", "21", [:]), sensorGroup)
+
+        when: "only the kitchen light is reconciled and missing entities are removed"
+        def reconciler = reconcile(entity("light.kitchen", "on", [:]))
+        reconciler.removeMissing()
+
+        then: "the missing light and switch and the emptied switch group should be removed"
+        deletedAssetIds as Set == [hall.id, pump.id, switchGroup.id] as Set
+        !deletedAssetIds.contains(kitchen.id)
+        !deletedAssetIds.contains(lightGroup.id)
+        !deletedAssetIds.contains(sensorGroup.id)
+        reconciler.summary == "added=0, changed=0, unchanged=1, removed=3"
+    }
+
+    def "A group that receives a new entity is not removed"() {
+        given: "an existing switch group whose switch is missing"
+        def switchGroup = addGroup("switch")
+        def pump = addExisting(entity("switch.pump", "off", [:]), switchGroup)
+
+        when: "a new switch is reconciled and missing entities are removed"
+        def reconciler = reconcile(entity("switch.heater", "off", [:]))
+        reconciler.removeMissing()
+
+        then: "only the missing switch should be removed"
+        deletedAssetIds == [pump.id]
+    }
+
+    protected HomeAssistantAssetReconciler reconcile(HomeAssistantBaseEntity... entities) {
+        def reconciler = new HomeAssistantAssetReconciler(protocol, entityProcessor, assetService)
+        reconciler.load()
+        def batcher = new HomeAssistantDiscoveryBatcher(agent, entityProcessor, batches.&add, 10)
+        reconciler.existingGroupIds.each { type, id -> batcher.addExistingGroup(type, id) }
+        entities.each { reconciler.reconcile(it, batcher) }
+        batcher.flush()
+        return reconciler
+    }
+
+    protected Asset<?> addGroup(String entityType) {
+        def group = entityProcessor.initiateAssetClass([friendly_name: entityType], entityType, UniqueIdentifierGenerator.generateId())
+        group.setId(UniqueIdentifierGenerator.generateId())
+        group.setParentId(agent.id)
+        group.setRealm(agent.realm)
+        existingAssets.add(group)
+        return group
+    }
+
+    protected Asset<?> addExisting(HomeAssistantBaseEntity entity, Asset<?> group) {
+        def asset = entityProcessor.convertEntityToAsset(entity)
+        asset.setId(UniqueIdentifierGenerator.generateId())
+        asset.setParentId(group.id)
+        asset.setRealm(agent.realm)
+        existingAssets.add(asset)
+        return asset
+    }
+
+    static HomeAssistantBaseEntity entity(String entityId, String state, Map<String, Object> attributes) {
+        def entity = new HomeAssistantBaseEntity()
+        entity.setEntityId(entityId)
+        entity.setState(state)
+        entity.setAttributes(attributes)
+        return entity
+    }
+}
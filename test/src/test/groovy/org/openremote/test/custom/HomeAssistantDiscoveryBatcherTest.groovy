@@ -0,0 +1,133 @@
+/*
+ * Copyright 2019, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.test.custom
+
+import org.openremote.agent.custom.HomeAssistantAgent
+import org.openremote.agent.custom.HomeAssistantDiscoveryBatcher
+import org.openremote.agent.custom.HomeAssistantEntityProcessor
+import org.openremote.agent.custom.HomeAssistantProtocol
+import org.openremote.agent.custom.assets.HomeAssistantLightAsset
+import org.openremote.agent.custom.assets.HomeAssistantSwitchAsset
+import org.openremote.model.asset.AssetTreeNode
+import spock.lang.Specification
+
+class HomeAssistantDiscoveryBatcherTest extends Specification {
+
+    HomeAssistantAgent agent
+    HomeAssistantEntityProcessor entityProcessor
+    List<AssetTreeNode[]> batches = []
+
+    def setup() {
+        agent = new HomeAssistantAgent("Test")
+        agent.setId("testAgentId00000000001")
+        agent.setRealm("master")
+        entityProcessor = new HomeAssistantEntityProcessor(new HomeAssistantProtocol(agent), null)
+    }
+
+    def "Assets are submitted in batches with their group in the batch of its first entity"() {
+        given: "a batcher with a batch size of 3"
+        def batcher = new HomeAssistantDiscoveryBatcher(agent, entityProcessor, batches.&add, 3)
+
+        when: "six lights are added and the batcher is flushed"
+        (1..6).each { batcher.add(new HomeAssistantLightAsset("Light $it", "light.light_$it")) }
+        batcher.flush()
+
+        then: "the first batch should hold the group with its first two lights"
+        batches.size() == 3
+        batches[0].length == 1
+        def groupNode = batches[0][0]
+        groupNode.asset.parentId == agent.id
+        groupNode.asset.realm == agent.realm
+        groupNode.children*.asset*.name == ["Light 1", "Light 2"]
+        groupNode.children*.asset*.parentId.every { it == groupNode.asset.id }
+
+        and: "the later batches should hold the remaining lights as top level nodes of the group"
+        batches[1]*.asset*.name == ["Light 3", "Light 4", "Light 5"]
+        batches[2]*.asset*.name == ["Light 6"]
+        (batches[1] + batches[2]).every { it.asset.parentId == groupNode.asset.id && it.asset.realm == agent.realm }
+
+        and: "every asset should be counted"
+        batcher.submittedAssetCount == 7
+    }
+
+    def "Entities of different types are added to their own groups"() {
+        given: "a batcher with a batch size larger than the discovery"
+        def batcher = new HomeAssistantDiscoveryBatcher(agent, entityProcessor, batches.&add, 10)
+
+        when: "lights and switches are added and the batcher is flushed"
+        batcher.add(new HomeAssistantLightAsset("Light 1", "light.light_1"))
+        batcher.add(new HomeAssistantSwitchAsset("Switch 1", "switch.switch_1"))
+        batcher.add(new HomeAssistantLightAsset("Light 2", "light.light_2"))
+        batcher.flush()
+
+        then: "a single batch should hold a group per entity type"
+        batches.size() == 1
+        batches[0].length == 2
+        batches[0].find { it.asset.name == "light" }.children*.asset*.name == ["Light 1", "Light 2"]
+        batches[0].find { it.asset.name == "switch" }.children*.asset*.name == ["Switch 1"]
+        batcher.submittedAssetCount == 5
+    }
+
+    def "Existing groups are reused"() {
+        given: "a batcher with an existing light group"
+        def batcher = new HomeAssistantDiscoveryBatcher(agent, entityProcessor, batches.&add, 10)
+        batcher.addExistingGroup("light", "existingGroupId0000001")
+
+        when: "lights are added and the batcher is flushed"
+        batcher.add(new HomeAssistantLightAsset("Light 1", "light.light_1"))
+        batcher.add(new HomeAssistantLightAsset("Light 2", "light.light_2"))
+        batcher.flush()
+
+        then: "the lights should be top level nodes of the existing group and no group should be created"
+        batches.size() == 1
+        batches[0]*.asset*.name == ["Light 1", "Light 2"]
+        batches[0].every { it.asset.parentId == "existingGroupId0000001" }
+        batcher.submittedAssetCount == 2
+    }
+
+    def "Flushing an empty batch submits nothing"() {
+        given: "a batcher"
+        def batcher = new HomeAssistantDiscoveryBatcher(agent, entityProcessor, batches.&add, 3)
+
+        when: "the batcher is flushed without assets and again after a full batch"
+        batcher.flush()
+        (1..2).each { batcher.add(new HomeAssistantLightAsset("Light $it", "light.light_$it")) }
+        batcher.flush()
+
+        then: "only the full batch should be submitted"
+        batches.size() == 1
+        batcher.submittedAssetCount == 3
+    }
+
+    def "A batch size below one submits every entity in its own batch"() {
+        given: "a batcher with a batch size of zero"
+        def batcher = new HomeAssistantDiscoveryBatcher(agent, entityProcessor, batches.&add, 0)
+
+        when: "two lights are added"
+        batcher.add(new HomeAssistantLightAsset("Light 1", "light.light_1"))
+        batcher.add(new HomeAssistantLightAsset("Light 2", "light.light_2"))
+
+        then: "the first light should be submitted with its group and the second light on its own"
+        batches.size() == 2
+        batches[0][0].asset.name == "light"
+        batches[0][0].children*.asset*.name == ["Light 1"]
+        batches[1]*.asset*.name == ["Light 2"]
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2024, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.test.custom
+
+import org.openremote.agent.custom.HomeAssistantAgent
+import org.openremote.agent.custom.HomeAssistantAgentLink
+import org.openremote.agent.custom.HomeAssistantEntityProcessor
+import org.openremote.agent.custom.HomeAssistantLinkedAttribute
+import org.openremote.agent.custom.HomeAssistantProtocol
+import org.openremote.agent.custom.entities.HomeAssistantBaseEntity
+import org.openremote.agent.custom.entities.HomeAssistantEntityStateEvent
+import org.openremote.agent.custom.entities.HomeAssistantEntityStateEventData
+import org.openremote.model.attribute.Attribute
+import org.openremote.model.attribute.AttributeEvent
+import org.openremote.model.attribute.AttributeRef
+import org.openremote.model.value.ValueType
+import spock.lang.Specification
+
+class HomeAssistantEntityProcessorTest extends Specification {
+
+    static final String ENTITY_ID = "light.kitchen"
+
+    List<AttributeEvent> published = []
+    HomeAssistantProtocol protocol
+    HomeAssistantEntityProcessor entityProcessor
+
+    def setup() {
+        def agent = new HomeAssistantAgent("Test")
+        agent.setId("testAgentId00000000001")
+        agent.getAttributes().getOrCreate(HomeAssistantAgent.IMPORTED_ENTITY_TYPES).setValue("light")
+        protocol = new HomeAssistantProtocol(agent) {
+            @Override
+            void handleExternalAttributeChange(AttributeEvent event) {
+                published.add(event)
+            }
+        }
+        entityProcessor = new HomeAssistantEntityProcessor(protocol, null)
+        def agentLink = new HomeAssistantAgentLink(agent.id, "light", ENTITY_ID)
+        protocol.routingTable.link(ENTITY_ID, new HomeAssistantLinkedAttribute(new AttributeRef("testAsset", "state"),
+            new Attribute<>("state", ValueType.BOOLEAN, false), agentLink))
+    }
+
+    def "An unchanged state is suppressed"() {
+        when: "Home Assistant reports the stored state"
+        entityProcessor.handleEntityStateEvent(stateEvent("off"))
+
+        then: "nothing should be published"
+        published.isEmpty()
+    }
+
+    def "A written value is corrected when Home Assistant keeps reporting the old state"() {
+        when: "the state is written"
+        protocol.onLinkedAttributeWritten(ENTITY_ID, new AttributeRef("testAsset", "state"), true)
+
+        and: "Home Assistant reports the old state (e.g. the command failed)"
+        entityProcessor.handleEntityStateEvent(stateEvent("off"))
+
+        then: "the old state should be published to correct the attribute"
+        published.size() == 1
+        published[0].value.orElse(null) == false
+
+        when: "Home Assistant reports the old state again"
+        entityProcessor.handleEntityStateEvent(stateEvent("off"))
+
+        then: "it should be suppressed"
+        published.size() == 1
+    }
+
+    def "A written value that Home Assistant confirms is not published again"() {
+        when: "the state is written and Home Assistant reports the new state"
+        protocol.onLinkedAttributeWritten(ENTITY_ID, new AttributeRef("testAsset", "state"), true)
+        entityProcessor.handleEntityStateEvent(stateEvent("on"))
+
+        then: "nothing should be published"
+        published.isEmpty()
+    }
+
+    def "Every asset that links the entity receives its state"() {
+        given: "a second asset linking the same entity attribute"
+        def agentLink = new HomeAssistantAgentLink(protocol.agent.id, "light", ENTITY_ID)
+        protocol.routingTable.link(ENTITY_ID, new HomeAssistantLinkedAttribute(new AttributeRef("otherAsset", "state"),
+            new Attribute<>("state", ValueType.BOOLEAN, false), agentLink))
+
+        when: "Home Assistant reports a new state"
+        entityProcessor.handleEntityStateEvent(stateEvent("on"))
+
+        then: "both assets should be updated"
+        published.collect { it.id } as Set == ["testAsset", "otherAsset"] as Set
+
+        when: "the first asset is unlinked and Home Assistant reports another state"
+        published.clear()
+        protocol.routingTable.unlink(ENTITY_ID, new AttributeRef("testAsset", "state"))
+        entityProcessor.handleEntityStateEvent(stateEvent("off"))
+
+        then: "the second asset should still be updated"
+        published.collect { it.id } == ["otherAsset"]
+    }
+
+    static HomeAssistantEntityStateEvent stateEvent(String state) {
+        def entity = new HomeAssistantBaseEntity()
+        entity.setEntityId(ENTITY_ID)
+        entity.setState(state)
+        entity.setAttributes([:])
+        def data = new HomeAssistantEntityStateEventData()
+        data.setEntityId(ENTITY_ID)
+        data.setNewBaseEntity(entity)
+        def event = new HomeAssistantEntityStateEvent()
+        event.setEventType("state_changed")
+        event.setData(data)
+        return event
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2019, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.test.custom
+
+import org.openremote.agent.custom.HomeAssistantFrameClassifier
+import spock.lang.Specification
+
+class HomeAssistantFrameClassifierTest extends Specification {
+
+    def classifier = new HomeAssistantFrameClassifier()
+
+    def "Frames are classified whatever the order of their fields"() {
+        when: "the frame is classified"
+        def frame = classifier.classify(message)
+
+        then: "the id, type and entity id should be read"
+        frame.id == id
+        frame.type == type
+        frame.entityId == entityId
+
+        where:
+        message                                                                                                | id | type     | entityId
+        '{"id":5,"type":"result","success":true,"result":null}'                                                | 5  | "result" | null
+        '{"type":"result","success":true,"result":{"context":{"id":"abc"}},"id":7}'                            | 7  | "result" | null
+        '{"type":"pong","id":9}'                                                                               | 9  | "pong"   | null
+        '{"id":3,"type":"event","event":{"event_type":"state_changed","data":{"entity_id":"light.a"}}}'        | 3  | "event"  | "light.a"
+        '{"type":"event","event":{"event_type":"state_changed","data":{"entity_id":"light.b"}},"id":4}'        | 4  | "event"  | "light.b"
+        '{"type":"auth_ok","ha_version":"2024.1"}'                                                             | null | "auth_ok" | null
+    }
+}
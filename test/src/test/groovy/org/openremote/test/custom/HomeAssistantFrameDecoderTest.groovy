@@ -0,0 +1,113 @@
+/*
+ * Copyright 2019, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.test.custom
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import io.netty.buffer.ByteBuf
+import io.netty.buffer.Unpooled
+import io.netty.channel.embedded.EmbeddedChannel
+import io.netty.handler.codec.http.EmptyHttpHeaders
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame
+import io.netty.handler.codec.http.websocketx.WebSocketClientHandshakerFactory
+import io.netty.handler.codec.http.websocketx.WebSocketClientProtocolHandler
+import io.netty.handler.codec.http.websocketx.WebSocketVersion
+import org.openremote.agent.custom.HomeAssistantFrameClassifier
+import org.openremote.agent.custom.HomeAssistantFrameDecoder
+import spock.lang.Specification
+
+import java.nio.charset.StandardCharsets
+
+class HomeAssistantFrameDecoderTest extends Specification {
+
+    static final String STATE_CHANGED_FRAME = '{"id":3,"type":"event","event":{"event_type":"state_changed","data":{"entity_id":"light.kitchen","new_state":{"state":"on"}}}}'
+
+    def reader = new ObjectMapper().readerFor(Map)
+    List<HomeAssistantFrameClassifier.Frame> frames = []
+    List<Map> bodies = []
+    List<HomeAssistantFrameDecoder.FrameBody> detached = []
+    def decoder = new HomeAssistantFrameDecoder(new HomeAssistantFrameClassifier(), { frame, body ->
+        frames.add(frame)
+        bodies.add(body.read(reader))
+        detached.add(body.detach())
+    })
+
+    def "Text frames are classified and bound from the bytes of their buffer"() {
+        given: "a channel with the decoder"
+        def channel = new EmbeddedChannel(decoder)
+
+        when: "a text frame is received"
+        ByteBuf content = direct
+            ? Unpooled.directBuffer().writeBytes(STATE_CHANGED_FRAME.getBytes(StandardCharsets.UTF_8))
+            : Unpooled.copiedBuffer(STATE_CHANGED_FRAME, StandardCharsets.UTF_8)
+        channel.writeInbound(new TextWebSocketFrame(content))
+
+        then: "it should be classified and bound without being passed on"
+        frames.size() == 1
+        frames[0].id == 3
+        frames[0].type == "event"
+        frames[0].entityId == "light.kitchen"
+        bodies[0].event.data.new_state.state == "on"
+        channel.readInbound() == null
+
+        and: "the buffer should have been released while the detached body remains readable"
+        content.refCnt() == 0
+        detached[0].read(reader).id == 3
+
+        cleanup:
+        channel.finishAndReleaseAll()
+
+        where:
+        direct << [false, true]
+    }
+
+    def "Fragments are left to the websocket client"() {
+        given: "a channel with the decoder"
+        def channel = new EmbeddedChannel(decoder)
+
+        when: "the first fragment of a message is received"
+        channel.writeInbound(new TextWebSocketFrame(false, 0, '{"id":3,'))
+
+        then: "it should be passed on untouched"
+        frames.isEmpty()
+        (channel.readInbound() as TextWebSocketFrame).release()
+
+        cleanup:
+        channel.finishAndReleaseAll()
+    }
+
+    def "The decoder moves itself to right after the websocket protocol handler"() {
+        given: "a websocket client pipeline"
+        def handshaker = WebSocketClientHandshakerFactory.newHandshaker(URI.create("ws://localhost/api/websocket"),
+            WebSocketVersion.V13, null, false, EmptyHttpHeaders.INSTANCE)
+        def channel = new EmbeddedChannel(new WebSocketClientProtocolHandler(handshaker))
+
+        when: "the decoder is added at the end of the pipeline"
+        channel.pipeline().addLast(decoder)
+
+        then: "it should be positioned directly after the protocol handler"
+        def names = channel.pipeline().names()
+        def protocolHandlerName = channel.pipeline().context(WebSocketClientProtocolHandler).name()
+        names.indexOf(HomeAssistantFrameDecoder.NAME) == names.indexOf(protocolHandlerName) + 1
+        channel.pipeline().get(HomeAssistantFrameDecoder.NAME) != decoder
+
+        cleanup:
+        channel.finishAndReleaseAll()
+    }
+}
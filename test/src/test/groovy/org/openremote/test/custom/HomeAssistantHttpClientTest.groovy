@@ -0,0 +1,143 @@
+/*
+ * Copyright 2019, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.test.custom
+
+import com.fasterxml.jackson.core.JsonParseException
+import com.fasterxml.jackson.core.io.JsonEOFException
+import org.openremote.agent.custom.HomeAssistantHttpClient
+import org.openremote.agent.custom.entities.HomeAssistantBaseEntity
+import spock.lang.Specification
+
+import java.nio.charset.StandardCharsets
+
+class HomeAssistantHttpClientTest extends Specification {
+
+    def "Entities are streamed to the consumer in the order of the response"() {
+        given: "a states response"
+        def states = '''[
+            {"entity_id":"light.kitchen","state":"on","attributes":{"brightness":128,"rgb_color":[255,0,0]},"context":{"id":"a"}},
+            {"state":"off","entity_id":"switch.pump","attributes":{}},
+            {"entity_id":"sensor.temperature","state":"21.5","attributes":{"unit_of_measurement":"°C","nested":{"a":[1,{"b":2}]}}}
+        ]'''
+        List<HomeAssistantBaseEntity> entities = []
+
+        when: "the response is read"
+        def complete = HomeAssistantHttpClient.readEntities(input(states), { true }, entities.&add)
+
+        then: "every entity should be read with its state and attributes"
+        complete
+        entities*.entityId == ["light.kitchen", "switch.pump", "sensor.temperature"]
+        entities*.state == ["on", "off", "21.5"]
+        entities[0].attributes.brightness == 128
+        entities[0].attributes.rgb_color == [255, 0, 0]
+        entities[2].attributes.nested == [a: [1, [b: 2]]]
+    }
+
+    def "Entities rejected by the filter are skipped"() {
+        given: "a states response"
+        def states = '''[
+            {"entity_id":"light.kitchen","state":"on","attributes":{"brightness":128}},
+            {"attributes":{"list":[{"entity_id":"light.hidden"}]},"entity_id":"switch.pump","state":"off"},
+            {"entity_id":"light.hall","state":"off","attributes":{}}
+        ]'''
+        List<HomeAssistantBaseEntity> entities = []
+
+        when: "the response is read with a filter that only accepts lights"
+        def complete = HomeAssistantHttpClient.readEntities(input(states), { it.startsWith("light.") }, entities.&add)
+
+        then: "only the lights should be consumed and the rest of the response should still be read"
+        complete
+        entities*.entityId == ["light.kitchen", "light.hall"]
+    }
+
+    def "Entities without an entity id are skipped"() {
+        given: "a states response with an entity without an id"
+        def states = '''[{"state":"on","attributes":{}},{"entity_id":"light.kitchen","state":"on"}]'''
+        List<HomeAssistantBaseEntity> entities = []
+
+        when: "the response is read"
+        def complete = HomeAssistantHttpClient.readEntities(input(states), { true }, entities.&add)
+
+        then: "only the entity with an id should be consumed"
+        complete
+        entities*.entityId == ["light.kitchen"]
+    }
+
+    def "An empty array is a complete response"() {
+        given: "a consumer"
+        List<HomeAssistantBaseEntity> entities = []
+
+        expect: "an empty response to be read successfully"
+        HomeAssistantHttpClient.readEntities(input("[]"), { true }, entities.&add)
+        entities.isEmpty()
+    }
+
+    def "A response that is not an array is rejected"() {
+        given: "a consumer"
+        List<HomeAssistantBaseEntity> entities = []
+
+        expect: "the response to be rejected without consuming anything"
+        !HomeAssistantHttpClient.readEntities(input(response), { true }, entities.&add)
+        entities.isEmpty()
+
+        where:
+        response << ['{"message":"Unauthorized"}', '"text"', '']
+    }
+
+    def "A response truncated between entities fails the read"() {
+        given: "a consumer"
+        List<HomeAssistantBaseEntity> entities = []
+
+        when: "a response that ends before the end of the array is read"
+        HomeAssistantHttpClient.readEntities(input(response), { true }, entities.&add)
+
+        then: "the read should fail after the entities that were read"
+        thrown(JsonEOFException)
+        entities*.entityId == ["light.kitchen"]
+
+        where:
+        response << ['[{"entity_id":"light.kitchen","state":"on"}', '[{"entity_id":"light.kitchen","state":"on"},']
+    }
+
+    def "An array that holds something other than entities is incomplete"() {
+        given: "a consumer"
+        List<HomeAssistantBaseEntity> entities = []
+
+        expect: "the read to stop at the first value that is not an entity and be reported as incomplete"
+        !HomeAssistantHttpClient.readEntities(input('[{"entity_id":"light.kitchen","state":"on"},"text",{"entity_id":"light.hall","state":"off"}]'), { true }, entities.&add)
+        entities*.entityId == ["light.kitchen"]
+    }
+
+    def "Malformed JSON fails the read"() {
+        given: "a consumer"
+        List<HomeAssistantBaseEntity> entities = []
+
+        when: "a malformed response is read"
+        HomeAssistantHttpClient.readEntities(input('[{"entity_id":"light.kitchen","state":"on"},{"entity_id":}]'), { true }, entities.&add)
+
+        then: "the read should fail after the entities before the error"
+        thrown(JsonParseException)
+        entities*.entityId == ["light.kitchen"]
+    }
+
+    static InputStream input(String json) {
+        return new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8))
+    }
+}
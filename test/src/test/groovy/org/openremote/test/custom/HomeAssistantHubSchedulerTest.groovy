@@ -0,0 +1,118 @@
+/*
+ * Copyright 2019, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.test.custom
+
+import org.openremote.agent.custom.HomeAssistantHubScheduler
+import spock.lang.Specification
+import spock.util.concurrent.PollingConditions
+
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+import static org.openremote.agent.custom.HomeAssistantIngestQueue.OverflowPolicy.DROP_OLDEST
+import static org.openremote.agent.custom.HomeAssistantIngestQueue.OverflowPolicy.MERGE_BY_ENTITY
+
+class HomeAssistantHubSchedulerTest extends Specification {
+
+    def conditions = new PollingConditions(timeout: 10, delay: 0.05)
+    List<String> processed = new CopyOnWriteArrayList<>()
+    HomeAssistantHubScheduler scheduler
+
+    def cleanup() {
+        scheduler?.workers?.shutdownNow()
+    }
+
+    def "Messages of a hub are processed in order"() {
+        given: "a scheduler with a hub"
+        scheduler = new HomeAssistantHubScheduler(2)
+        def hub = scheduler.register("hub", 1000, policy)
+
+        when: "messages of the same entity are offered"
+        (1..500).each { i -> hub.offer("light.a", { processed.add("a" + i) } as Runnable) }
+
+        then: "every message should be processed in order"
+        conditions.eventually {
+            assert hub.processedCount == 500
+        }
+        processed == (1..500).collect { "a" + it }
+        hub.droppedCount == 0
+        hub.queueDepth == 0
+
+        where:
+        policy << [DROP_OLDEST, MERGE_BY_ENTITY]
+    }
+
+    def "Hubs take turns of at most one quantum"() {
+        given: "a scheduler with a single worker and two hubs"
+        scheduler = new HomeAssistantHubScheduler(1)
+        def busyHub = scheduler.register("busy", 1000, DROP_OLDEST)
+        def quietHub = scheduler.register("quiet", 1000, DROP_OLDEST)
+        def started = new CountDownLatch(1)
+        def release = new CountDownLatch(1)
+
+        when: "the worker is held by the first message of the busy hub"
+        busyHub.offer(null, {
+            started.countDown()
+            release.await(10, TimeUnit.SECONDS)
+            processed.add("busy")
+        } as Runnable)
+        started.await(10, TimeUnit.SECONDS)
+
+        and: "more messages of the busy hub and a message of the quiet hub are queued"
+        (2..200).each { busyHub.offer(null, { processed.add("busy") } as Runnable) }
+        quietHub.offer(null, { processed.add("quiet") } as Runnable)
+        release.countDown()
+
+        then: "the quiet hub should be processed after one quantum of the busy hub"
+        conditions.eventually {
+            assert processed.size() == 201
+        }
+        processed.indexOf("quiet") == HomeAssistantHubScheduler.QUANTUM
+    }
+
+    def "A failing message does not stop the processing of a hub"() {
+        given: "a scheduler with a hub"
+        scheduler = new HomeAssistantHubScheduler(1)
+        def hub = scheduler.register("hub", 10, DROP_OLDEST)
+
+        when: "a failing message is queued between two messages"
+        hub.offer(null, { processed.add("first") } as Runnable)
+        hub.offer(null, { throw new IllegalStateException("failure") } as Runnable)
+        hub.offer(null, { processed.add("last") } as Runnable)
+
+        then: "the other messages should be processed"
+        conditions.eventually {
+            assert hub.processedCount == 3
+        }
+        processed == ["first", "last"]
+    }
+
+    def "A closed hub rejects messages"() {
+        given: "a closed hub"
+        scheduler = new HomeAssistantHubScheduler(1)
+        def hub = scheduler.register("hub", 10, MERGE_BY_ENTITY)
+        hub.close()
+
+        expect: "messages to be rejected"
+        !hub.offer("light.a", { processed.add("a") } as Runnable)
+        scheduler.readyHubCount == 0
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2019, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.test.custom
+
+import org.openremote.agent.custom.HomeAssistantIngestQueue
+import spock.lang.Specification
+
+import static org.openremote.agent.custom.HomeAssistantIngestQueue.OverflowPolicy.DROP_OLDEST
+import static org.openremote.agent.custom.HomeAssistantIngestQueue.OverflowPolicy.MERGE_BY_ENTITY
+
+class HomeAssistantIngestQueueTest extends Specification {
+
+    List<String> processed = []
+
+    def "Every message is queued in order below capacity"() {
+        given: "a queue with room for every message"
+        def queue = new HomeAssistantIngestQueue(10, policy)
+
+        when: "several messages of the same entities are offered"
+        def offered = [["light.a", "a1"], ["light.b", "b1"], ["light.a", "a2"], [null, "n1"], ["light.a", "a3"]]
+            .collect { queue.offer(it[0], task(it[1])) }
+
+        then: "all of them should be processed in order without merging or dropping"
+        offered.every()
+        queue.depth == 5
+        drain(queue) == ["a1", "b1", "a2", "n1", "a3"]
+        queue.mergedCount == 0
+        queue.droppedCount == 0
+
+        where:
+        policy << [DROP_OLDEST, MERGE_BY_ENTITY]
+    }
+
+    def "The oldest message is dropped when the queue is full"() {
+        given: "a full queue that drops the oldest message"
+        def queue = new HomeAssistantIngestQueue(3, DROP_OLDEST)
+        ["m1", "m2", "m3"].each { queue.offer("light.a", task(it)) }
+
+        when: "two more messages are offered"
+        def offered = [queue.offer("light.a", task("m4")), queue.offer(null, task("m5"))]
+
+        then: "they should be queued in place of the two oldest messages"
+        offered.every()
+        queue.droppedCount == 2
+        queue.depth == 3
+        drain(queue) == ["m3", "m4", "m5"]
+    }
+
+    def "A message replaces the latest queued message of its entity when the queue is full"() {
+        given: "a full queue that merges by entity"
+        def queue = new HomeAssistantIngestQueue(3, MERGE_BY_ENTITY)
+        queue.offer("light.a", task("a1"))
+        queue.offer("light.b", task("b1"))
+        queue.offer("light.a", task("a2"))
+
+        when: "a message of an entity with queued messages is offered"
+        def offered = queue.offer("light.a", task("a3"))
+
+        then: "it should replace the latest message of the entity in its place"
+        offered
+        queue.mergedCount == 1
+        queue.droppedCount == 0
+        drain(queue) == ["a1", "b1", "a3"]
+    }
+
+    def "A message that cannot be merged is dropped when the queue is full"() {
+        given: "a full queue that merges by entity"
+        def queue = new HomeAssistantIngestQueue(2, MERGE_BY_ENTITY)
+        queue.offer("light.a", task("a1"))
+        queue.offer("light.b", task("b1"))
+
+        when: "a message of another entity and a message without entity are offered"
+        def offered = [queue.offer("light.c", task("c1")), queue.offer(null, task("n1"))]
+
+        then: "both should be dropped"
+        offered == [false, false]
+        queue.droppedCount == 2
+        drain(queue) == ["a1", "b1"]
+    }
+
+    def "A processed message is not merged into"() {
+        given: "a full queue that merges by entity"
+        def queue = new HomeAssistantIngestQueue(2, MERGE_BY_ENTITY)
+        queue.offer("light.a", task("a1"))
+        queue.offer("light.b", task("b1"))
+
+        when: "the message of the first entity is taken and the queue is filled again"
+        queue.poll().run()
+        queue.offer("light.b", task("b2"))
+
+        and: "a message of the first entity is offered"
+        def offered = queue.offer("light.a", task("a2"))
+
+        then: "it should be dropped as the entity has no queued message"
+        !offered
+        queue.droppedCount == 1
+        drain(queue) == ["a1", "b1", "b2"]
+    }
+
+    def "A closed queue rejects messages"() {
+        given: "a queue with a message"
+        def queue = new HomeAssistantIngestQueue(2, MERGE_BY_ENTITY)
+        queue.offer("light.a", task("a1"))
+
+        when: "the queue is closed and another message is offered"
+        queue.close()
+        def offered = queue.offer("light.b", task("b1"))
+
+        then: "the queue should be empty and the message rejected"
+        !offered
+        queue.isEmpty()
+        queue.poll() == null
+    }
+
+    protected Runnable task(String name) {
+        return { processed.add(name) } as Runnable
+    }
+
+    // Runs the queued messages, returns the names of all messages processed so far
+    protected List<String> drain(HomeAssistantIngestQueue queue) {
+        Runnable task
+        while ((task = queue.poll()) != null) {
+            task.run()
+        }
+        return processed
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2024, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.test.custom
+
+import org.openremote.agent.custom.HomeAssistantAgent
+import org.openremote.agent.custom.HomeAssistantProtocol
+import org.openremote.manager.agent.AgentService
+import org.openremote.manager.asset.AssetProcessingService
+import org.openremote.manager.asset.AssetStorageService
+import org.openremote.model.attribute.AttributeEvent
+import org.openremote.test.ManagerContainerTrait
+import spock.lang.Requires
+import spock.lang.Specification
+import spock.util.concurrent.PollingConditions
+
+/**
+ * Runs the {@link HomeAssistantProtocol} against a {@link HomeAssistantSimulator} at a high event rate; as the budgets
+ * depend on the machine the specification only runs when the homeassistant.loadTest system property or the
+ * HOMEASSISTANT_LOAD_TEST environment variable is set. Functional behaviour against the simulator (e.g. reconnects) is
+ * covered by {@link HomeAssistantReconnectTest}, which always runs.
+ */
+@Requires({ sys["homeassistant.loadTest"] || env["HOMEASSISTANT_LOAD_TEST"] })
+class HomeAssistantLoadTest extends Specification implements ManagerContainerTrait {
+
+    static final int ENTITY_COUNT = 1000
+    static final int EVENTS_PER_SECOND = 2000
+    static final long EMIT_MILLIS = 5000
+    // Budgets
+    static final long DRAIN_BUDGET_MILLIS = 2000
+    static final double PARSE_P99_BUDGET_MILLIS = 5
+    static final double COMMAND_P99_BUDGET_MILLIS = 500
+
+    HomeAssistantSimulator simulator
+
+    def cleanup() {
+        simulator?.close()
+    }
+
+    def "Home Assistant protocol keeps up with a simulated hub"() {
+
+        given: "a simulated Home Assistant hub"
+        def conditions = new PollingConditions(timeout: 30, delay: 0.5)
+        simulator = new HomeAssistantSimulator(ENTITY_COUNT)
+        simulator.start()
+
+        when: "the container starts"
+        def container = startContainer(defaultConfig(findEphemeralPort()), defaultServices())
+        def assetStorageService = container.getService(AssetStorageService.class)
+        def assetProcessingService = container.getService(AssetProcessingService.class)
+        def agentService = container.getService(AgentService.class)
+
+        and: "an agent for the simulated hub is added"
+        def agent = assetStorageService.merge(simulator.createAgent(HomeAssistantAgent.SubscriptionMode.STATE_CHANGED_EVENTS))
+
+        then: "the entities should be imported and linked"
+        HomeAssistantProtocol protocol = null
+        conditions.eventually {
+            protocol = agentService.protocolInstanceMap.get(agent.id) as HomeAssistantProtocol
+            assert protocol != null
+            assert protocol.routingTable.entityIds.size() == ENTITY_COUNT
+            assert protocol.metrics.lastDiscoveryDurationMillis > 0
+        }
+
+        when: "the hub emits state changes at a high rate"
+        def metrics = protocol.metrics
+        long receivedBefore = metrics.eventsReceived
+        long emittedBefore = simulator.eventsEmitted
+        simulator.startEmitting(EVENTS_PER_SECOND)
+        Thread.sleep(EMIT_MILLIS)
+        simulator.stopEmitting()
+        long stoppedNanos = System.nanoTime()
+        long emitted = simulator.eventsEmitted - emittedBefore
+
+        then: "every event should be received and processed within the budgets"
+        emitted >= EVENTS_PER_SECOND * (EMIT_MILLIS / 1000d) * 0.9
+        new PollingConditions(timeout: DRAIN_BUDGET_MILLIS / 1000d, delay: 0.05).eventually {
+            assert metrics.eventsReceived - receivedBefore == emitted
+            assert metrics.inboundQueueDepth == 0
+        }
+        (System.nanoTime() - stoppedNanos) / 1_000_000 <= DRAIN_BUDGET_MILLIS
+        metrics.eventsDropped == 0
+        metrics.parseTimeP99Millis <= PARSE_P99_BUDGET_MILLIS
+
+        and: "the stored state should match the state of the hub"
+        def lightId = HomeAssistantSimulator.entityId(0)
+        def linkedState = protocol.routingTable.get(lightId).get("state")[0]
+        conditions.eventually {
+            def asset = assetStorageService.find(linkedState.assetId)
+            assert asset.getAttribute("state").flatMap { it.value }.orElse(null) == (simulator.getEntity(lightId).state == "on")
+        }
+
+        when: "the state of the light is written"
+        boolean newState = simulator.getEntity(lightId).state != "on"
+        assetProcessingService.sendAttributeEvent(new AttributeEvent(linkedState.assetId, "state", newState))
+
+        then: "the light should be toggled on the hub within the budget"
+        conditions.eventually {
+            assert simulator.serviceCalls.any { it.entityIds.contains(lightId) && it.service == "toggle" }
+            assert simulator.getEntity(lightId).state == (newState ? "on" : "off")
+            assert metrics.commandsSent >= 1
+        }
+        metrics.commandLatencyP99Millis <= COMMAND_P99_BUDGET_MILLIS
+        simulator.idReuses == 0
+    }
+}
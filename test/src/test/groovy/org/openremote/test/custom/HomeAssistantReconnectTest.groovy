@@ -0,0 +1,106 @@
+/*
+ * Copyright 2024, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.test.custom
+
+import org.openremote.agent.custom.HomeAssistantAgent
+import org.openremote.agent.custom.HomeAssistantProtocol
+import org.openremote.manager.agent.AgentService
+import org.openremote.manager.asset.AssetStorageService
+import org.openremote.test.ManagerContainerTrait
+import spock.lang.Specification
+import spock.util.concurrent.PollingConditions
+
+/**
+ * Runs the {@link HomeAssistantProtocol} against a small {@link HomeAssistantSimulator} and drops its websocket
+ * connection, in every subscription mode, to check that changes made while offline are resynchronised.
+ */
+class HomeAssistantReconnectTest extends Specification implements ManagerContainerTrait {
+
+    HomeAssistantSimulator simulator
+
+    def cleanup() {
+        simulator?.close()
+    }
+
+    def "Home Assistant protocol resynchronises after the websocket reconnects"() {
+
+        given: "a simulated Home Assistant hub"
+        def conditions = new PollingConditions(timeout: 30, delay: 0.5)
+        simulator = new HomeAssistantSimulator(100)
+        simulator.start()
+
+        when: "the container starts"
+        def container = startContainer(defaultConfig(findEphemeralPort()), defaultServices())
+        def assetStorageService = container.getService(AssetStorageService.class)
+        def agentService = container.getService(AgentService.class)
+
+        and: "an agent for the simulated hub is added"
+        def agent = assetStorageService.merge(simulator.createAgent(subscriptionMode))
+
+        then: "the entities should be imported and linked"
+        HomeAssistantProtocol protocol = null
+        conditions.eventually {
+            protocol = agentService.protocolInstanceMap.get(agent.id) as HomeAssistantProtocol
+            assert protocol != null
+            assert protocol.routingTable.entityIds.size() == 100
+            assert protocol.webSocketClient.isAuthenticated()
+        }
+        def lightId = HomeAssistantSimulator.entityId(0)
+        def switchId = HomeAssistantSimulator.entityId(1)
+        def lightState = protocol.routingTable.get(lightId).get("state")[0]
+        def switchState = protocol.routingTable.get(switchId).get("state")[0]
+
+        when: "the websocket connection is lost and the light is changed while the protocol is offline"
+        long connectionsBefore = simulator.webSocketConnections
+        long restRequestsBefore = simulator.restRequests
+        simulator.disconnectWebSockets(false)
+        conditions.eventually {
+            assert !protocol.webSocketClient.isAuthenticated()
+        }
+        simulator.change(lightId)
+
+        and: "the hub accepts connections again"
+        simulator.acceptWebSockets()
+
+        then: "the protocol should reconnect and resynchronise the missed change over REST"
+        conditions.eventually {
+            assert simulator.webSocketConnections > connectionsBefore
+            assert protocol.webSocketClient.isAuthenticated()
+            assert simulator.restRequests > restRequestsBefore
+            assert stateOf(assetStorageService, lightState.assetId) == (simulator.getEntity(lightId).state == "on")
+        }
+
+        when: "the switch is changed after the reconnect"
+        simulator.change(switchId)
+
+        then: "the change should be received over the new subscription"
+        conditions.eventually {
+            assert stateOf(assetStorageService, switchState.assetId) == (simulator.getEntity(switchId).state == "on")
+        }
+        simulator.idReuses == 0
+
+        where:
+        subscriptionMode << HomeAssistantAgent.SubscriptionMode.values()
+    }
+
+    protected static Object stateOf(AssetStorageService assetStorageService, String assetId) {
+        return assetStorageService.find(assetId).getAttribute("state").flatMap { it.value }.orElse(null)
+    }
+}
@@ -0,0 +1,463 @@
+/*
+ * Copyright 2024, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.test.custom
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import io.netty.bootstrap.ServerBootstrap
+import io.netty.buffer.Unpooled
+import io.netty.channel.*
+import io.netty.channel.group.ChannelGroup
+import io.netty.channel.group.DefaultChannelGroup
+import io.netty.channel.nio.NioEventLoopGroup
+import io.netty.channel.socket.SocketChannel
+import io.netty.channel.socket.nio.NioServerSocketChannel
+import io.netty.handler.codec.http.*
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame
+import io.netty.handler.codec.http.websocketx.WebSocketServerProtocolHandler
+import io.netty.util.AttributeKey
+import io.netty.util.concurrent.GlobalEventExecutor
+import org.openremote.agent.custom.HomeAssistantAgent
+import org.openremote.model.Constants
+
+import java.nio.charset.StandardCharsets
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * In-process Home Assistant for load and soak tests of the {@link org.openremote.agent.custom.HomeAssistantProtocol};
+ * serves the REST API (/api, /api/states and /api/services/...) and the websocket API (auth, subscribe_events,
+ * subscribe_entities, unsubscribe_events and call_service) for a generated set of entities spread over the light, switch,
+ * sensor and binary_sensor domains. State changes are generated at a configurable rate with {@link #startEmitting}.
+ */
+class HomeAssistantSimulator implements Closeable {
+
+    static final String DEFAULT_TOKEN = "simulator-token"
+    static final List<String> DOMAINS = ["light", "switch", "sensor", "binary_sensor"]
+    static final long TICK_MILLIS = 10
+
+    protected static final AttributeKey<Boolean> AUTHENTICATED = AttributeKey.valueOf("authenticated")
+    // Id of the last message received, Home Assistant rejects messages whose id does not increase
+    protected static final AttributeKey<Integer> LAST_MESSAGE_ID = AttributeKey.valueOf("lastMessageId")
+    protected static final AttributeKey<Set<Integer>> SUBSCRIPTIONS = AttributeKey.valueOf("subscriptions")
+    // Key: Subscription id, Value: Entity ids of the subscribe_entities subscription
+    protected static final AttributeKey<Map<Integer, Set<String>>> ENTITY_SUBSCRIPTIONS = AttributeKey.valueOf("entitySubscriptions")
+
+    /**
+     * A call_service request or REST service call received by the simulator.
+     */
+    static class ServiceCall {
+        final String domain
+        final String service
+        final List<String> entityIds
+        final Map<String, Object> serviceData
+        final boolean websocket
+
+        ServiceCall(String domain, String service, List<String> entityIds, Map<String, Object> serviceData, boolean websocket) {
+            this.domain = domain
+            this.service = service
+            this.entityIds = entityIds
+            this.serviceData = serviceData
+            this.websocket = websocket
+        }
+    }
+
+    final String token
+    final int entityCount
+    protected final ObjectMapper mapper = new ObjectMapper()
+    // Key: Entity id, Value: Entity (entity_id, state, attributes)
+    protected final Map<String, Map<String, Object>> entities = new ConcurrentHashMap<>()
+    // Key: Entity id, Value: System.nanoTime() of the last emitted state change
+    protected final Map<String, Long> lastChangeNanos = new ConcurrentHashMap<>()
+    protected final List<ServiceCall> serviceCalls = new CopyOnWriteArrayList<>()
+    protected final AtomicLong eventsEmitted = new AtomicLong()
+    protected final AtomicLong restRequests = new AtomicLong()
+    protected final AtomicLong webSocketConnections = new AtomicLong()
+    protected final AtomicLong idReuses = new AtomicLong()
+    protected final ChannelGroup webSocketChannels = new DefaultChannelGroup(GlobalEventExecutor.INSTANCE)
+    protected final ScheduledExecutorService emitter = Executors.newSingleThreadScheduledExecutor()
+    protected NioEventLoopGroup bossGroup
+    protected NioEventLoopGroup workerGroup
+    protected Channel serverChannel
+    protected ScheduledFuture<?> emission
+    protected int nextEntity
+    protected volatile boolean accepting = true
+    protected volatile boolean acceptingWebSockets = true
+
+    HomeAssistantSimulator(int entityCount, String token = DEFAULT_TOKEN) {
+        this.entityCount = entityCount
+        this.token = token
+        Random random = new Random(entityCount)
+        for (int i = 0; i < entityCount; i++) {
+            def entity = createEntity(i, random)
+            entities.put(entity.entity_id as String, entity)
+        }
+    }
+
+    static String entityId(int index) {
+        return DOMAINS[index % DOMAINS.size()] + ".simulated_" + index
+    }
+
+    // Starts the server on an ephemeral port, returns the port
+    int start() {
+        bossGroup = new NioEventLoopGroup(1)
+        workerGroup = new NioEventLoopGroup()
+        serverChannel = new ServerBootstrap()
+            .group(bossGroup, workerGroup)
+            .channel(NioServerSocketChannel)
+            .childHandler(new ChannelInitializer<SocketChannel>() {
+                @Override
+                protected void initChannel(SocketChannel channel) {
+                    channel.pipeline().addLast(
+                        new HttpServerCodec(),
+                        new HttpObjectAggregator(1024 * 1024),
+                        new WebSocketServerProtocolHandler("/api/websocket", null, true, 16 * 1024 * 1024),
+                        new SimulatorHandler())
+                }
+            })
+            .bind("127.0.0.1", 0).sync().channel()
+        return port
+    }
+
+    int getPort() {
+        return (serverChannel.localAddress() as InetSocketAddress).port
+    }
+
+    String getUrl() {
+        return "http://127.0.0.1:" + port
+    }
+
+    // Creates an agent (in the master realm) that imports every domain of this hub
+    HomeAssistantAgent createAgent(HomeAssistantAgent.SubscriptionMode subscriptionMode) {
+        def agent = new HomeAssistantAgent("Simulated Home Assistant")
+        agent.setRealm(Constants.MASTER_REALM)
+        agent.getAttributes().getOrCreate(HomeAssistantAgent.HOME_ASSISTANT_URL).setValue(url)
+        agent.getAttributes().getOrCreate(HomeAssistantAgent.ACCESS_TOKEN).setValue(token)
+        agent.getAttributes().getOrCreate(HomeAssistantAgent.IMPORTED_ENTITY_TYPES).setValue(DOMAINS.join(","))
+        agent.getAttributes().getOrCreate(HomeAssistantAgent.SUBSCRIPTION_MODE).setValue(subscriptionMode)
+        return agent
+    }
+
+    /**
+     * Emits state_changed events to all subscribed websocket connections at the given rate; the entities are changed in
+     * round-robin order (lights, switches and binary sensors are toggled, sensor values change).
+     */
+    synchronized void startEmitting(int eventsPerSecond) {
+        stopEmitting()
+        double perTick = eventsPerSecond * TICK_MILLIS / 1000d
+        double carry = 0
+        List<String> entityIds = new ArrayList<>(entities.keySet()).sort()
+        emission = emitter.scheduleAtFixedRate({
+            carry += perTick
+            int count = (int) carry
+            carry -= count
+            for (int i = 0; i < count; i++) {
+                String entityId = entityIds[nextEntity++ % entityIds.size()]
+                changeEntity(entityId)
+            }
+        }, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS)
+    }
+
+    synchronized void stopEmitting() {
+        if (emission != null) {
+            emission.cancel(false)
+            emission = null
+        }
+    }
+
+    /**
+     * Drops all websocket connections (e.g. to test reconnects); unless new connections are accepted they are closed
+     * after the handshake until {@link #acceptWebSockets} is called, so the hub can be changed while clients are offline.
+     */
+    void disconnectWebSockets(boolean acceptNewConnections = true) {
+        acceptingWebSockets = acceptNewConnections
+        webSocketChannels.close().awaitUninterruptibly()
+    }
+
+    void acceptWebSockets() {
+        acceptingWebSockets = true
+    }
+
+    // Changes the state of the entity as if it was changed in Home Assistant
+    void change(String entityId) {
+        changeEntity(entityId)
+    }
+
+    Map<String, Object> getEntity(String entityId) {
+        return entities.get(entityId)
+    }
+
+    Long getLastChangeNanos(String entityId) {
+        return lastChangeNanos.get(entityId)
+    }
+
+    long getEventsEmitted() {
+        return eventsEmitted.get()
+    }
+
+    long getRestRequests() {
+        return restRequests.get()
+    }
+
+    // Number of websocket connections that completed the handshake
+    long getWebSocketConnections() {
+        return webSocketConnections.get()
+    }
+
+    // Number of messages rejected because their id did not increase (each one closed its connection)
+    long getIdReuses() {
+        return idReuses.get()
+    }
+
+    List<ServiceCall> getServiceCalls() {
+        return serviceCalls
+    }
+
+    @Override
+    void close() {
+        accepting = false
+        stopEmitting()
+        emitter.shutdownNow()
+        webSocketChannels.close().awaitUninterruptibly()
+        serverChannel?.close()?.awaitUninterruptibly()
+        workerGroup?.shutdownGracefully(0, 1, TimeUnit.SECONDS)
+        bossGroup?.shutdownGracefully(0, 1, TimeUnit.SECONDS)
+    }
+
+    // Changes the state of the entity and publishes the state_changed event
+    protected void changeEntity(String entityId) {
+        def entity = entities.get(entityId)
+        String domain = entityId.substring(0, entityId.indexOf('.'))
+        synchronized (entity) {
+            if (domain == "sensor") {
+                entity.state = String.format(Locale.ROOT, "%.2f", (Double.parseDouble(entity.state as String) + 0.1d) % 40)
+            } else {
+                entity.state = entity.state == "on" ? "off" : "on"
+                if (domain == "light") {
+                    (entity.attributes as Map).brightness = entity.state == "on" ? 255 : 0
+                }
+            }
+            publishStateChanged(entity)
+        }
+    }
+
+    protected void applyService(String domain, String service, List<String> entityIds, Map<String, Object> serviceData) {
+        entityIds.each { entityId ->
+            def entity = entities.get(entityId)
+            if (entity == null) {
+                return
+            }
+            synchronized (entity) {
+                switch (service) {
+                    case "turn_on": entity.state = "on"; break
+                    case "turn_off": entity.state = "off"; break
+                    case "toggle": entity.state = entity.state == "on" ? "off" : "on"; break
+                }
+                if (serviceData) {
+                    (entity.attributes as Map).putAll(serviceData)
+                }
+                publishStateChanged(entity)
+            }
+        }
+    }
+
+    protected void publishStateChanged(Map<String, Object> entity) {
+        lastChangeNanos.put(entity.entity_id as String, System.nanoTime())
+        eventsEmitted.incrementAndGet()
+        def newState = [entity_id: entity.entity_id, state: entity.state, attributes: new LinkedHashMap(entity.attributes as Map)]
+        webSocketChannels.each { channel ->
+            channel.attr(SUBSCRIPTIONS).get()?.each { subscriptionId ->
+                send(channel, [id: subscriptionId, type: "event", event: [event_type: "state_changed", data: [entity_id: entity.entity_id, new_state: newState]]])
+            }
+            channel.attr(ENTITY_SUBSCRIPTIONS).get()?.each { subscriptionId, entityIds ->
+                if (entityIds.contains(entity.entity_id)) {
+                    send(channel, [id: subscriptionId, type: "event", event: [c: [(entity.entity_id): ["+": compactState(newState)]]]])
+                }
+            }
+        }
+    }
+
+    // The compressed state of subscribe_entities events; the simulator always sends the full state as the additions
+    protected static Map<String, Object> compactState(Map<String, Object> entity) {
+        return [s: entity.state, a: new LinkedHashMap(entity.attributes as Map)]
+    }
+
+    protected void send(Channel channel, Map<String, Object> message) {
+        channel.writeAndFlush(new TextWebSocketFrame(mapper.writeValueAsString(message)))
+    }
+
+    protected static Map<String, Object> createEntity(int index, Random random) {
+        String entityId = entityId(index)
+        String domain = DOMAINS[index % DOMAINS.size()]
+        Map<String, Object> attributes = [friendly_name: "Simulated " + index]
+        String state
+        switch (domain) {
+            case "light":
+                state = random.nextBoolean() ? "on" : "off"
+                attributes.brightness = state == "on" ? 255 : 0
+                attributes.min_mireds = 153
+                attributes.max_mireds = 500
+                attributes.supported_features = 40
+                break
+            case "sensor":
+                state = String.format(Locale.ROOT, "%.2f", random.nextDouble() * 40)
+                attributes.unit_of_measurement = "°C"
+                attributes.device_class = "temperature"
+                break
+            default:
+                state = random.nextBoolean() ? "on" : "off"
+        }
+        return new ConcurrentHashMap<String, Object>([entity_id: entityId, state: state, attributes: new ConcurrentHashMap(attributes)])
+    }
+
+    protected class SimulatorHandler extends SimpleChannelInboundHandler<Object> {
+
+        @Override
+        void userEventTriggered(ChannelHandlerContext ctx, Object event) {
+            if (event instanceof WebSocketServerProtocolHandler.HandshakeComplete) {
+                if (!accepting || !acceptingWebSockets) {
+                    ctx.close()
+                    return
+                }
+                ctx.channel().attr(SUBSCRIPTIONS).set(ConcurrentHashMap.newKeySet())
+                ctx.channel().attr(ENTITY_SUBSCRIPTIONS).set(new ConcurrentHashMap<>())
+                webSocketConnections.incrementAndGet()
+                webSocketChannels.add(ctx.channel())
+                send(ctx.channel(), [type: "auth_required", ha_version: "simulator"])
+            } else {
+                super.userEventTriggered(ctx, event)
+            }
+        }
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, Object message) {
+            if (message instanceof TextWebSocketFrame) {
+                onWebSocketMessage(ctx.channel(), mapper.readValue(message.text(), Map))
+            } else if (message instanceof FullHttpRequest) {
+                onHttpRequest(ctx, message)
+            }
+        }
+
+        protected void onWebSocketMessage(Channel channel, Map<String, Object> message) {
+            switch (message.type) {
+                case "auth":
+                    if (message.access_token == token) {
+                        channel.attr(AUTHENTICATED).set(true)
+                        send(channel, [type: "auth_ok", ha_version: "simulator"])
+                    } else {
+                        send(channel, [type: "auth_invalid", message: "Invalid access token"])
+                    }
+                    return
+            }
+
+            if (!channel.attr(AUTHENTICATED).get()) {
+                channel.close()
+                return
+            }
+
+            Integer id = message.id as Integer
+            Integer lastId = channel.attr(LAST_MESSAGE_ID).get()
+            if (id == null || (lastId != null && id <= lastId)) {
+                idReuses.incrementAndGet()
+                send(channel, [id: id, type: "result", success: false, error: [code: "id_reuse", message: "Identifier values have to increase."]])
+                channel.close()
+                return
+            }
+            channel.attr(LAST_MESSAGE_ID).set(id)
+            switch (message.type) {
+                case "subscribe_events":
+                    channel.attr(SUBSCRIPTIONS).get().add(id)
+                    send(channel, [id: id, type: "result", success: true, result: null])
+                    break
+                case "subscribe_entities":
+                    // The current states of the entities are sent as the first event of the subscription
+                    Set<String> entityIds = ConcurrentHashMap.newKeySet()
+                    entityIds.addAll(message.entity_ids as List<String>)
+                    send(channel, [id: id, type: "result", success: true, result: null])
+                    Map<String, Object> added = [:]
+                    entityIds.each { entityId ->
+                        def entity = entities.get(entityId)
+                        if (entity != null) {
+                            synchronized (entity) {
+                                added.put(entityId, compactState(entity))
+                            }
+                        }
+                    }
+                    channel.attr(ENTITY_SUBSCRIPTIONS).get().put(id, entityIds)
+                    send(channel, [id: id, type: "event", event: [a: added]])
+                    break
+                case "unsubscribe_events":
+                    channel.attr(SUBSCRIPTIONS).get().remove(message.subscription as Integer)
+                    channel.attr(ENTITY_SUBSCRIPTIONS).get().remove(message.subscription as Integer)
+                    send(channel, [id: id, type: "result", success: true, result: null])
+                    break
+                case "call_service":
+                    def target = message.target as Map
+                    def entityIds = target?.entity_id instanceof List ? target.entity_id as List<String> : [target?.entity_id as String]
+                    serviceCalls.add(new ServiceCall(message.domain as String, message.service as String, entityIds, message.service_data as Map, true))
+                    send(channel, [id: id, type: "result", success: true, result: [context: [id: UUID.randomUUID().toString()]]])
+                    applyService(message.domain as String, message.service as String, entityIds, message.service_data as Map)
+                    break
+                case "ping":
+                    send(channel, [id: id, type: "pong"])
+                    break
+                default:
+                    send(channel, [id: id, type: "result", success: false, error: [code: "unknown_command", message: "Unknown command"]])
+            }
+        }
+
+        protected void onHttpRequest(ChannelHandlerContext ctx, FullHttpRequest request) {
+            restRequests.incrementAndGet()
+            if (request.headers().get(HttpHeaderNames.AUTHORIZATION) != "Bearer " + token) {
+                respond(ctx, HttpResponseStatus.UNAUTHORIZED, [message: "Unauthorized"])
+                return
+            }
+
+            String path = new QueryStringDecoder(request.uri()).path()
+            if (request.method() == HttpMethod.GET && path == "/api") {
+                respond(ctx, HttpResponseStatus.OK, [message: "API running."])
+            } else if (request.method() == HttpMethod.GET && path == "/api/states") {
+                respond(ctx, HttpResponseStatus.OK, new ArrayList(entities.values()))
+            } else if (request.method() == HttpMethod.POST && path.startsWith("/api/services/")) {
+                def parts = path.substring("/api/services/".length()).split("/")
+                Map<String, Object> body = mapper.readValue(request.content().toString(StandardCharsets.UTF_8), Map)
+                def entityIds = body.remove("entity_id")
+                entityIds = entityIds instanceof List ? entityIds as List<String> : [entityIds as String]
+                serviceCalls.add(new ServiceCall(parts[0], parts[1], entityIds, body, false))
+                applyService(parts[0], parts[1], entityIds, body)
+                respond(ctx, HttpResponseStatus.OK, [])
+            } else {
+                respond(ctx, HttpResponseStatus.NOT_FOUND, [message: "Not found"])
+            }
+        }
+
+        protected void respond(ChannelHandlerContext ctx, HttpResponseStatus status, Object body) {
+            def content = Unpooled.wrappedBuffer(mapper.writeValueAsBytes(body))
+            def response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status, content)
+            response.headers().set(HttpHeaderNames.CONTENT_TYPE, "application/json")
+            response.headers().setInt(HttpHeaderNames.CONTENT_LENGTH, content.readableBytes())
+            ctx.writeAndFlush(response)
+        }
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright 2019, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.test.custom
+
+import org.openremote.agent.custom.HomeAssistantAgent
+import org.openremote.agent.custom.HomeAssistantAgentLink
+import org.openremote.agent.custom.HomeAssistantEntityProcessor
+import org.openremote.agent.custom.HomeAssistantLinkedAttribute
+import org.openremote.agent.custom.HomeAssistantProtocol
+import org.openremote.agent.custom.HomeAssistantUpdateFilter
+import org.openremote.agent.custom.entities.HomeAssistantBaseEntity
+import org.openremote.agent.custom.entities.HomeAssistantEntityStateEvent
+import org.openremote.agent.custom.entities.HomeAssistantEntityStateEventData
+import org.openremote.model.attribute.Attribute
+import org.openremote.model.attribute.AttributeEvent
+import org.openremote.model.attribute.AttributeRef
+import org.openremote.model.value.ValueType
+import spock.lang.Specification
+
+import static org.openremote.agent.custom.HomeAssistantUpdateFilter.Decision.DEFER
+import static org.openremote.agent.custom.HomeAssistantUpdateFilter.Decision.PUBLISH
+import static org.openremote.agent.custom.HomeAssistantUpdateFilter.Decision.SUPPRESS
+
+class HomeAssistantUpdateFilterTest extends Specification {
+
+    static final String AGENT_ID = "testAgentId00000000001"
+    static final String ENTITY_ID = "sensor.temperature"
+
+    def "Values within the absolute deadband of the last published value are suppressed"() {
+        given: "a filter with a deadband of 0.5"
+        def filter = new HomeAssistantUpdateFilter(agentLink().setDeadband(0.5d))
+        filter.onPublished(20d, 0)
+
+        expect: "only values that differ by at least the deadband to be published"
+        filter.evaluate(20.4d, 1000) == SUPPRESS
+        filter.evaluate(19.6d, 2000) == SUPPRESS
+        filter.evaluate(20.5d, 3000) == PUBLISH
+        filter.evaluate("19.4", 4000) == PUBLISH
+    }
+
+    def "Values within the percentage deadband of the last published value are suppressed"() {
+        given: "a filter with a deadband of 10 percent"
+        def filter = new HomeAssistantUpdateFilter(agentLink().setDeadbandPercent(10d))
+        filter.onPublished(200d, 0)
+
+        expect: "only values that differ by at least 10 percent to be published"
+        filter.evaluate(219d, 1000) == SUPPRESS
+        filter.evaluate(181d, 2000) == SUPPRESS
+        filter.evaluate(220d, 3000) == PUBLISH
+    }
+
+    def "Values equal to the last published value are suppressed"() {
+        given: "a filter with a minimum interval only"
+        def filter = new HomeAssistantUpdateFilter(agentLink().setMinIntervalMillis(1000))
+        filter.onPublished("on", 0)
+
+        expect: "an equal value to be suppressed whenever it arrives"
+        filter.evaluate("on", 500) == SUPPRESS
+        filter.evaluate("on", 5000) == SUPPRESS
+    }
+
+    def "Values within the minimum interval are deferred and only the latest is flushed"() {
+        given: "a filter with a minimum interval of 1 second"
+        def filter = new HomeAssistantUpdateFilter(agentLink().setMinIntervalMillis(1000))
+
+        expect: "the first value to be published"
+        filter.evaluate(10, 0) == PUBLISH
+
+        when: "the value is published and two values arrive within the interval"
+        filter.onPublished(10, 0)
+        def first = filter.evaluate(20, 100)
+        def scheduled = filter.scheduleFlush()
+        def second = filter.evaluate(30, 200)
+        def scheduledAgain = filter.scheduleFlush()
+
+        then: "both should be deferred with a single flush at the end of the interval"
+        first == DEFER
+        second == DEFER
+        scheduled
+        !scheduledAgain
+        filter.deferredUntilMillis == 1000
+
+        when: "the deferred value is flushed"
+        def taken = filter.takeDeferredValue(1000)
+
+        then: "the latest value should be published"
+        taken
+        filter.lastPublishedValue == 30
+        !filter.hasDeferredValue()
+
+        and: "a value after the interval should be published straight away"
+        filter.evaluate(40, 2000) == PUBLISH
+    }
+
+    def "A deferred value is dropped when the last published value is reported again"() {
+        given: "a filter with a minimum interval and a deferred value"
+        def filter = new HomeAssistantUpdateFilter(agentLink().setMinIntervalMillis(1000))
+        filter.onPublished(10, 0)
+        filter.evaluate(20, 100)
+        filter.scheduleFlush()
+
+        when: "the last published value is reported again within the interval"
+        def decision = filter.evaluate(10, 200)
+
+        then: "it should be suppressed and nothing should be flushed"
+        decision == SUPPRESS
+        !filter.takeDeferredValue(1000)
+        filter.lastPublishedValue == 10
+    }
+
+    def "Suppressed values are published again after the maximum silence"() {
+        given: "a filter with a deadband and a maximum silence of 10 seconds"
+        def filter = new HomeAssistantUpdateFilter(agentLink().setDeadband(1d).setMaxSilenceMillis(10_000))
+        filter.onPublished(20d, 0)
+
+        expect: "equal and close values to be suppressed within the silence period and published after it"
+        filter.evaluate(20d, 9_999) == SUPPRESS
+        filter.evaluate(20.5d, 9_999) == SUPPRESS
+        filter.evaluate(20d, 10_000) == PUBLISH
+    }
+
+    def "A maximum silence alone configures a filter"() {
+        expect:
+        HomeAssistantUpdateFilter.isConfigured(agentLink().setMaxSilenceMillis(10_000))
+        !HomeAssistantUpdateFilter.isConfigured(agentLink())
+    }
+
+    def "A value set on the attribute is the reference for later values"() {
+        given: "a filter with a deadband of 1 and a published value"
+        def filter = new HomeAssistantUpdateFilter(agentLink().setDeadband(1d).setMinIntervalMillis(1000))
+        filter.onPublished(20d, 0)
+        filter.evaluate(25d, 100)
+
+        when: "a value is written to the attribute"
+        filter.onValueSet(30d)
+
+        then: "the deferred value should be dropped and values close to the written value suppressed"
+        !filter.hasDeferredValue()
+        filter.evaluate(30.5d, 200) == SUPPRESS
+        filter.evaluate(20d, 300) == DEFER
+    }
+
+    def "An attribute keeps its value when the value it was changed from is reported within the minimum interval"() {
+        given: "a linked attribute with a minimum interval whose deferred flushes are captured"
+        List<AttributeEvent> published = []
+        List<Runnable> scheduled = []
+        def agent = new HomeAssistantAgent("Test")
+        agent.setId(AGENT_ID)
+        agent.getAttributes().getOrCreate(HomeAssistantAgent.IMPORTED_ENTITY_TYPES).setValue("sensor")
+        def protocol = new HomeAssistantProtocol(agent) {
+            @Override
+            void handleExternalAttributeChange(AttributeEvent event) {
+                published.add(event)
+            }
+
+            @Override
+            protected void schedule(Runnable task, long delayMillis) {
+                scheduled.add(task)
+            }
+        }
+        def entityProcessor = new HomeAssistantEntityProcessor(protocol, null)
+        protocol.routingTable.link(ENTITY_ID, new HomeAssistantLinkedAttribute(new AttributeRef("testAsset", "temperature"),
+            new Attribute<>("temperature", ValueType.NUMBER), agentLink().setMinIntervalMillis(60_000)))
+
+        when: "10 is published, then 20 is deferred and 10 is reported again"
+        entityProcessor.handleEntityStateEvent(temperatureEvent(10))
+        entityProcessor.handleEntityStateEvent(temperatureEvent(20))
+        entityProcessor.handleEntityStateEvent(temperatureEvent(10))
+
+        and: "the deferred flush runs"
+        scheduled.each { it.run() }
+
+        then: "only 10 should have been published"
+        scheduled.size() == 1
+        published.collect { it.value.orElse(null) } == [10d]
+    }
+
+    static HomeAssistantAgentLink agentLink() {
+        return new HomeAssistantAgentLink(AGENT_ID, "sensor", ENTITY_ID)
+    }
+
+    static HomeAssistantEntityStateEvent temperatureEvent(Number temperature) {
+        def entity = new HomeAssistantBaseEntity()
+        entity.setEntityId(ENTITY_ID)
+        entity.setState("ok")
+        entity.setAttributes([temperature: temperature])
+        def data = new HomeAssistantEntityStateEventData()
+        data.setEntityId(ENTITY_ID)
+        data.setNewBaseEntity(entity)
+        def event = new HomeAssistantEntityStateEvent()
+        event.setEventType("state_changed")
+        event.setData(data)
+        return event
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2019, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.test.custom
+
+import java.util.concurrent.Delayed
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.ScheduledThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+
+/**
+ * Scheduler for unit tests; delayed tasks are only recorded and run when the test calls {@link #runScheduled}, so tests
+ * control when time passes.
+ */
+class ManualScheduledExecutor extends ScheduledThreadPoolExecutor {
+
+    static class ManualTask implements ScheduledFuture<Object> {
+        final Runnable task
+        final long delayMillis
+        boolean cancelled
+        boolean done
+
+        ManualTask(Runnable task, long delayMillis) {
+            this.task = task
+            this.delayMillis = delayMillis
+        }
+
+        @Override
+        long getDelay(TimeUnit unit) {
+            return unit.convert(delayMillis, TimeUnit.MILLISECONDS)
+        }
+
+        @Override
+        int compareTo(Delayed other) {
+            return Long.compare(delayMillis, other.getDelay(TimeUnit.MILLISECONDS))
+        }
+
+        @Override
+        boolean cancel(boolean mayInterruptIfRunning) {
+            if (done) {
+                return false
+            }
+            cancelled = true
+            done = true
+            return true
+        }
+
+        @Override
+        boolean isCancelled() {
+            return cancelled
+        }
+
+        @Override
+        boolean isDone() {
+            return done
+        }
+
+        @Override
+        Object get() {
+            return null
+        }
+
+        @Override
+        Object get(long timeout, TimeUnit unit) {
+            return null
+        }
+    }
+
+    final List<ManualTask> scheduled = []
+
+    ManualScheduledExecutor() {
+        super(1)
+    }
+
+    @Override
+    synchronized ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+        def task = new ManualTask(command, unit.toMillis(delay))
+        scheduled.add(task)
+        return task
+    }
+
+    // Tasks that have been scheduled and neither run nor cancelled
+    synchronized List<ManualTask> getPending() {
+        return scheduled.findAll { !it.done }
+    }
+
+    // Runs the pending tasks as if their delay has elapsed
+    void runScheduled() {
+        getPending().each {
+            it.done = true
+            it.task.run()
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2024, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.test.custom
+
+import org.openremote.manager.custom.SensorHistoryBuffer
+import spock.lang.Specification
+
+class SensorHistoryBufferTest extends Specification {
+
+    def "Samples within the range are returned in order"() {
+        given: "a buffer with samples"
+        def buffer = new SensorHistoryBuffer(100_000, 1000, offHeap)
+        (0..<10).each { buffer.add(it * 1000L, it) }
+
+        when: "a range is read"
+        def points = read(buffer, 2000, 5000, 10)
+
+        then: "the samples within the range should be returned and the end of the range excluded"
+        points.timestamps == [2000L, 3000L, 4000L]
+        points.values == [2d, 3d, 4d]
+
+        where:
+        offHeap << [false, true]
+    }
+
+    def "Ranges holding more than the max points are averaged per period"() {
+        given: "a buffer with a sample every second"
+        def buffer = new SensorHistoryBuffer(100_000, 1000, false)
+        (0..<100).each { buffer.add(it * 1000L, it) }
+
+        when: "the range is read with fewer points than samples"
+        def points = read(buffer, 0, 100_000, 10)
+
+        then: "each point should be the average of its period timestamped at its first sample"
+        points.timestamps == (0..<10).collect { it * 10_000L }
+        points.values == (0..<10).collect { it * 10 + 4.5d }
+    }
+
+    def "The oldest samples are evicted once the max capacity is reached"() {
+        given: "a buffer which has wrapped around"
+        def buffer = new SensorHistoryBuffer(100_000, 8, false)
+        (0..<21).each { buffer.add(it * 1000L, it) }
+
+        expect: "the newest samples should be kept in order"
+        buffer.size() == 8
+        buffer.capacity() == 8
+        read(buffer, 0, 100_000, 10).values == (13..20).collect { it as double }
+        read(buffer, 15_000, 18_000, 10).values == [15d, 16d, 17d]
+    }
+
+    def "The buffer grows lazily up to the max capacity"() {
+        given: "a buffer with a large max capacity"
+        def buffer = new SensorHistoryBuffer(1_000_000, 200, false)
+
+        expect: "it to start small"
+        buffer.capacity() == SensorHistoryBuffer.INITIAL_CAPACITY
+
+        when: "more samples than the initial capacity are added after it has wrapped around"
+        (0..<SensorHistoryBuffer.INITIAL_CAPACITY).each { buffer.add(it * 1000L, it) }
+        buffer.evictBefore(10_000)
+        (SensorHistoryBuffer.INITIAL_CAPACITY..<250).each { buffer.add(it * 1000L, it) }
+
+        then: "it should have grown to the max capacity keeping the newest samples in order"
+        buffer.capacity() == 200
+        buffer.size() == 200
+        read(buffer, 0, 1_000_000, 200).values == (50..<250).collect { it as double }
+    }
+
+    def "Samples older than the retention period are evicted"() {
+        given: "a buffer retaining 10 seconds"
+        def buffer = new SensorHistoryBuffer(10_000, 1000, false)
+        (0..<30).each { buffer.add(it * 1000L, it) }
+
+        expect: "only the samples within the retention period of the newest sample to be kept"
+        buffer.size() == 11
+        read(buffer, 0, 100_000, 100).timestamps.first() == 19_000L
+
+        and: "samples older than the newest sample to be dropped"
+        !buffer.add(5000, 5)
+
+        and: "the buffer to report when all samples have been evicted"
+        !buffer.evictBefore(29_000)
+        buffer.evictBefore(30_000)
+        buffer.size() == 0
+    }
+
+    def "Extreme ranges are read without overflowing"() {
+        given: "a buffer retaining everything with samples spread over the whole timestamp range"
+        def buffer = new SensorHistoryBuffer(Long.MAX_VALUE, 1000, false)
+        [Long.MIN_VALUE, -1L, 0L, 1000L, Long.MAX_VALUE - 1].eachWithIndex { timestamp, i -> buffer.add(timestamp, i + 1) }
+
+        expect: "the whole range to be averaged into the requested number of points"
+        buffer.size() == 5
+        read(buffer, Long.MIN_VALUE, Long.MAX_VALUE, 1) == [timestamps: [Long.MIN_VALUE], values: [3d]]
+        read(buffer, Long.MIN_VALUE, Long.MAX_VALUE, 2) == [timestamps: [Long.MIN_VALUE, 0L], values: [1.5d, 4d]]
+        read(buffer, Long.MIN_VALUE, Long.MAX_VALUE, 5).values == [1d, 2d, 3d, 4d, 5d]
+        (1..4).every { read(buffer, Long.MIN_VALUE, Long.MAX_VALUE, it).values.size() <= it }
+    }
+
+    def "A range wider than the samples is clamped to them"() {
+        given: "a buffer with a sample every second"
+        def buffer = new SensorHistoryBuffer(100_000, 1000, false)
+        (0..<100).each { buffer.add(it * 1000L, it) }
+
+        when: "the largest possible range is read with fewer points than samples"
+        def points = read(buffer, Long.MIN_VALUE, Long.MAX_VALUE, 10)
+
+        then: "the samples should be averaged over periods of their own range"
+        points.timestamps == (0..<10).collect { it * 10_000L }
+        points.values == (0..<10).collect { it * 10 + 4.5d }
+    }
+
+    def "Samples near the minimum timestamp are not evicted by the retention period"() {
+        given: "a buffer retaining 10 seconds"
+        def buffer = new SensorHistoryBuffer(10_000, 1000, false)
+
+        when: "samples are added at the minimum timestamp"
+        buffer.add(Long.MIN_VALUE, 1)
+        buffer.add(Long.MIN_VALUE + 1, 2)
+
+        then: "both should be kept"
+        buffer.size() == 2
+    }
+
+    protected static Map read(SensorHistoryBuffer buffer, long from, long to, int maxPoints) {
+        long[] timestamps = new long[maxPoints]
+        double[] values = new double[maxPoints]
+        int count = buffer.read(from, to, maxPoints, timestamps, values)
+        [timestamps: (timestamps as List).subList(0, count), values: (values as List).subList(0, count)]
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2019, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.test.custom
+
+import org.openremote.manager.custom.SensorRollupAccumulator
+import org.openremote.model.custom.RollupInterval
+import spock.lang.Specification
+
+import static org.openremote.model.custom.RollupInterval.*
+
+class SensorRollupAccumulatorTest extends Specification {
+
+    def accumulator = new SensorRollupAccumulator()
+    List<SensorRollupAccumulator.Delta> drained = []
+
+    def "Values are aggregated into the open bucket of every interval"() {
+        when: "values within the same minute are added"
+        add(1000, 4)
+        add(2000, 2)
+        add(3000, 6)
+
+        then: "nothing should be drained"
+        drained.isEmpty()
+
+        and: "every interval should hold the aggregate of the values"
+        RollupInterval.values().each {
+            def open = accumulator.peek(it)
+            assert open.bucketStart() == 0L
+            assert open.count() == 3L
+            assert open.min() == 2d
+            assert open.max() == 6d
+            assert open.sum() == 12d
+        }
+    }
+
+    def "A bucket is drained when a value of the next period is added"() {
+        given: "values in the first minute"
+        add(1000, 4)
+        add(59_999, 2)
+
+        when: "a value of the next minute is added"
+        add(60_000, 10)
+
+        then: "only the minute bucket should have been drained"
+        drained.size() == 1
+        drained[0] == new SensorRollupAccumulator.Delta(MINUTE, 0, 2, 2d, 4d, 6d)
+
+        and: "the open minute bucket should only hold the new value"
+        accumulator.peek(MINUTE) == new SensorRollupAccumulator.Delta(MINUTE, 60_000, 1, 10d, 10d, 10d)
+        accumulator.peek(HOUR) == new SensorRollupAccumulator.Delta(HOUR, 0, 3, 2d, 10d, 16d)
+
+        when: "a value of the next day is added"
+        drained.clear()
+        add(DAY.millis + 1, 1)
+
+        then: "the bucket of every interval should have been drained"
+        drained*.interval() == [MINUTE, HOUR, DAY]
+        drained*.bucketStart() == [60_000L, 0L, 0L]
+        drained*.count() == [1L, 3L, 3L]
+    }
+
+    def "Draining empties the open buckets so later deltas only hold new values"() {
+        given: "values in a bucket"
+        add(1000, 4)
+        add(2000, 8)
+
+        when: "the buckets are drained"
+        accumulator.drain { drained.add(it) }
+
+        then: "a delta should be drained per interval and the buckets should be empty"
+        drained.size() == RollupInterval.values().length
+        RollupInterval.values().every { accumulator.peek(it) == null }
+
+        when: "another value of the same bucket is added and drained"
+        drained.clear()
+        add(3000, 1)
+        accumulator.drain { drained.add(it) }
+
+        then: "the delta should only hold the new value"
+        drained.find { it.interval() == MINUTE } == new SensorRollupAccumulator.Delta(MINUTE, 0, 1, 1d, 1d, 1d)
+    }
+
+    protected void add(long timestamp, double value) {
+        accumulator.add(timestamp, value) { drained.add(it) }
+    }
+}